@@ -23,9 +23,12 @@ import org.apache.cordova.CordovaPlugin;
 import org.apache.cordova.CordovaResourceApi;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.media.AudioManager;
 import android.media.AudioManager.OnAudioFocusChangeListener;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 
 import java.lang.String;
 import java.util.ArrayList;
@@ -37,6 +40,20 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.spoledge.aacdecoder.AACPlayer;
+import com.spoledge.aacdecoder.Decoder;
+import com.spoledge.aacdecoder.PlayerThreadFactory;
+import com.spoledge.aacdecoder.ProtocolCache;
 
 /**
  * This class called by CordovaActivity to play and record audio.
@@ -58,6 +75,37 @@ public class AudioHandler extends CordovaPlugin {
     private int origVolumeStream = -1;
     private CallbackContext messageChannel;
 
+    // The event messages are merged and sent to JavaScript at most once per frame;
+    // a newer message with the same merge key replaces the pending one:
+    private static final long EVENT_BATCH_INTERVAL_MS = 16;
+    private final LinkedHashMap<String, JSONObject> pendingMessages = new LinkedHashMap<String, JSONObject>();
+    private int pendingSequence;
+    private boolean flushScheduled;
+    private final Handler eventHandler = new Handler(Looper.getMainLooper());
+    private final Runnable flushTask = new Runnable() {
+        public void run() {
+            flushEventMessages();
+        }
+    };
+
+    // Process-wide thread pools shared by all players - one per priority class.
+    // Every playback holds one thread of each pool, so the pools do not queue.
+    // MAX_PLAYER_THREADS playbacks reuse the pooled threads; the playbacks beyond it
+    // (previews, more monitored streams) get extra threads which end with the playback,
+    // so they are never rejected.
+    // The short tasks (library preload, prefetch, AudioTrack creation, mirror probes)
+    // are queued in a small separate pool, so they do not take the threads of the playbacks.
+    private static final int MAX_PLAYER_THREADS = 4;
+    private static final int PLAYER_THREAD_KEEP_ALIVE_SECONDS = 30;
+    private static final int TASK_THREADS = AACPlayer.MAX_PARALLEL_PROBES;
+    private static Executor networkExecutor;
+    private static Executor decoderExecutor;
+    private static Executor outputExecutor;
+    private static Executor taskExecutor;
+
+    // The protocols which worked for the servers are kept across app restarts:
+    private static final String PROTOCOL_CACHE_PREFS = "mediaac.protocols";
+
     /**
      * Constructor.
      */
@@ -72,6 +120,7 @@ public class AudioHandler extends CordovaPlugin {
                 public java.net.URLStreamHandler createURLStreamHandler( String protocol ) {
                     LOG.d( "Registrando icy", "Asking for stream handler for protocol: '" + protocol + "'" );
                     if ("icy".equals( protocol )) return new com.spoledge.aacdecoder.IcyURLStreamHandler();
+                    if ("icys".equals( protocol )) return new com.spoledge.aacdecoder.IcyURLStreamHandler( true );
                     return null;
                 }
             });
@@ -82,6 +131,106 @@ public class AudioHandler extends CordovaPlugin {
 
     }
 
+    /**
+     * Loads the native decoder library in the background,
+     * so the first player does not wait for it.
+     * Restores the cache of the server protocols.
+     */
+    @Override
+    protected void pluginInitialize() {
+        final SharedPreferences prefs = cordova.getActivity().getSharedPreferences(PROTOCOL_CACHE_PREFS, Context.MODE_PRIVATE);
+
+        ProtocolCache.getDefault().setStore(new ProtocolCache.Store() {
+            @SuppressWarnings("unchecked")
+            public Map<String, String> load() {
+                return (Map<String, String>) prefs.getAll();
+            }
+
+            public void save(Map<String, String> entries) {
+                SharedPreferences.Editor editor = prefs.edit().clear();
+                for (Map.Entry<String, String> me : entries.entrySet()) {
+                    editor.putString(me.getKey(), me.getValue());
+                }
+                editor.apply();
+            }
+        });
+
+        try {
+            getTaskExecutor().execute(new Runnable() {
+                public void run() {
+                    long ts = System.currentTimeMillis();
+                    Decoder.loadLibrary();
+                    LOG.d(TAG, "Decoder library loaded in " + (System.currentTimeMillis() - ts) + " ms");
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            LOG.w(TAG, "Cannot preload the decoder library: " + e);
+        }
+    }
+
+    /**
+     * Returns the pool for network (input reading) threads - background priority.
+     */
+    static synchronized Executor getNetworkExecutor() {
+        if (networkExecutor == null) {
+            networkExecutor = createPlayerExecutor("aac-network", android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        }
+        return networkExecutor;
+    }
+
+    /**
+     * Returns the pool for decoding threads - normal priority.
+     */
+    static synchronized Executor getDecoderExecutor() {
+        if (decoderExecutor == null) {
+            decoderExecutor = createPlayerExecutor("aac-decoder", android.os.Process.THREAD_PRIORITY_DEFAULT);
+        }
+        return decoderExecutor;
+    }
+
+    /**
+     * Returns the pool for audio output threads - audio priority.
+     */
+    static synchronized Executor getOutputExecutor() {
+        if (outputExecutor == null) {
+            outputExecutor = createPlayerExecutor("aac-output", android.os.Process.THREAD_PRIORITY_AUDIO);
+        }
+        return outputExecutor;
+    }
+
+    /**
+     * Returns the pool for the short tasks - queued, normal priority.
+     */
+    static synchronized Executor getTaskExecutor() {
+        if (taskExecutor == null) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(TASK_THREADS, TASK_THREADS,
+                    PLAYER_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new PlayerThreadFactory("aac-task", android.os.Process.THREAD_PRIORITY_DEFAULT));
+            pool.allowCoreThreadTimeOut(true);
+            taskExecutor = pool;
+        }
+        return taskExecutor;
+    }
+
+    private static Executor createPlayerExecutor(String name, int priority) {
+        final PlayerThreadFactory factory = new PlayerThreadFactory(name, priority);
+
+        // idle threads are released, excess tasks run by extra (not pooled) threads:
+        return new ThreadPoolExecutor(0, MAX_PLAYER_THREADS,
+                PLAYER_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(),
+                factory,
+                new RejectedExecutionHandler() {
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        if (executor.isShutdown()) throw new RejectedExecutionException("Player pool shut down");
+                        LOG.d(TAG, "All pooled player threads busy - running the task by an extra thread");
+                        factory.newThread(r).start();
+                    }
+                });
+    }
+
     /**
      * Executes the request and returns PluginResult.
      * @param action 		The action to execute.
@@ -103,7 +252,17 @@ public class AudioHandler extends CordovaPlugin {
             } catch (IllegalArgumentException e) {
                 fileUriStr = target;
             }
-            this.startPlayingAudio(args.getString(0), FileHelper.stripFileProtocol(fileUriStr));
+            // the mirrors of the same stream - the fastest one is played:
+            JSONObject options = args.optJSONObject(2);
+            JSONArray jsonMirrors = options != null ? options.optJSONArray("mirrors") : null;
+            String[] mirrors = null;
+            if (jsonMirrors != null) {
+                mirrors = new String[jsonMirrors.length()];
+                for (int i = 0; i < mirrors.length; i++) {
+                    mirrors[i] = jsonMirrors.getString(i);
+                }
+            }
+            this.startPlayingAudio(args.getString(0), FileHelper.stripFileProtocol(fileUriStr), mirrors);
         }
         else if (action.equals("pausePlayingAudio")) {
             this.pausePlayingAudio(args.getString(0));
@@ -144,6 +303,11 @@ public class AudioHandler extends CordovaPlugin {
             audio.destroy();
         }
         this.players.clear();
+        eventHandler.removeCallbacks(flushTask);
+        synchronized (pendingMessages) {
+            pendingMessages.clear();
+            flushScheduled = false;
+        }
     }
 
     /**
@@ -228,8 +392,18 @@ public class AudioHandler extends CordovaPlugin {
      * @param file				The name of the audio file.
      */
     public void startPlayingAudio(String id, String file) {
+        startPlayingAudio(id, file, null);
+    }
+
+    /**
+     * Start or resume playing a stream published by more mirrors.
+     * @param id				The id of the audio player
+     * @param file				The name of the audio file.
+     * @param mirrors			The other URLs of the same stream or null.
+     */
+    public void startPlayingAudio(String id, String file, String[] mirrors) {
         AudioPlayer audio = getOrCreatePlayer(id, file);
-        audio.startPlaying(file);
+        audio.startPlaying(file, mirrors);
         getAudioFocus();
     }
 
@@ -359,6 +533,18 @@ public class AudioHandler extends CordovaPlugin {
     }
 
     void sendEventMessage(String action, JSONObject actionData) {
+        sendEventMessage(action, actionData, null);
+    }
+
+    /**
+     * Queues the event message - the pending messages are sent together in one batch.
+     *
+     * @param action            The action of the message
+     * @param actionData        The data of the message
+     * @param mergeKey          The key of a state (e.g. the player id and the message type) - only
+     *                          the last message of the key is sent; null means the message is always sent
+     */
+    void sendEventMessage(String action, JSONObject actionData, String mergeKey) {
         JSONObject message = new JSONObject();
         try {
             message.put("action", action);
@@ -369,9 +555,54 @@ public class AudioHandler extends CordovaPlugin {
             LOG.e(TAG, "Failed to create event message", e);
         }
 
-        PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, message);
-        pluginResult.setKeepCallback(true);
-        if (messageChannel != null) {
+        boolean schedule;
+        synchronized (pendingMessages) {
+            String key = mergeKey != null ? action + ":" + mergeKey : "#" + (pendingSequence++);
+            // the last value moves to the end - the order of the last values is kept:
+            pendingMessages.remove(key);
+            pendingMessages.put(key, message);
+            schedule = !flushScheduled;
+            flushScheduled = true;
+        }
+
+        if (schedule) {
+            eventHandler.postDelayed(flushTask, EVENT_BATCH_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * Sends the pending event messages - more messages are wrapped by one 'batch' message.
+     */
+    private void flushEventMessages() {
+        JSONObject message = null;
+        JSONArray batch = null;
+        synchronized (pendingMessages) {
+            flushScheduled = false;
+            if (pendingMessages.size() == 1) {
+                message = pendingMessages.values().iterator().next();
+            }
+            else if (!pendingMessages.isEmpty()) {
+                batch = new JSONArray();
+                for (JSONObject m : pendingMessages.values()) {
+                    batch.put(m);
+                }
+            }
+            pendingMessages.clear();
+        }
+
+        if (batch != null) {
+            message = new JSONObject();
+            try {
+                message.put("action", "batch");
+                message.put("batch", batch);
+            } catch (JSONException e) {
+                LOG.e(TAG, "Failed to create batch message", e);
+            }
+        }
+
+        if (message != null && messageChannel != null) {
+            PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, message);
+            pluginResult.setKeepCallback(true);
             messageChannel.sendPluginResult(pluginResult);
         }
     }
@@ -19,6 +19,9 @@
 package org.apache.cordova.mediaac;
 import org.apache.cordova.LOG;
 
+import com.spoledge.aacdecoder.AACPlayer;
+import com.spoledge.aacdecoder.BufferingListener;
+import com.spoledge.aacdecoder.CallbackDispatcher;
 import com.spoledge.aacdecoder.MultiPlayer;
 import com.spoledge.aacdecoder.PlayerCallback;
 
@@ -36,7 +39,7 @@ import org.json.JSONObject;
  *      android_asset:      file name must start with /android_asset/sound.mp3
  *      sdcard:             file name is just sound.mp3
  */
-public class AudioPlayer implements PlayerCallback{
+public class AudioPlayer implements PlayerCallback, BufferingListener{
 
     // MultiPlayer states
     public enum STATE { MEDIA_NONE,
@@ -66,6 +69,7 @@ public class AudioPlayer implements PlayerCallback{
     private STATE state = STATE.MEDIA_NONE; // State of recording or playback
 
     private MultiPlayer player = null;      // Audio player object
+    private CallbackDispatcher dispatcher = null; // Calls back this object off the player threads
 
     /**
      * Constructor.
@@ -76,6 +80,11 @@ public class AudioPlayer implements PlayerCallback{
     public AudioPlayer(AudioHandler handler, String id, String file) {
         this.handler = handler;
         this.id = id;
+
+        // resolve the host while the playback is not requested yet:
+        if (file != null && isStreaming(file)) {
+            AACPlayer.prefetch(file, AudioHandler.getTaskExecutor());
+        }
     }
 
     /**
@@ -101,8 +110,26 @@ public class AudioPlayer implements PlayerCallback{
      * @param file              The name of the audio file.
      */
     public void startPlaying(String file) {
+        startPlaying(file, null);
+    }
+
+    /**
+     * Start or resume playing a stream - the fastest of the file and its mirrors is played.
+     *
+     * @param file              The name of the audio file.
+     * @param mirrors           The other URLs of the same stream or null.
+     */
+    public void startPlaying(String file, String[] mirrors) {
         if (this.readyPlayer() && this.player != null) {
-            this.player.playAsync(file);
+            if (mirrors != null && mirrors.length > 0 && file != null && this.isStreaming(file)) {
+                String[] urls = new String[mirrors.length + 1];
+                urls[0] = file;
+                System.arraycopy(mirrors, 0, urls, 1, mirrors.length);
+                this.player.playAsync(urls, -1);
+            }
+            else {
+                this.player.playAsync(file);
+            }
         } else {
             LOG.d(LOG_TAG, "startPlaying error, not ready");
         }
@@ -161,6 +188,11 @@ public class AudioPlayer implements PlayerCallback{
      */
     public void playerStopped ( int perf ) {
         LOG.d(LOG_TAG, "stopPlaying is calling stopped");
+        if (this.dispatcher != null) {
+            LOG.d(LOG_TAG, "StreamPlayer callbacks: delivered=" + this.dispatcher.getDeliveredCount()
+                    + ", coalesced=" + this.dispatcher.getCoalescedCount()
+                    + ", latency avg=" + this.dispatcher.getAverageLatencyUs() + " us, max=" + this.dispatcher.getMaxLatencyUs() + " us");
+        }
         this.setState(STATE.MEDIA_STOPPED);
 
         // Send status notification to JavaScript
@@ -187,6 +219,14 @@ public class AudioPlayer implements PlayerCallback{
     public void playerAudioTrackCreated( AudioTrack atrack ) {
     }
 
+    public void playerBufferingChanged( int startThresholdMs, int inputBufferMs, int underruns ) {
+        LOG.d(LOG_TAG, "StreamPlayer buffering: start=" + startThresholdMs + " ms, input=" + inputBufferMs + " ms, underruns=" + underruns);
+    }
+
+    public void playerReconnected( int reconnects, int latencyMs ) {
+        LOG.d(LOG_TAG, "StreamPlayer reconnected in " + latencyMs + " ms, reconnects=" + reconnects);
+    }
+
     /**
      * Set the state and send it to JavaScript.
      *
@@ -217,7 +257,13 @@ public class AudioPlayer implements PlayerCallback{
             case MEDIA_NONE:
                 if (this.player == null) {
                     //TODO: Agregar buffer (this, audiobuffer, decoderbuffer).
-                    this.player = new MultiPlayer(this);
+                    // the status messages are not built on the reader / decoder / audio threads:
+                    this.dispatcher = new CallbackDispatcher(this);
+                    this.player = new MultiPlayer(this.dispatcher);
+                    this.player.setExecutors(AudioHandler.getNetworkExecutor(),
+                            AudioHandler.getDecoderExecutor(),
+                            AudioHandler.getOutputExecutor());
+                    this.player.setTaskExecutor(AudioHandler.getTaskExecutor());
                     this.setState(STATE.MEDIA_STARTING);
                     return true;
                 }
@@ -263,6 +309,8 @@ public class AudioPlayer implements PlayerCallback{
             LOG.e(LOG_TAG, "Failed to create status details", e);
         }
 
-        this.handler.sendEventMessage("status", statusDetails);
+        // the state and the duration are merged per player - only the last value is sent:
+        String mergeKey = messageType != MEDIA_ERROR ? this.id + ":" + messageType : null;
+        this.handler.sendEventMessage("status", statusDetails, mergeKey);
     }
 }
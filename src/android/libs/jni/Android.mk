@@ -1,9 +1,10 @@
 mydir := $(call my-dir)
 
 #
-# Include the user's properties:
+# Include the user's properties (optional - they can be passed
+# on the ndk-build command line as well, e.g. by the Gradle build):
 #
-include $(mydir)/../../.ant.properties
+-include $(mydir)/../../.ant.properties
 
 PV_TOP 			:=	$(opencore-top.dir)
 OPENCORE_DIR 	:=	$(opencore-top.dir)/codecs_v2/audio/aac/dec
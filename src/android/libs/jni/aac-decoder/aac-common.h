@@ -101,6 +101,12 @@ typedef struct AACDInfo {
      */
     void *ext;
 
+    // true if the decoder was successfully started:
+    int started;
+
+    // true if the end of the input was signalled in push mode:
+    int push_eof;
+
     // internal input buffer - 2x
     unsigned char *buffer_block;
     unsigned long bbsize;
@@ -111,6 +117,13 @@ typedef struct AACDInfo {
     unsigned char *buffer;
     unsigned long bytesleft;
 
+    // true if the input buffer pointer points into a Java direct buffer:
+    int buffer_direct;
+
+    // the unconsumed input saved before the Java direct buffer is released:
+    unsigned char *tail_block;
+    unsigned long tbsize;
+
     // internal output buffer
     jshort *samples;
     unsigned long samplesLen;
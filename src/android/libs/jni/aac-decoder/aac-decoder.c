@@ -23,6 +23,7 @@
 #include "aac-decoder.h"
 #include "aac-common.h"
 
+#include <stdint.h>
 #include <string.h>
 
 /****************************************************************************************************
@@ -41,15 +42,17 @@ struct JavaDecoderInfo {
     jfieldID firstSamples;
 };
 
-struct JavaArrayBufferReader {
+struct JavaDirectBufferReader {
     jclass bufferClazz;
     jfieldID bufferData;
+    jfieldID bufferOffset;
     jfieldID bufferSize;
+    jfieldID bufferDiscontinuity;
     jclass clazz;
     jmethodID next;
 };
 
-static struct JavaArrayBufferReader javaABR;
+static struct JavaDirectBufferReader javaDBR;
 static struct JavaDecoderInfo javaDecoderInfo;
 
 extern AACDDecoder aacd_opencore_decoder;
@@ -98,8 +101,9 @@ int aacd_adts_sync(unsigned char *buffer, int len)
 /**
  * Copies relevant information to Java object.
  * This is called in the start method.
+ * @param storeFirstSamples if true, then the first samples are stored into a new Java array
  */
-static void aacd_start_info2java( AACDInfo *info )
+static void aacd_start_info2java( AACDInfo *info, int storeFirstSamples )
 {
     JNIEnv *env = info->env;
     jobject jinfo = info->aacInfo;
@@ -125,7 +129,7 @@ static void aacd_start_info2java( AACDInfo *info )
     (*env)->SetIntField( env, jinfo, javaDecoderInfo.channels, (jint) info->channels);
 
     // store the first samples if any:
-    if (info->samples && info->frame_samples) {
+    if (storeFirstSamples && info->samples && info->frame_samples) {
         jshortArray outBuf = (*env)->NewShortArray( env, info->frame_samples );
         (*env)->SetShortArrayRegion( env, outBuf, 0, info->frame_samples, info->samples );
         (*env)->SetObjectField( env, jinfo, javaDecoderInfo.firstSamples, outBuf );
@@ -213,6 +217,13 @@ static void aacd_stop( AACDInfo *info )
         info->bbsize2 = 0;
     }
 
+    if (info->tail_block != NULL)
+    {
+        free( info->tail_block );
+        info->tail_block = NULL;
+        info->tbsize = 0;
+    }
+
     if (info->samples != NULL)
     {
         free( info->samples );
@@ -228,10 +239,40 @@ static void aacd_stop( AACDInfo *info )
 }
 
 
+static unsigned char* aacd_join_buffer( AACDInfo *info, unsigned char *data, jint inLen );
+
+
 /**
  * Prepares input buffer by joining the rest of the old one and the new one.
+ * If there is enough space in front of the new data, then only the rest
+ * is copied there and the new data are used in place.
+ * Otherwise both are copied into the internal buffer.
+ */
+static unsigned char* aacd_prepare_buffer( AACDInfo *info, unsigned char *data, jint headroom, jint inLen )
+{
+    if (info->bytesleft <= headroom)
+    {
+        unsigned char *start = data - info->bytesleft;
+
+        if (info->bytesleft != 0) memcpy( start, info->buffer, info->bytesleft );
+
+        info->buffer = start;
+        info->buffer_direct = 1;
+        info->bytesleft += inLen;
+
+        return info->buffer;
+    }
+
+    AACD_DEBUG( "prepare_buffer() headroom too small: %d < %lu", headroom, info->bytesleft );
+
+    return aacd_join_buffer( info, data, inLen );
+}
+
+
+/**
+ * Joins the rest of the old input buffer and the new data into the internal buffer.
  */
-static unsigned char* aacd_prepare_buffer( AACDInfo *info, jbyteArray inBuf, jint inOff, jint inLen )
+static unsigned char* aacd_join_buffer( AACDInfo *info, unsigned char *data, jint inLen )
 {
     int newlen = info->bytesleft + inLen;
 
@@ -247,13 +288,13 @@ static unsigned char* aacd_prepare_buffer( AACDInfo *info, jbyteArray inBuf, jin
 
     if (info->bytesleft != 0) memcpy( info->buffer_block2, info->buffer, info->bytesleft );
 
-    JNIEnv *env = info->env;
-    (*env)->GetByteArrayRegion( env, inBuf, inOff, inLen, info->buffer_block2 + info->bytesleft );
+    memcpy( info->buffer_block2 + info->bytesleft, data, inLen );
 
     info->buffer = info->buffer_block;
     info->buffer_block = info->buffer_block2;
     info->buffer_block2 = info->buffer;
     info->buffer = info->buffer_block;
+    info->buffer_direct = 0;
 
     int tmp;
     tmp = info->bbsize;
@@ -266,6 +307,29 @@ static unsigned char* aacd_prepare_buffer( AACDInfo *info, jbyteArray inBuf, jin
 }
 
 
+/**
+ * Saves the unconsumed input - the Java buffer is released by calling BufferReader.next().
+ * The rest is small - it is never bigger than the maximum frame size.
+ */
+static void aacd_save_tail( AACDInfo *info )
+{
+    if (!info->buffer_direct || info->bytesleft == 0) return;
+
+    if (info->tbsize < info->bytesleft)
+    {
+        if (info->tail_block != NULL) free( info->tail_block );
+
+        info->tbsize = info->bytesleft + 500;
+        info->tail_block = (unsigned char*) malloc( info->tbsize );
+    }
+
+    memcpy( info->tail_block, info->buffer, info->bytesleft );
+
+    info->buffer = info->tail_block;
+    info->buffer_direct = 0;
+}
+
+
 /**
  * Reads next buffer.
  */
@@ -273,24 +337,66 @@ static unsigned char* aacd_read_buffer( AACDInfo *info )
 {
     JNIEnv *env = info->env;
 
-    if (javaABR.clazz == NULL)
-    {
-        javaABR.clazz = (*env)->GetObjectClass( env, info->reader );
-        javaABR.next = (*env)->GetMethodID( env, javaABR.clazz, "next", "()Lcom/spoledge/aacdecoder/BufferReader$Buffer;");
+    // push mode - the input is passed by the feed() method:
+    if (info->reader == NULL) return NULL;
 
-        javaABR.bufferClazz = (*env)->FindClass( env, "com/spoledge/aacdecoder/BufferReader$Buffer");
-        javaABR.bufferData = (jfieldID) (*env)->GetFieldID( env, javaABR.bufferClazz, "data", "[B");
-        javaABR.bufferSize = (jfieldID) (*env)->GetFieldID( env, javaABR.bufferClazz, "size", "I");
+    if (javaDBR.clazz == NULL)
+    {
+        // the base class - the method is called virtually, so subclasses (MappedBufferReader) work too:
+        jclass clazz = (*env)->FindClass( env, "com/spoledge/aacdecoder/BufferReader");
+        javaDBR.clazz = (jclass) (*env)->NewGlobalRef( env, clazz );
+        (*env)->DeleteLocalRef( env, clazz );
+        javaDBR.next = (*env)->GetMethodID( env, javaDBR.clazz, "next", "()Lcom/spoledge/aacdecoder/BufferReader$Buffer;");
+
+        clazz = (*env)->FindClass( env, "com/spoledge/aacdecoder/BufferReader$Buffer");
+        javaDBR.bufferClazz = (jclass) (*env)->NewGlobalRef( env, clazz );
+        (*env)->DeleteLocalRef( env, clazz );
+        javaDBR.bufferData = (jfieldID) (*env)->GetFieldID( env, javaDBR.bufferClazz, "data", "Ljava/nio/ByteBuffer;");
+        javaDBR.bufferOffset = (jfieldID) (*env)->GetFieldID( env, javaDBR.bufferClazz, "offset", "I");
+        javaDBR.bufferSize = (jfieldID) (*env)->GetFieldID( env, javaDBR.bufferClazz, "size", "I");
+        javaDBR.bufferDiscontinuity = (jfieldID) (*env)->GetFieldID( env, javaDBR.bufferClazz, "discontinuity", "Z");
     }
 
-    jobject jbuffer = (*env)->CallObjectMethod( env, info->reader, javaABR.next );
+    aacd_save_tail( info );
+
+    jobject jbuffer = (*env)->CallObjectMethod( env, info->reader, javaDBR.next );
     
     if (!jbuffer) return NULL;
 
-    jbyteArray data = (jbyteArray) (*env)->GetObjectField( env, jbuffer, javaABR.bufferData );
-    jint size = (*env)->GetIntField( env, jbuffer, javaABR.bufferSize );
+    jobject data = (*env)->GetObjectField( env, jbuffer, javaDBR.bufferData );
+    jint offset = (*env)->GetIntField( env, jbuffer, javaDBR.bufferOffset );
+    jint size = (*env)->GetIntField( env, jbuffer, javaDBR.bufferSize );
+    jboolean discontinuity = (*env)->GetBooleanField( env, jbuffer, javaDBR.bufferDiscontinuity );
+
+    unsigned char *address = (unsigned char*) (*env)->GetDirectBufferAddress( env, data );
+
+    (*env)->DeleteLocalRef( env, data );
+    (*env)->DeleteLocalRef( env, jbuffer );
+
+    if (address == NULL)
+    {
+        AACD_ERROR( "read_buffer() not a direct buffer" );
+        return NULL;
+    }
+
+    if (!discontinuity) return aacd_prepare_buffer( info, address + offset, offset, size );
+
+    // a new stream (e.g. after a reconnect) - the partial frame of the old one is dropped
+    // and the decoding continues from the next sync word:
+    AACD_INFO( "read_buffer() discontinuity - dropping %lu bytes", info->bytesleft );
+
+    info->bytesleft = 0;
+    aacd_prepare_buffer( info, address + offset, offset, size );
 
-    return aacd_prepare_buffer( info, data, 0, size );
+    int pos = info->decoder->sync( info, info->buffer, info->bytesleft );
+
+    if (pos > 0)
+    {
+        info->buffer += pos;
+        info->bytesleft -= pos;
+    }
+
+    return info->buffer;
 }
 
 
@@ -326,13 +432,31 @@ static void aacd_decode( AACDInfo *info, jshort *samples, jint outLen )
         // check if input buffer is filled:
         if (info->bytesleft <= info->frame_max_bytesconsumed)
         {
-            AACD_TRACE( "decode() reading input buffer" );
-            aacd_read_buffer( info );
+            if (info->reader == NULL)
+            {
+                // at the end of the input the last frames are decoded too:
+                if (!info->push_eof)
+                {
+                    AACD_TRACE( "decode() waiting for more input (push mode)" );
+                    break;
+                }
 
-            if (info->bytesleft <= info->frame_max_bytesconsumed)
+                if (info->bytesleft == 0)
+                {
+                    AACD_INFO( "decode() detected end-of-input (push mode)" );
+                    break;
+                }
+            }
+            else
             {
-                AACD_INFO( "decode() detected end-of-file" );
-                break;
+                AACD_TRACE( "decode() reading input buffer" );
+                aacd_read_buffer( info );
+
+                if (info->bytesleft <= info->frame_max_bytesconsumed)
+                {
+                    AACD_INFO( "decode() detected end-of-file" );
+                    break;
+                }
             }
         }
 
@@ -354,6 +478,10 @@ static void aacd_decode( AACDInfo *info, jshort *samples, jint outLen )
                 if (info->bytesleft <= info->frame_max_bytesconsumed)
                 {
                     AACD_INFO( "decode() detected end-of-file after partial frame error" );
+
+                    // the rest of the input cannot be completed anymore:
+                    if (info->reader == NULL && info->push_eof) info->bytesleft = 0;
+
                     attempts = 0;
                     break;
                 }
@@ -400,6 +528,145 @@ static void aacd_decode( AACDInfo *info, jshort *samples, jint outLen )
 }
 
 
+/****************************************************************************************************
+ * FUNCTIONS - Push mode
+ ****************************************************************************************************/
+
+// the minimum input needed for starting the decoder in push mode:
+#define AACD_PUSH_START_BYTES 8192
+
+// if the decoder cannot be started with this amount of input, then it fails:
+#define AACD_PUSH_START_MAX_BYTES 65536
+
+
+/**
+ * Tries to start the decoder in push mode.
+ * At the end of the input (push_eof) it tries with whatever is buffered.
+ * @return 1 if started, 0 if more input is needed (or no stream was found at the end of the input), -1 on error
+ */
+static int aacd_push_start( AACDInfo *info )
+{
+    if (info->bytesleft < AACD_PUSH_START_BYTES && !info->push_eof) return 0;
+
+    while (info->bytesleft > 0)
+    {
+        int pos = info->decoder->sync( info, info->buffer, info->bytesleft );
+
+        if (pos < 0)
+        {
+            AACD_WARN( "push_start() SYNC word not found - waiting for more input" );
+
+            // keep the last bytes - they can be the beginning of the sync word:
+            if (info->push_eof) info->bytesleft = 0;
+            else if (info->bytesleft > 3)
+            {
+                info->buffer += info->bytesleft - 3;
+                info->bytesleft = 3;
+            }
+
+            return 0;
+        }
+
+        long err = info->decoder->start( info, info->buffer + pos, info->bytesleft - pos );
+
+        if (err < 0)
+        {
+            if (info->bytesleft >= AACD_PUSH_START_MAX_BYTES)
+            {
+                AACD_ERROR( "push_start() failed err=%ld", err );
+                return -1;
+            }
+
+            AACD_WARN( "push_start() failed err=%ld - skipping the SYNC word", err );
+
+            info->buffer += pos + 1;
+            info->bytesleft -= pos + 1;
+
+            // more input can complete the frame - unless there is no more input:
+            if (!info->push_eof) return 0;
+
+            continue;
+        }
+
+        info->buffer += pos + err;
+        info->bytesleft -= pos + err;
+        info->started = 1;
+
+        AACD_DEBUG( "push_start() started - bytesleft=%d", info->bytesleft );
+
+        return 1;
+    }
+
+    return 0;
+}
+
+
+/**
+ * Appends the input in push mode - always copies the data into the internal buffer.
+ */
+static void aacd_push_input( AACDInfo *info, unsigned char *data, jint len )
+{
+    if (len > 0) aacd_join_buffer( info, data, len );
+}
+
+
+/**
+ * Decodes all available input in push mode - never waits for more input.
+ * If the decoder was not started yet, then it tries to start it first.
+ * @return the number of samples or -1 on error
+ */
+static jlong aacd_push_drain( AACDInfo *info, jshort *samples, jint outLen )
+{
+    unsigned long first_samples = 0;
+    unsigned long first_bytes = 0;
+
+    info->round_frames = 0;
+    info->round_bytesconsumed = 0;
+    info->round_samples = 0;
+
+    if (!info->started)
+    {
+        unsigned long bytesleft = info->bytesleft;
+        int res = aacd_push_start( info );
+
+        if (res < 0) return -1;
+
+        if (res == 0)
+        {
+            aacd_decode_info2java( info );
+            return 0;
+        }
+
+        aacd_start_info2java( info, 0 );
+
+        // the first frame was decoded by the start function:
+        if (info->samples && info->frame_samples && info->frame_samples <= outLen)
+        {
+            memcpy( samples, info->samples, info->frame_samples * sizeof( jshort ));
+
+            first_samples = info->frame_samples;
+            first_bytes = bytesleft - info->bytesleft;
+
+            samples += first_samples;
+            outLen -= first_samples;
+        }
+    }
+
+    if (outLen >= info->frame_samples) aacd_decode( info, samples, outLen );
+
+    if (first_samples)
+    {
+        info->round_frames++;
+        info->round_bytesconsumed += first_bytes;
+        info->round_samples += first_samples;
+    }
+
+    aacd_decode_info2java( info );
+
+    return (jlong) info->round_samples;
+}
+
+
 /****************************************************************************************************
  * FUNCTIONS - JNI
  ****************************************************************************************************/
@@ -451,8 +718,9 @@ JNIEXPORT jint JNICALL Java_com_spoledge_aacdecoder_Decoder_nativeStart
 
     AACD_DEBUG( "start() bytesleft=%d", info->bytesleft );
 
-    aacd_start_info2java( info );
+    aacd_start_info2java( info, 1 );
 
+    info->started = 1;
     info->env = NULL;
 
     return (jint) info;
@@ -486,6 +754,152 @@ JNIEXPORT jint JNICALL Java_com_spoledge_aacdecoder_Decoder_nativeDecode
 }
 
 
+/*
+ * Class:     com_spoledge_aacdecoder_Decoder
+ * Method:    nativeDecodeDirect
+ * Signature: (JLjava/nio/ShortBuffer;I)J
+ */
+JNIEXPORT jlong JNICALL Java_com_spoledge_aacdecoder_Decoder_nativeDecodeDirect
+  (JNIEnv *env, jobject thiz, jlong jinfo, jobject outBuf, jint outLen)
+{
+    AACDInfo *info = (AACDInfo*) (intptr_t) jinfo;
+
+    // decode directly into the Java direct buffer - no internal output buffer:
+    jshort *jsamples = (jshort*) (*env)->GetDirectBufferAddress( env, outBuf );
+
+    if (jsamples == NULL)
+    {
+        AACD_ERROR( "decodeDirect() not a direct buffer" );
+        return -1;
+    }
+
+    info->env = env;
+
+    aacd_decode( info, jsamples, outLen );
+
+    aacd_decode_info2java( info );
+
+    info->env = NULL;
+
+    return (jlong) info->round_samples;
+}
+
+
+/*
+ * Class:     com_spoledge_aacdecoder_Decoder
+ * Method:    nativeStartPush
+ * Signature: (JLcom/spoledge/aacdecoder/Decoder$Info;)J
+ */
+JNIEXPORT jlong JNICALL Java_com_spoledge_aacdecoder_Decoder_nativeStartPush
+  (JNIEnv *env, jobject thiz, jlong decoder, jobject aacInfo)
+{
+    AACDDecoder *dec = decoder != 0 ? ((AACDDecoder*)(intptr_t)decoder) : &aacd_opencore_decoder;
+    AACDInfo *info = aacd_start( env, dec, NULL, aacInfo );
+
+    if (info->ext == NULL)
+    {
+        AACD_ERROR( "startPush() failed - decoder not initialized" );
+        info->env = env;
+        aacd_stop( info );
+
+        return 0;
+    }
+
+    return (jlong) (intptr_t) info;
+}
+
+
+/*
+ * Class:     com_spoledge_aacdecoder_Decoder
+ * Method:    nativeFeed
+ * Signature: (JLjava/nio/ByteBuffer;II)I
+ */
+JNIEXPORT jint JNICALL Java_com_spoledge_aacdecoder_Decoder_nativeFeed
+  (JNIEnv *env, jobject thiz, jlong jinfo, jobject inBuf, jint inOff, jint inLen)
+{
+    AACDInfo *info = (AACDInfo*) (intptr_t) jinfo;
+    unsigned char *data = (unsigned char*) (*env)->GetDirectBufferAddress( env, inBuf );
+
+    if (data == NULL)
+    {
+        AACD_ERROR( "feed() not a direct buffer" );
+        return -1;
+    }
+
+    aacd_push_input( info, data + inOff, inLen );
+
+    return 0;
+}
+
+
+/*
+ * Class:     com_spoledge_aacdecoder_Decoder
+ * Method:    nativeFeedArray
+ * Signature: (J[BII)I
+ */
+JNIEXPORT jint JNICALL Java_com_spoledge_aacdecoder_Decoder_nativeFeedArray
+  (JNIEnv *env, jobject thiz, jlong jinfo, jbyteArray inBuf, jint inOff, jint inLen)
+{
+    AACDInfo *info = (AACDInfo*) (intptr_t) jinfo;
+    unsigned char *data = (unsigned char*) (*env)->GetPrimitiveArrayCritical( env, inBuf, NULL );
+
+    if (data == NULL)
+    {
+        AACD_ERROR( "feed() cannot access the array" );
+        return -1;
+    }
+
+    aacd_push_input( info, data + inOff, inLen );
+
+    (*env)->ReleasePrimitiveArrayCritical( env, inBuf, data, JNI_ABORT );
+
+    return 0;
+}
+
+
+/*
+ * Class:     com_spoledge_aacdecoder_Decoder
+ * Method:    nativeDrain
+ * Signature: (JLjava/nio/ShortBuffer;I)J
+ */
+JNIEXPORT jlong JNICALL Java_com_spoledge_aacdecoder_Decoder_nativeDrain
+  (JNIEnv *env, jobject thiz, jlong jinfo, jobject outBuf, jint outLen)
+{
+    AACDInfo *info = (AACDInfo*) (intptr_t) jinfo;
+    jshort *jsamples = (jshort*) (*env)->GetDirectBufferAddress( env, outBuf );
+
+    if (jsamples == NULL)
+    {
+        AACD_ERROR( "drain() not a direct buffer" );
+        return -1;
+    }
+
+    info->env = env;
+
+    jlong ret = aacd_push_drain( info, jsamples, outLen );
+
+    info->env = NULL;
+
+    return ret;
+}
+
+
+/*
+ * Class:     com_spoledge_aacdecoder_Decoder
+ * Method:    nativeFinish
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_com_spoledge_aacdecoder_Decoder_nativeFinish
+  (JNIEnv *env, jobject thiz, jlong jinfo)
+{
+    AACDInfo *info = (AACDInfo*) (intptr_t) jinfo;
+
+    AACD_DEBUG( "finish() end of input - bytesleft=%d", info->bytesleft );
+
+    info->push_eof = 1;
+}
+
+
 /*
  * Class:     com_spoledge_aacdecoder_Decoder
  * Method:    nativeStop
@@ -44,6 +44,54 @@ JNIEXPORT jint JNICALL Java_com_spoledge_aacdecoder_Decoder_nativeStart
 JNIEXPORT jint JNICALL Java_com_spoledge_aacdecoder_Decoder_nativeDecode
   (JNIEnv *, jobject, jint, jshortArray, jint);
 
+/*
+ * Class:     com_spoledge_aacdecoder_Decoder
+ * Method:    nativeDecodeDirect
+ * Signature: (JLjava/nio/ShortBuffer;I)J
+ */
+JNIEXPORT jlong JNICALL Java_com_spoledge_aacdecoder_Decoder_nativeDecodeDirect
+  (JNIEnv *, jobject, jlong, jobject, jint);
+
+/*
+ * Class:     com_spoledge_aacdecoder_Decoder
+ * Method:    nativeStartPush
+ * Signature: (JLcom/spoledge/aacdecoder/Decoder$Info;)J
+ */
+JNIEXPORT jlong JNICALL Java_com_spoledge_aacdecoder_Decoder_nativeStartPush
+  (JNIEnv *, jobject, jlong, jobject);
+
+/*
+ * Class:     com_spoledge_aacdecoder_Decoder
+ * Method:    nativeFeed
+ * Signature: (JLjava/nio/ByteBuffer;II)I
+ */
+JNIEXPORT jint JNICALL Java_com_spoledge_aacdecoder_Decoder_nativeFeed
+  (JNIEnv *, jobject, jlong, jobject, jint, jint);
+
+/*
+ * Class:     com_spoledge_aacdecoder_Decoder
+ * Method:    nativeFeedArray
+ * Signature: (J[BII)I
+ */
+JNIEXPORT jint JNICALL Java_com_spoledge_aacdecoder_Decoder_nativeFeedArray
+  (JNIEnv *, jobject, jlong, jbyteArray, jint, jint);
+
+/*
+ * Class:     com_spoledge_aacdecoder_Decoder
+ * Method:    nativeDrain
+ * Signature: (JLjava/nio/ShortBuffer;I)J
+ */
+JNIEXPORT jlong JNICALL Java_com_spoledge_aacdecoder_Decoder_nativeDrain
+  (JNIEnv *, jobject, jlong, jobject, jint);
+
+/*
+ * Class:     com_spoledge_aacdecoder_Decoder
+ * Method:    nativeFinish
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_com_spoledge_aacdecoder_Decoder_nativeFinish
+  (JNIEnv *, jobject, jlong);
+
 /*
  * Class:     com_spoledge_aacdecoder_Decoder
  * Method:    nativeStop
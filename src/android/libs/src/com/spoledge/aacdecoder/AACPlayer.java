@@ -21,14 +21,26 @@ package com.spoledge.aacdecoder;
 
 import android.util.Log;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.SequenceInputStream;
 
 import java.net.HttpURLConnection;
+import java.net.InetAddress;
 import java.net.URL;
 import java.net.URLConnection;
 
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.SocketChannel;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
 
 /**
  * This is the AAC Stream player class.
@@ -43,6 +55,323 @@ import java.net.URLConnection;
  */
 public class AACPlayer {
 
+    /**
+     * The connection of the played stream - also opens the new connections when reconnecting.
+     * If the stream has more mirrors, then the first connection is chosen by probing them
+     * in parallel and the reconnects fail over to the next best mirror.
+     */
+    private final class StreamConnector implements ReconnectingBufferReader.Connector {
+        final String[] urls;
+
+        /**
+         * The mirrors ordered by MirrorStats when connecting - the next attempts go through it.
+         */
+        String[] order;
+
+        /**
+         * The current URL, connection and its input stream (null if read by the channel).
+         */
+        String url;
+        URLConnection conn;
+        InputStream is;
+
+        /**
+         * The beginning of the body already read by the probe - passed to the first reader.
+         */
+        byte[] head;
+
+        /**
+         * The content type of the first connection - the mirrors must provide the same.
+         */
+        String contentType;
+
+        /**
+         * The number of audio bytes passed to the decoder from the previous connections.
+         */
+        long delivered;
+
+        /**
+         * The reader reconnecting the stream - may be null.
+         */
+        ReconnectingBufferReader reconnecting;
+
+        StreamConnector( String[] urls ) {
+            this.urls = urls;
+            this.order = urls;
+            this.url = urls[0];
+        }
+
+        /**
+         * Opens the first connection - the fastest mirror wins.
+         */
+        URLConnection connectFirst() throws Exception {
+            if (urls.length == 1) conn = openConnection( url );
+            else probe();
+
+            contentType = conn.getContentType();
+
+            return conn;
+        }
+
+        /**
+         * Creates the reader of the connection and starts it.
+         * The channel is read by NioReaderEngine if possible, otherwise the input stream by a reader thread.
+         */
+        BufferReader open( URLConnection cn, int capacity ) throws Exception {
+            conn = cn;
+
+            byte[] prefix = head;
+            head = null;
+
+            // the metadata offsets of this connection follow the previous ones:
+            if (metadataQueue != null) metadataQueue.setInputBase( delivered );
+
+            BufferReader ret = nioEnabled ? createChannelReader( cn, capacity ) : null;
+
+            if (ret != null) {
+                // the probe read the beginning of the body (including the bytes read with the headers):
+                if (prefix != null) ((ChannelBufferReader) ret).setInitialData( ByteBuffer.wrap( prefix ));
+
+                ret.run(); // registers the reader with the engine - returns immediately
+            }
+            else {
+                is = prefix != null ?
+                        getInputStream( cn, new SequenceInputStream( new ByteArrayInputStream( prefix ), cn.getInputStream())) :
+                        getInputStream( cn );
+
+                ret = new BufferReader( capacity, is );
+                ret.setStartFill( startFillBytes );
+                execute( readerExecutor, ret );
+            }
+
+            return ret;
+        }
+
+        public BufferReader connect( int attempt, int capacity ) throws Exception {
+            if (stopped) return null;
+
+            MirrorStats stats = mirrorStats;
+
+            // the broken mirror goes to the end:
+            if (attempt == 1 && urls.length > 1 && stats != null) {
+                stats.failure( url );
+                order = stats.order( urls );
+            }
+
+            String u = order[ (attempt - 1) % order.length ];
+
+            Log.i( LOG, "Reconnecting " + u + " - attempt " + attempt );
+
+            URLConnection cn = null;
+
+            try {
+                cn = openConnection( u );
+
+                if (responseCodeCheckEnabled) checkResponseCode( cn );
+
+                String ct = cn.getContentType();
+
+                if (contentType != null && ct != null && !baseType( ct ).equals( baseType( contentType ))) {
+                    throw new IOException( "Different content type: " + ct + " - expected " + contentType );
+                }
+            }
+            catch (Exception e) {
+                if (urls.length > 1 && stats != null) stats.failure( u );
+
+                if (cn != null) {
+                    conn = cn;
+                    disconnect( null );
+                }
+
+                throw e;
+            }
+
+            url = u;
+
+            return open( cn, capacity );
+        }
+
+        public void disconnect( BufferReader reader ) {
+            // only the data which reached the decoder - not the rest of the stalled reader:
+            if (reader != null && reconnecting != null) delivered = reconnecting.getBytesReturned();
+
+            if (is != null) try { is.close(); } catch (IOException e) {}
+
+            AACPlayer.disconnect( conn );
+
+            is = null;
+            conn = null;
+        }
+
+        /**
+         * Probes the mirrors in parallel - in groups of MAX_PARALLEL_PROBES in the order of MirrorStats.
+         * The first mirror delivering a decodable frame wins; the other probes are cancelled.
+         */
+        private void probe() throws Exception {
+            MirrorStats stats = mirrorStats;
+
+            order = stats != null ? stats.order( urls ) : urls;
+
+            Exception error = null;
+
+            for (int i=0; i < order.length && !stopped; i += MAX_PARALLEL_PROBES) {
+                Probe[] probes = new Probe[ Math.min( MAX_PARALLEL_PROBES, order.length - i ) ];
+
+                for (int k=0; k < probes.length; k++) probes[k] = new Probe( order[ i+k ], this );
+
+                Probe winner = runProbes( probes );
+
+                for (Probe p : probes) {
+                    if (p == winner) continue;
+
+                    if (p.cancel()) continue;
+
+                    if (p.error != null) {
+                        Log.w( LOG, "probe(): mirror " + p.url + " failed: " + p.error );
+
+                        if (stats != null) stats.failure( p.url );
+                        if (error == null) error = p.error;
+                    }
+                }
+
+                if (winner != null) {
+                    Log.i( LOG, "probe(): mirror " + winner.url + " delivered the first frame in " + winner.ms + " ms" );
+
+                    if (stats != null) stats.success( winner.url, winner.ms );
+
+                    url = winner.url;
+                    conn = winner.conn;
+                    head = winner.head;
+
+                    return;
+                }
+            }
+
+            if (error != null) throw error;
+
+            throw new IOException( "No mirror connected" );
+        }
+
+        /**
+         * Runs the probes and waits for the first successful one.
+         * @return the winner or null if all failed (or the player was stopped)
+         */
+        private Probe runProbes( Probe[] probes ) throws InterruptedException {
+            for (Probe p : probes) {
+                try {
+                    execute( taskExecutor, p );
+                }
+                catch (RejectedExecutionException e) {
+                    // no thread available - probe it by this thread:
+                    p.run();
+                }
+            }
+
+            synchronized (this) {
+                while (!stopped) {
+                    Probe best = null;
+                    boolean all = true;
+
+                    for (Probe p : probes) {
+                        if (!p.done) all = false;
+                        else if (p.error == null && (best == null || p.ms < best.ms)) best = p;
+                    }
+
+                    if (best != null || all) return best;
+
+                    wait( PROBE_CHECK_INTERVAL_MS );
+                }
+            }
+
+            return null;
+        }
+
+        private String baseType( String ct ) {
+            int n = ct.indexOf( ';' );
+
+            return (n != -1 ? ct.substring( 0, n ) : ct).trim().toLowerCase();
+        }
+    }
+
+
+    /**
+     * One parallel connection attempt to a mirror - reads the body until the first decodable frame.
+     */
+    private final class Probe implements Runnable {
+        final String url;
+        final Object lock;
+
+        URLConnection conn;
+        byte[] head;
+        long ms;
+        Exception error;
+        boolean done;
+        boolean cancelled;
+
+        Probe( String url, Object lock ) {
+            this.url = url;
+            this.lock = lock;
+        }
+
+        public void run() {
+            long ts = System.currentTimeMillis();
+            URLConnection cn = null;
+            Exception err = null;
+            byte[] buf = null;
+
+            try {
+                cn = openConnection( url );
+
+                synchronized (lock) {
+                    conn = cn;
+                    if (cancelled) return;
+                }
+
+                if (responseCodeCheckEnabled) checkResponseCode( cn );
+
+                buf = readFirstFrame( cn );
+            }
+            catch (Exception e) {
+                err = e;
+            }
+            finally {
+                boolean close;
+
+                synchronized (lock) {
+                    close = cancelled || err != null;
+                    head = buf;
+                    error = err;
+                    ms = System.currentTimeMillis() - ts;
+                    done = true;
+                    lock.notifyAll();
+                }
+
+                if (close) disconnect( cn );
+            }
+        }
+
+        /**
+         * Cancels the probe - its connection is closed.
+         * @return true if it did not fail before
+         */
+        boolean cancel() {
+            URLConnection cn;
+
+            synchronized (lock) {
+                if (done && error != null) return false;
+
+                cancelled = true;
+                cn = conn;
+            }
+
+            // the connection is published after connect(), so this does not wait for it:
+            disconnect( cn );
+
+            return true;
+        }
+    }
+
+
     /**
      * The default expected bitrate.
      * Used only if not specified in play() methods.
@@ -64,29 +393,139 @@ public class AACPlayer {
     public static final int DEFAULT_DECODE_BUFFER_CAPACITY_MS = 700;
 
 
+    /**
+     * The default number of bytes needed to start decoding a stream.
+     * @see setStartFillBytes(int)
+     * @since 0.9
+     */
+    public static final int DEFAULT_START_FILL_BYTES = 4096;
+
+
+    /**
+     * The timeout of opening a connection in ms.
+     * @since 0.9
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 10000;
+
+
+    /**
+     * The maximum number of mirrors probed at once.
+     * @since 0.9
+     */
+    public static final int MAX_PARALLEL_PROBES = 3;
+
+
+    /**
+     * The maximum number of bytes read by a probe while searching for the first frame.
+     * @since 0.9
+     */
+    public static final int MAX_PROBE_BYTES = 16384;
+
+
     private static final String LOG = "AACPlayer";
 
+    /**
+     * How often the player checks the probes - e.g. if it was stopped meanwhile.
+     */
+    private static final int PROBE_CHECK_INTERVAL_MS = 250;
+
+    /**
+     * The bitrates of MPEG audio layer III in kb/s - MPEG-1 and MPEG-2/2.5.
+     */
+    private static final int[] MP3_BITRATES_V1 = { 0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320 };
+    private static final int[] MP3_BITRATES_V2 = { 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 };
+    private static final int[] MP3_SAMPLE_RATES = { 44100, 48000, 32000 };
+
+    /**
+     * The format of the last played stream - the guess for the audio output
+     * created while connecting.
+     */
+    private static volatile int lastSampleRate = 44100;
+    private static volatile int lastChannels = 2;
+
 
     ////////////////////////////////////////////////////////////////////////////
     // Attributes
     ////////////////////////////////////////////////////////////////////////////
 
-    protected boolean stopped;
+    protected volatile boolean stopped;
     protected boolean metadataEnabled = true;
     protected boolean responseCodeCheckEnabled = true;
+    protected boolean mappedFilesEnabled = true;
+    protected boolean nioEnabled = true;
+    protected boolean adaptiveBufferingEnabled = true;
+    protected boolean reconnectEnabled = true;
+    protected boolean timedMetadataEnabled = true;
 
     protected int audioBufferCapacityMs;
     protected int decodeBufferCapacityMs;
+    protected int pcmQueueDepth = PCMFeed.DEFAULT_QUEUE_DEPTH;
+    protected int startFillBytes = DEFAULT_START_FILL_BYTES;
+    protected int stallTimeoutMs = ReconnectingBufferReader.DEFAULT_STALL_TIMEOUT_MS;
     protected PlayerCallback playerCallback;
     protected String metadataCharEnc;
 
     protected Decoder decoder;
 
+    /**
+     * The executors - if null, then a new thread is created for each task.
+     * The reader, decoder and output tasks run for the whole playback,
+     * the short tasks (creating the AudioTrack, probing mirrors) are run by the task executor.
+     * @since 0.9
+     */
+    protected Executor readerExecutor;
+    protected Executor decoderExecutor;
+    protected Executor outputExecutor;
+    protected Executor taskExecutor;
+
     /**
      * The bit rate declared by the stream header - kb/s.
      */
     protected int declaredBitRate = -1;
 
+    /**
+     * The timings of the current startup - null when not starting.
+     * @since 0.9
+     */
+    protected StartupTimer startupTimer;
+
+    /**
+     * The cache of protocols which worked for the servers - may be null.
+     * @since 0.9
+     */
+    protected ProtocolCache protocolCache = ProtocolCache.getDefault();
+
+    /**
+     * The reader of the live stream being played - may be null.
+     * It is stopped by stop() and cleared when the playback ends.
+     * @since 0.9
+     */
+    protected volatile ReconnectingBufferReader reconnectingReader;
+
+    /**
+     * The reconnect statistics of the last live stream - taken when its playback ended.
+     */
+    private int lastReconnectCount;
+    private int lastFailedReconnectCount;
+    private long lastReconnectMs = -1;
+
+    /**
+     * The statistics of the mirrors - may be null.
+     * @since 0.9
+     */
+    protected MirrorStats mirrorStats = MirrorStats.getDefault();
+
+    /**
+     * The queue delaying the metadata of the played stream until they are heard - may be null.
+     * @since 0.9
+     */
+    protected TimedMetadataQueue metadataQueue;
+
+    /**
+     * The audio output created speculatively while connecting - may be null.
+     */
+    private AudioSink preparedSink;
+
     // variables used for computing average bitrate
     private int sumKBitSecRate = 0;
     private int countKBitSecRate = 0;
@@ -151,6 +590,53 @@ public class AACPlayer {
     }
 
 
+    /**
+     * Sets one executor for all tasks of this player.
+     * @see setExecutors(Executor,Executor,Executor)
+     * @since 0.9
+     */
+    public void setExecutor( Executor executor ) {
+        setExecutors( executor, executor, executor );
+        setTaskExecutor( executor );
+    }
+
+
+    /**
+     * Sets the executors used for running the tasks of this player instead of creating new threads.
+     * Every playback needs one task of each kind running for the whole playback,
+     * so the executors must not queue the tasks - e.g. a ThreadPoolExecutor with a SynchronousQueue.
+     * If an executor rejects a task, then the playback fails with playerException()
+     * - an executor can avoid it by running the excess tasks by extra threads.
+     * A null executor means that a new thread is created for each such task (the default).
+     *
+     * NOTE: this should be set BEFORE any of the play methods are called.
+     *
+     * @param readerExecutor the executor of the network / input reading tasks (BufferReader)
+     * @param decoderExecutor the executor of the decoding tasks (playAsync())
+     * @param outputExecutor the executor of the audio output tasks (PCMFeed)
+     * @see PlayerThreadFactory
+     * @since 0.9
+     */
+    public void setExecutors( Executor readerExecutor, Executor decoderExecutor, Executor outputExecutor ) {
+        this.readerExecutor = readerExecutor;
+        this.decoderExecutor = decoderExecutor;
+        this.outputExecutor = outputExecutor;
+    }
+
+
+    /**
+     * Sets the executor of the short tasks - creating the AudioTrack while connecting
+     * and probing the mirrors (at most MAX_PARALLEL_PROBES at once).
+     * Unlike the executors of setExecutors() this one may queue the tasks,
+     * so a small pool can be shared by all players without taking the threads of the playbacks.
+     * A null executor means that a new thread is created for each such task (the default).
+     * @since 0.9
+     */
+    public void setTaskExecutor( Executor taskExecutor ) {
+        this.taskExecutor = taskExecutor;
+    }
+
+
     /**
      * Sets the audio buffer (AudioTrack) capacity.
      * The capacity can be expressed in time of audio playing of such buffer.
@@ -199,6 +685,61 @@ public class AACPlayer {
     }
 
 
+    /**
+     * Sets the number of decoded chunks (each of the decode buffer capacity)
+     * which can be queued for the audio output.
+     * The higher value lets the decoder run further ahead and absorb CPU bursts,
+     * but needs more memory.
+     *
+     * NOTE: this should be set BEFORE any of the play methods are called.
+     *
+     * @param pcmQueueDepth the number of chunks - at least 2
+     * @since 0.9
+     */
+    public void setPCMQueueDepth( int pcmQueueDepth ) {
+        if (pcmQueueDepth < 2) throw new IllegalArgumentException( "At least 2 chunks needed: " + pcmQueueDepth );
+
+        this.pcmQueueDepth = pcmQueueDepth;
+    }
+
+
+    /**
+     * Returns the number of decoded chunks which can be queued for the audio output.
+     * @since 0.9
+     */
+    public int getPCMQueueDepth() {
+        return pcmQueueDepth;
+    }
+
+
+    /**
+     * Sets the number of input bytes needed to start decoding (the low-latency start).
+     * The first input buffer is passed to the decoder as soon as it has this size
+     * and the following buffers (and decoding rounds) double until they reach
+     * their full capacity. Without it the decoder waits for the whole input buffer
+     * (the decode buffer capacity at the expected bitrate), which takes long on slow networks.
+     * It should hold a few frames, so the stream can be detected.
+     * The default is DEFAULT_START_FILL_BYTES.
+     *
+     * NOTE: this should be set BEFORE any of the play methods are called.
+     *
+     * @param startFillBytes the number of bytes; 0 disables the low-latency start
+     * @since 0.9
+     */
+    public void setStartFillBytes( int startFillBytes ) {
+        this.startFillBytes = startFillBytes;
+    }
+
+
+    /**
+     * Returns the number of input bytes needed to start decoding; 0 means disabled.
+     * @since 0.9
+     */
+    public int getStartFillBytes() {
+        return startFillBytes;
+    }
+
+
     /**
      * Sets the PlayerCallback.
      * NOTE: this should be set BEFORE any of the play methods are called.
@@ -233,6 +774,26 @@ public class AACPlayer {
     }
 
 
+    /**
+     * Returns the flag if the metadata are sent to PlayerCallback when the matching audio is played.
+     * @since 0.9
+     */
+    public boolean getTimedMetadataEnabled() {
+        return timedMetadataEnabled;
+    }
+
+
+    /**
+     * Sets the flag if the metadata are sent to PlayerCallback when the matching audio is played.
+     * Otherwise they are sent as soon as they are received - several seconds sooner because of the buffers.
+     * This is enabled by default.
+     * @since 0.9
+     */
+    public void setTimedMetadataEnabled( boolean timedMetadataEnabled ) {
+        this.timedMetadataEnabled = timedMetadataEnabled;
+    }
+
+
     /**
      * Returns the flag if the HTTP / shoutcast response code should be checked or not.
      */
@@ -255,62 +816,325 @@ public class AACPlayer {
 
 
     /**
-     * Sets the encoding for the metadata strings.
-     * If not set, then UTF-8 is used.
+     * Returns the flag if local files are memory-mapped.
+     * @since 0.9
      */
-    public void setMetadataCharEnc( String metadataCharEnc ) {
-        this.metadataCharEnc = metadataCharEnc;
+    public boolean getMappedFilesEnabled() {
+        return mappedFilesEnabled;
     }
 
 
     /**
-     * Returns the bit-rate as declared by the stream metadata.
-     * @return the bitrate in kb/s or -1 if unknown
-     * @since 0.8
+     * Sets the flag if local files are memory-mapped and decoded in place
+     * instead of being read by a separate thread.
+     * This is enabled by default.
+     * @since 0.9
      */
-    public int getDeclaredBitRate() {
-        return declaredBitRate;
+    public void setMappedFilesEnabled( boolean mappedFilesEnabled ) {
+        this.mappedFilesEnabled = mappedFilesEnabled;
     }
 
 
     /**
-     * Plays a stream asynchronously.
-     * This method starts a new thread.
-     * @param url the URL of the stream or file
+     * Returns the flag if the non-blocking network engine is used.
+     * @since 0.9
      */
-    public void playAsync( final String url ) {
-        playAsync( url, -1 );
+    public boolean getNioEnabled() {
+        return nioEnabled;
     }
 
 
     /**
-     * Plays a stream asynchronously.
-     * This method starts a new thread.
-     * @param url the URL of the stream or file
-     * @param expectedKBitSecRate the expected average bitrate in kbit/sec; -1 means unknown
+     * Sets the flag if the non-blocking network engine (NioReaderEngine) is used
+     * for connections providing a SocketChannel (IcyURLConnection).
+     * Then all such streams are read by one shared thread instead of one thread per stream.
+     * Other connections are always read by the InputStream (and BufferReader thread).
+     * This is enabled by default.
+     * @since 0.9
      */
-    public void playAsync( final String url, final int expectedKBitSecRate ) {
-        new Thread(new Runnable() {
-            public void run() {
-                try {
-                    play( url, expectedKBitSecRate );
-                }
-                catch (Exception e) {
-                    Log.e( LOG, "playAsync():", e);
-
-                    if (playerCallback != null) playerCallback.playerException( e );
-                }
-            }
-        }).start();
+    public void setNioEnabled( boolean nioEnabled ) {
+        this.nioEnabled = nioEnabled;
     }
 
 
     /**
-     * Plays a stream synchronously.
-     * @param url the URL of the stream or file
+     * Returns the flag if the adaptive buffering is used.
+     * @since 0.9
      */
-    public void play( String url ) throws Exception {
-        play( url, -1 );
+    public boolean getAdaptiveBufferingEnabled() {
+        return adaptiveBufferingEnabled;
+    }
+
+
+    /**
+     * Sets the flag if the adaptive buffering (BufferingController) is used.
+     * Then the audio output starts sooner on steady networks and after underruns
+     * the start threshold and the input buffers grow - the changes are reported
+     * to the callback if it is a BufferingListener.
+     * Otherwise the output starts when the audio buffer is half full.
+     * This is enabled by default.
+     * @since 0.9
+     */
+    public void setAdaptiveBufferingEnabled( boolean adaptiveBufferingEnabled ) {
+        this.adaptiveBufferingEnabled = adaptiveBufferingEnabled;
+    }
+
+
+    /**
+     * Returns the flag if live streams are reconnected after network outages.
+     * @since 0.9
+     */
+    public boolean getReconnectEnabled() {
+        return reconnectEnabled;
+    }
+
+
+    /**
+     * Sets the flag if live streams (without Content-Length) are reconnected after network outages.
+     * When the stream stalls or fails, a new connection is opened in the background
+     * while the buffered audio is played - the decoder and the audio output keep running
+     * (see ReconnectingBufferReader).
+     * This is enabled by default.
+     * @since 0.9
+     */
+    public void setReconnectEnabled( boolean reconnectEnabled ) {
+        this.reconnectEnabled = reconnectEnabled;
+    }
+
+
+    /**
+     * Returns the time without any data which is considered as a stall.
+     * @since 0.9
+     */
+    public int getStallTimeoutMs() {
+        return stallTimeoutMs;
+    }
+
+
+    /**
+     * Sets the time without any data which is considered as a stall.
+     * It is used as the read timeout of the connections too, so a stalled read
+     * fails instead of blocking forever.
+     * @param stallTimeoutMs the timeout in ms; 0 means no timeout
+     * @since 0.9
+     */
+    public void setStallTimeoutMs( int stallTimeoutMs ) {
+        this.stallTimeoutMs = stallTimeoutMs;
+    }
+
+
+    /**
+     * Returns the number of successful reconnects of the last live stream.
+     * @since 0.9
+     */
+    public int getReconnectCount() {
+        ReconnectingBufferReader r = reconnectingReader;
+
+        return r != null ? r.getReconnectCount() : lastReconnectCount;
+    }
+
+
+    /**
+     * Returns the number of reconnects of the last live stream which failed after all attempts.
+     * @since 0.9
+     */
+    public int getFailedReconnectCount() {
+        ReconnectingBufferReader r = reconnectingReader;
+
+        return r != null ? r.getFailedReconnectCount() : lastFailedReconnectCount;
+    }
+
+
+    /**
+     * Returns the duration of the last successful reconnect of the last live stream.
+     * @return the time in ms or -1 if no reconnect happened
+     * @since 0.9
+     */
+    public long getLastReconnectMs() {
+        ReconnectingBufferReader r = reconnectingReader;
+
+        return r != null ? r.getLastReconnectMs() : lastReconnectMs;
+    }
+
+
+    /**
+     * Sets the cache of protocols which worked for the servers.
+     * By default the process-wide cache is used, so the servers answering "ICY 200 OK"
+     * are connected by IcyURLConnection at once - without the failed HTTP attempt.
+     * @param protocolCache the cache or null to always try HTTP first
+     * @since 0.9
+     */
+    public void setProtocolCache( ProtocolCache protocolCache ) {
+        this.protocolCache = protocolCache;
+    }
+
+
+    /**
+     * Returns the cache of protocols or null if not used.
+     * @since 0.9
+     */
+    public ProtocolCache getProtocolCache() {
+        return protocolCache;
+    }
+
+
+    /**
+     * Sets the statistics of the mirrors used by play( String[] ).
+     * By default the process-wide statistics are used.
+     * @param mirrorStats the statistics or null to always keep the order of the mirrors
+     * @since 0.9
+     */
+    public void setMirrorStats( MirrorStats mirrorStats ) {
+        this.mirrorStats = mirrorStats;
+    }
+
+
+    /**
+     * Returns the statistics of the mirrors or null if not used.
+     * @since 0.9
+     */
+    public MirrorStats getMirrorStats() {
+        return mirrorStats;
+    }
+
+
+    /**
+     * Sets the encoding for the metadata strings.
+     * If not set, then UTF-8 is used.
+     */
+    public void setMetadataCharEnc( String metadataCharEnc ) {
+        this.metadataCharEnc = metadataCharEnc;
+    }
+
+
+    /**
+     * Returns the bit-rate as declared by the stream metadata.
+     * @return the bitrate in kb/s or -1 if unknown
+     * @since 0.8
+     */
+    public int getDeclaredBitRate() {
+        return declaredBitRate;
+    }
+
+
+    /**
+     * Plays a stream asynchronously.
+     * This method starts a new thread.
+     * @param url the URL of the stream or file
+     */
+    public void playAsync( final String url ) {
+        playAsync( url, -1 );
+    }
+
+
+    /**
+     * Prepares the process for playing the URL - e.g. when the user is choosing a station.
+     * The native library is loaded and the host name of the URL is resolved (into the DNS cache),
+     * so a later play() does not wait for it. This returns immediately.
+     * @param url the URL of the stream or file
+     * @param executor the executor running the preparation; null means a new thread
+     * @since 0.9
+     */
+    public static void prefetch( final String url, Executor executor ) {
+        Runnable task = new Runnable() {
+            public void run() {
+                long ts = System.currentTimeMillis();
+
+                Decoder.loadLibrary();
+
+                long tsLib = System.currentTimeMillis();
+                String host = null;
+
+                try {
+                    host = new URL( url ).getHost();
+
+                    if (host != null && host.length() > 0) InetAddress.getAllByName( host );
+                }
+                catch (Exception e) {
+                    // play() will report it:
+                    Log.d( LOG, "prefetch(): " + e );
+                }
+
+                Log.i( LOG, "prefetch(): library=" + (tsLib - ts) + " ms, dns(" + host + ")="
+                            + (System.currentTimeMillis() - tsLib) + " ms" );
+            }
+        };
+
+        try {
+            if (executor != null) executor.execute( task );
+            else new Thread( task ).start();
+        }
+        catch (RejectedExecutionException e) {
+            Log.d( LOG, "prefetch(): no thread available - skipped" );
+        }
+    }
+
+
+    /**
+     * Plays a stream asynchronously.
+     * This method starts a new thread or uses the decoder executor.
+     * @param url the URL of the stream or file
+     * @param expectedKBitSecRate the expected average bitrate in kbit/sec; -1 means unknown
+     */
+    public void playAsync( final String url, final int expectedKBitSecRate ) {
+        try {
+            execute( decoderExecutor, new Runnable() {
+                public void run() {
+                    try {
+                        play( url, expectedKBitSecRate );
+                    }
+                    catch (Exception e) {
+                        Log.e( LOG, "playAsync():", e);
+
+                        if (playerCallback != null) playerCallback.playerException( e );
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            Log.e( LOG, "playAsync(): no thread available - " + e );
+
+            if (playerCallback != null) playerCallback.playerException( e );
+        }
+    }
+
+
+    /**
+     * Plays a stream with more mirrors asynchronously.
+     * This method starts a new thread or uses the decoder executor.
+     * @param urls the URLs of the mirrors of the stream - see play( String[], int )
+     * @param expectedKBitSecRate the expected average bitrate in kbit/sec; -1 means unknown
+     * @since 0.9
+     */
+    public void playAsync( final String[] urls, final int expectedKBitSecRate ) {
+        try {
+            execute( decoderExecutor, new Runnable() {
+                public void run() {
+                    try {
+                        play( urls, expectedKBitSecRate );
+                    }
+                    catch (Exception e) {
+                        Log.e( LOG, "playAsync():", e);
+
+                        if (playerCallback != null) playerCallback.playerException( e );
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            Log.e( LOG, "playAsync(): no thread available - " + e );
+
+            if (playerCallback != null) playerCallback.playerException( e );
+        }
+    }
+
+
+    /**
+     * Plays a stream synchronously.
+     * @param url the URL of the stream or file
+     */
+    public void play( String url ) throws Exception {
+        play( url, -1 );
     }
 
 
@@ -322,38 +1146,120 @@ public class AACPlayer {
      *      when setting this parameter, then the declared bit-rate from the stream header is ignored
      */
     public void play( String url, int expectedKBitSecRate ) throws Exception {
-        declaredBitRate = -1;
+        if (url.indexOf( ':' ) > 0) play( new String[] { url }, expectedKBitSecRate );
+        else {
+            declaredBitRate = -1;
 
-        if (url.indexOf( ':' ) > 0) {
-            URLConnection cn = openConnection( url );
-            InputStream is = null;
+            processFileType( url );
+            FileInputStream is = new FileInputStream( url );
 
             try {
-                if (responseCodeCheckEnabled) checkResponseCode( cn );
-                processHeaders( cn );
-                is = getInputStream( cn );
+                MappedBufferReader reader = mappedFilesEnabled ? MappedBufferReader.map( is.getChannel()) : null;
 
-                // try to get the expectedKBitSecRate from headers
-                // but if then expectedKBitSecRate is passed, then ignore the declared one:
-                play( is, expectedKBitSecRate != -1 ? expectedKBitSecRate : declaredBitRate );
+                if (reader != null) {
+                    // the mapping stays valid after the file is closed:
+                    try { is.close(); } catch (Throwable t) {}
+
+                    expectedKBitSecRate = prepare( expectedKBitSecRate );
+                    playImpl( reader, expectedKBitSecRate );
+                }
+                else play( is, expectedKBitSecRate );
             }
             finally {
                 try { is.close(); } catch (Throwable t) {}
+            }
+        }
+    }
+
+
+    /**
+     * Plays a stream published by more mirrors synchronously.
+     * The mirrors are probed in parallel (at most MAX_PARALLEL_PROBES at once, the best ones
+     * according to MirrorStats first) and the mirror which delivers the first decodable frame
+     * fastest is played. When the stream breaks, it is reconnected to the next best mirror
+     * (see setReconnectEnabled()). The mirrors must provide the same content type.
+     * @param urls the URLs of the mirrors in the preferred order - one URL means no probing
+     * @param expectedKBitSecRate the expected average bitrate in kbit/sec;
+     *      -1 means unknown;
+     *      when setting this parameter, then the declared bit-rate from the stream header is ignored
+     * @since 0.9
+     */
+    public void play( String[] urls, int expectedKBitSecRate ) throws Exception {
+        if (urls == null || urls.length == 0) throw new IllegalArgumentException( "No URL" );
+
+        // the probes watch the flag - the previous playback left it set:
+        stopped = false;
+        declaredBitRate = -1;
+
+        // the audio output is created while connecting:
+        startupTimer = new StartupTimer();
+        prepareAudioSink();
+
+        StreamConnector connector = new StreamConnector( urls );
+
+        if (metadataEnabled && timedMetadataEnabled) metadataQueue = new TimedMetadataQueue( playerCallback );
+
+        try {
+            URLConnection cn = connector.connectFirst();
+            startupTimer.phase( "connect" );
+
+            if (responseCodeCheckEnabled) checkResponseCode( cn );
+            processHeaders( cn );
+            startupTimer.phase( "headers" );
+
+            if (cn instanceof IcyURLConnection) {
+                IcyURLConnection icy = (IcyURLConnection) cn;
+
+                Log.d( LOG, "play(): response head read in " + icy.getHeadNanos() / 1000 + " us" );
+
+                if (icy.getHandshakeNanos() != -1) {
+                    Log.d( LOG, "play(): TLS handshake in " + icy.getHandshakeNanos() / 1000 + " us"
+                                + (icy.isSessionResumed() ? " (session resumed)" : ""));
+                }
 
-                if (cn instanceof HttpURLConnection) {
-                    try { ((HttpURLConnection)cn).disconnect(); } catch (Throwable t) {}
+                if (!icy.getURL().equals( icy.getEffectiveURL())) {
+                    Log.i( LOG, "play(): redirected to " + icy.getEffectiveURL() + (icy.isChunked() ? " (chunked)" : ""));
                 }
             }
+
+            // try to get the expectedKBitSecRate from headers
+            // but if then expectedKBitSecRate is passed, then ignore the declared one:
+            if (expectedKBitSecRate == -1) expectedKBitSecRate = declaredBitRate;
+
+            expectedKBitSecRate = prepare( expectedKBitSecRate );
+
+            BufferReader reader = connector.open( cn, computeInputBufferSize( expectedKBitSecRate, decodeBufferCapacityMs ));
+
+            // live streams are reconnected after network outages:
+            if (reconnectEnabled && cn.getContentLength() < 0) {
+                ReconnectingBufferReader rr = new ReconnectingBufferReader( reader, connector, playerCallback );
+                connector.reconnecting = rr;
+                rr.setStallTimeoutMs( stallTimeoutMs );
+
+                reconnectingReader = rr;
+                reader = rr;
+            }
+
+            playImpl( reader, expectedKBitSecRate );
         }
-        else {
-            processFileType( url );
-            InputStream is = new FileInputStream( url );
+        finally {
+            releasePreparedSink();
+            startupTimer = null;
 
-            try {
-                play( is, expectedKBitSecRate );
+            ReconnectingBufferReader rr = reconnectingReader;
+
+            if (rr != null) {
+                lastReconnectCount = rr.getReconnectCount();
+                lastFailedReconnectCount = rr.getFailedReconnectCount();
+                lastReconnectMs = rr.getLastReconnectMs();
+                reconnectingReader = null;
             }
-            finally {
-                try { is.close(); } catch (Throwable t) {}
+
+            connector.disconnect( null );
+
+            if (metadataQueue != null) {
+                metadataQueue.clear();
+                metadataQueue = null;
             }
         }
     }
@@ -374,14 +1280,7 @@ public class AACPlayer {
      * @param expectedKBitSecRate the expected average bitrate in kbit/sec; -1 means unknown
      */
     public final void play( InputStream is, int expectedKBitSecRate ) throws Exception {
-        stopped = false;
-
-        if (playerCallback != null) playerCallback.playerStarted();
-
-        if (expectedKBitSecRate <= 0) expectedKBitSecRate = DEFAULT_EXPECTED_KBITSEC_RATE;
-
-        sumKBitSecRate = 0;
-        countKBitSecRate = 0;
+        expectedKBitSecRate = prepare( expectedKBitSecRate );
 
         playImpl( is, expectedKBitSecRate );
     }
@@ -392,6 +1291,10 @@ public class AACPlayer {
      */
     public void stop() {
         stopped = true;
+
+        // a reconnect of a live stream is interrupted too:
+        ReconnectingBufferReader rr = reconnectingReader;
+        if (rr != null) rr.stop();
     }
 
 
@@ -409,20 +1312,36 @@ public class AACPlayer {
         BufferReader reader = new BufferReader(
                                         computeInputBufferSize( expectedKBitSecRate, decodeBufferCapacityMs ),
                                         is );
-        new Thread( reader ).start();
+        reader.setStartFill( startFillBytes );
+        execute( readerExecutor, reader );
+
+        playImpl( reader, expectedKBitSecRate );
+    }
+
 
+    /**
+     * Plays data provided by the reader synchronously.
+     * The reader must be already running (if it needs a thread); it is stopped at the end.
+     * @param reader the reader - e.g. BufferReader or MappedBufferReader
+     * @param expectedKBitSecRate the expected average bitrate in kbit/sec
+     * @since 0.9
+     */
+    protected void playImpl( BufferReader reader, int expectedKBitSecRate ) throws Exception {
         PCMFeed pcmfeed = null;
-        Thread pcmfeedThread = null;
+        boolean pcmfeedStarted = false;
 
         // profiling info
         long profMs = 0;
         long profSamples = 0;
         long profSampleRate = 0;
         int profCount = 0;
+        long tsPlay = System.currentTimeMillis();
 
         try {
             Decoder.Info info = decoder.start( reader );
 
+            if (startupTimer != null) startupTimer.phase( "decoder" );
+
             Log.d( LOG, "play(): samplerate=" + info.getSampleRate() + ", channels=" + info.getChannels());
 
             profSampleRate = info.getSampleRate() * info.getChannels();
@@ -431,17 +1350,36 @@ public class AACPlayer {
                 throw new RuntimeException("Too many channels detected: " + info.getChannels());
             }
 
-            // 3 buffers for result samples:
-            //   - one is used by decoder
-            //   - one is used by the PCMFeeder
-            //   - one is enqueued / passed to PCMFeeder - non-blocking op
-            short[][] decodeBuffers = createDecodeBuffers( 3, info );
-            short[] decodeBuffer = decodeBuffers[0]; 
-            int decodeBufferIndex = 0;
+            // the decoder writes directly into the chunks of the PCMFeed queue
+            // and they are passed to AudioTrack without copying:
+            int decodeSamples = PCMFeed.msToSamples( decodeBufferCapacityMs, info.getSampleRate(), info.getChannels());
+
+            // the low-latency start: the first rounds are shorter, so the samples
+            // are passed to the output sooner; then they double up to the full size:
+            int roundSamples = decodeSamples;
+
+            if (startFillBytes > 0) {
+                roundSamples = decodeSamples / 8;
+                if (roundSamples < info.getFrameSamples()) roundSamples = info.getFrameSamples();
+            }
 
             pcmfeed = createPCMFeed( info );
-            pcmfeedThread = new Thread( pcmfeed );
-            pcmfeedThread.start();
+
+            // the metadata are released when the playback head reaches the matching samples:
+            TimedMetadataQueue mq = metadataQueue;
+            if (mq != null) pcmfeed.setMetadataQueue( mq );
+
+            BufferingController bc = adaptiveBufferingEnabled ? createBufferingController( info ) : null;
+            int inputBufferMs = decodeBufferCapacityMs;
+
+            if (bc != null) {
+                bc.setBitRate( expectedKBitSecRate );
+                pcmfeed.setBufferingController( bc );
+                reader.setBufferingController( bc );
+            }
+
+            execute( outputExecutor, pcmfeed );
+            pcmfeedStarted = true;
 
             if (info.getFirstSamples() != null) {
                 short[] firstSamples = info.getFirstSamples();
@@ -449,31 +1387,60 @@ public class AACPlayer {
 
                 pcmfeed.feed( firstSamples, firstSamples.length );
                 info.setFirstSamples( null );
+
+                if (mq != null) mq.decoded( info.getRoundBytesConsumed(), firstSamples.length );
             }
 
             do {
+                // waits if the queue is full:
+                ShortBuffer chunk = pcmfeed.acquireChunk( decodeSamples );
+                if (chunk == null) break;
+
                 long tsStart = System.currentTimeMillis();
 
-                info = decoder.decode( decodeBuffer, decodeBuffer.length );
+                info = decoder.decode( chunk, roundSamples );
                 int nsamp = info.getRoundSamples();
 
+                if (mq != null) mq.decoded( info.getRoundBytesConsumed(), nsamp );
+
                 profMs += System.currentTimeMillis() - tsStart;
                 profSamples += nsamp;
                 profCount++;
 
+                if (profCount == 1) {
+                    Log.i( LOG, "play(): first samples decoded after " + (System.currentTimeMillis() - tsPlay) + " ms" );
+
+                    if (startupTimer != null) {
+                        startupTimer.phase( "firstSamples" );
+                        Log.i( LOG, "play(): startup " + startupTimer );
+                    }
+                }
+
+                if (roundSamples < decodeSamples) {
+                    roundSamples <<= 1;
+                    if (roundSamples > decodeSamples) roundSamples = decodeSamples;
+                }
+
                 Log.d( LOG, "play(): decoded " + nsamp + " samples" );
 
                 if (nsamp == 0 || stopped) break;
-                if (!pcmfeed.feed( decodeBuffer, nsamp ) || stopped) break;
+                if (!pcmfeed.publishChunk( nsamp ) || stopped) break;
 
                 int kBitSecRate = computeAvgKBitSecRate( info );
+                int ms = bc != null ? bc.getInputBufferMs() : decodeBufferCapacityMs;
+
                 if (Math.abs(expectedKBitSecRate - kBitSecRate) > 1) {
                     Log.i( LOG, "play(): changing kBitSecRate: " + expectedKBitSecRate + " -> " + kBitSecRate );
-                    reader.setCapacity( computeInputBufferSize( kBitSecRate, decodeBufferCapacityMs ));
+                    reader.setCapacity( computeInputBufferSize( kBitSecRate, ms ));
+                    if (bc != null) bc.setBitRate( kBitSecRate );
                     expectedKBitSecRate = kBitSecRate;
+                    inputBufferMs = ms;
+                }
+                else if (ms != inputBufferMs) {
+                    Log.i( LOG, "play(): changing input buffer: " + inputBufferMs + " -> " + ms + " ms" );
+                    reader.setCapacity( computeInputBufferSize( kBitSecRate, ms ));
+                    inputBufferMs = ms;
                 }
-
-                decodeBuffer = decodeBuffers[ ++decodeBufferIndex % 3 ];
             } while (!stopped);
         }
         finally {
@@ -483,6 +1450,7 @@ public class AACPlayer {
             if (pcmfeed != null) pcmfeed.stop( !stopImmediatelly );
             decoder.stop();
             reader.stop();
+            reader.close();
 
             int perf = 0;
 
@@ -497,13 +1465,24 @@ public class AACPlayer {
                     + " %  (the higher, the better; negative means that decoding is slower than needed by audio)");
             }
 
-            if (pcmfeedThread != null) pcmfeedThread.join();
+            if (pcmfeedStarted) pcmfeed.join();
 
             if (playerCallback != null) playerCallback.playerStopped( perf );
         }
     }
 
 
+    /**
+     * Runs the task by the executor or in a new thread if the executor is null.
+     * @throws RejectedExecutionException if the executor cannot accept the task
+     * @since 0.9
+     */
+    protected void execute( Executor executor, Runnable task ) {
+        if (executor != null) executor.execute( task );
+        else new Thread( task ).start();
+    }
+
+
     protected Decoder createDecoder() {
         return Decoder.create();
     }
@@ -525,7 +1504,82 @@ public class AACPlayer {
     protected PCMFeed createPCMFeed( Decoder.Info info ) {
         int size = PCMFeed.msToBytes( audioBufferCapacityMs, info.getSampleRate(), info.getChannels());
 
-        return new PCMFeed( info.getSampleRate(), info.getChannels(), size, playerCallback );
+        lastSampleRate = info.getSampleRate();
+        lastChannels = info.getChannels();
+
+        // the sink created while connecting - it checks the format itself:
+        AudioSink sink = preparedSink;
+        preparedSink = null;
+
+        if (sink == null) sink = createAudioSink( info );
+
+        return new PCMFeed( info.getSampleRate(), info.getChannels(), size, playerCallback, pcmQueueDepth, sink );
+    }
+
+
+    /**
+     * Creates the adaptive buffering controller.
+     * Subclasses may override it to tune the controller.
+     * @since 0.9
+     */
+    protected BufferingController createBufferingController( Decoder.Info info ) {
+        return new BufferingController( audioBufferCapacityMs, decodeBufferCapacityMs, playerCallback );
+    }
+
+
+    /**
+     * Creates the audio output.
+     * Actually this method creates AudioTrackSink, but subclasses may override it
+     * - e.g. with NullAudioSink for measuring the player without any audio hardware.
+     * @param info the stream info or null if the sink is created in advance while connecting
+     * @since 0.9
+     */
+    protected AudioSink createAudioSink( Decoder.Info info ) {
+        return new AudioTrackSink( playerCallback );
+    }
+
+
+    /**
+     * Starts creating the audio output in parallel with connecting the stream.
+     * The AudioTrack is created in the task executor with the format of the last
+     * played stream (44.1 kHz stereo at first); if the stream has another format,
+     * then it is created again when the output is opened.
+     * @since 0.9
+     */
+    protected void prepareAudioSink() {
+        AudioSink sink = createAudioSink( null );
+
+        if (!(sink instanceof AudioTrackSink)) return;
+
+        final AudioTrackSink atsink = (AudioTrackSink) sink;
+        final int sampleRate = lastSampleRate;
+        final int channels = lastChannels;
+        final StartupTimer timer = startupTimer;
+
+        try {
+            execute( taskExecutor, new Runnable() {
+                public void run() {
+                    long ts = System.currentTimeMillis();
+
+                    try {
+                        atsink.prepare( sampleRate, channels,
+                                        PCMFeed.msToBytes( audioBufferCapacityMs, sampleRate, channels ));
+                    }
+                    catch (Throwable t) {
+                        Log.w( LOG, "prepareAudioSink(): cannot create the AudioTrack: " + t );
+                    }
+
+                    if (timer != null) timer.parallel( "sink", ts );
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            Log.d( LOG, "prepareAudioSink(): no thread available - skipped" );
+
+            return;
+        }
+
+        preparedSink = atsink;
     }
 
 
@@ -537,72 +1591,37 @@ public class AACPlayer {
      * and does not allow SHOUTCAST response "ICY 200 OK".
      * If we detect this, we try to use alternate protocol "icy" and 
      * our auxiliar implementation - IcyURLConnection.
+     * HTTPS streams are re-connected the same way by the protocol "icys" (ICY over TLS).
+     * Such servers are remembered by the protocol cache (if set), so the next connections
+     * use ICY at once.
      * NOTE: URL.setURLStreamHandlerFactory() must be called - this library does not call it
      * itself.
      */
     protected URLConnection openConnection( String url ) throws IOException {
-        URLConnection conn = null;
-        boolean close = true;
+        ProtocolCache cache = protocolCache;
+        URL httpUrl = cache != null && (url.startsWith( "http:" ) || url.startsWith( "https:" )) ? new URL( url ) : null;
 
-        while (true) {
-            conn = new URL( url ).openConnection();
-
-            prepareConnection( conn );
-            conn.connect();
+        // do not try HTTP when the server is known to answer by ICY:
+        if (httpUrl != null && ProtocolCache.ICY.equals( cache.get( httpUrl ))) {
+            // "http:" -> "icy:", "https:" -> "icys:"
+            String icyUrl = "icy" + url.substring( 4 );
+            Log.i( LOG, "Known ICY server - connecting as " + icyUrl );
 
             try {
-                if (conn instanceof HttpURLConnection) {
-                    HttpURLConnection httpConn = (HttpURLConnection) conn;
-
-                    try {
-                        // pre-KitKat returns -1:
-                        if (httpConn.getResponseCode() == -1) {
-                            if (!responseCodeCheckEnabled) {
-                                Log.w( LOG, "No response code, but ignoring - for url " + url );
-                                close = false;
-                                break;
-                            }
-                            else {
-                                Log.w( LOG, "No response code for url " + url );
-                            }
-                        }
-                        else {
-                            // standard HTTP response / IcyURLConnection response
-                            close = false;
-                            break;
-                        }
-                    }
-                    catch (Exception e) {
-                        // KitKat throws exception:
-                        // java.net.ProtocolException: Unexpected status line: ICY 200 OK
-                        Log.w( LOG, "Invalid response code for url " + url + " - " + e );
-                    }
-                }
-                else if (conn.getHeaderFields() == null) {
-                    // sanity code
-                    Log.w( LOG, "No header fields in response for url " + url );
-                }
-                else {
-                    close = false;
-                    break;
-                }
-
-                if (url.startsWith( "http:" )) {
-                    url = "icy" + url.substring( 4 );
-                    Log.i( LOG, "Trying to re-connect as ICY url " + url );
-                }
-                else throw new IOException( "Invalid response - no response code / headers detected" );
+                return connect( icyUrl );
             }
-            finally {
-                if (close) {
-                    if (conn instanceof HttpURLConnection) {
-                        try { ((HttpURLConnection)conn).disconnect(); } catch (Throwable t) {}
-                    }
-                    conn = null;
-                }
+            catch (IOException e) {
+                Log.w( LOG, "Cannot connect as ICY - trying HTTP again: " + e );
+                cache.remove( httpUrl );
             }
         }
 
+        URLConnection conn = connect( url );
+
+        if (httpUrl != null && conn.getURL().getProtocol().startsWith( ProtocolCache.ICY )) {
+            cache.put( httpUrl, ProtocolCache.ICY );
+        }
+
         return conn;
     }
 
@@ -610,11 +1629,16 @@ public class AACPlayer {
     /**
      * Prepares the connection.
      * This method is called before a connection is opened.
-     * Actually sets "Icy-MetaData" header to "1" if metadata are enabled.
+     * Actually sets "Icy-MetaData" header to "1" if metadata are enabled
+     * and the connect and read timeouts.
      */
     protected void prepareConnection( URLConnection conn ) {
         // request for dynamic metadata:
         if (metadataEnabled) conn.setRequestProperty("Icy-MetaData", "1");
+
+        // a stalled connection fails instead of blocking forever:
+        conn.setConnectTimeout( DEFAULT_CONNECT_TIMEOUT_MS );
+        if (stallTimeoutMs > 0) conn.setReadTimeout( stallTimeoutMs );
     }
 
 
@@ -648,14 +1672,79 @@ public class AACPlayer {
      * Actually returns the underlying stream or IcyInputStream.
      */
     protected InputStream getInputStream( URLConnection conn ) throws Exception {
+        return getInputStream( conn, conn.getInputStream());
+    }
+
+
+    /**
+     * Gets the input stream from the connection - the body is read from the passed stream.
+     * Actually returns the passed stream or IcyInputStream.
+     * @param raw the body of the connection, e.g. prefixed by the bytes already read
+     * @since 0.9
+     */
+    protected InputStream getInputStream( URLConnection conn, InputStream raw ) throws Exception {
+        InputStream ret = raw;
+        int period = getMetadataPeriod( conn );
+
+        if (period > 0) {
+            IcyInputStream icy = new IcyInputStream( ret, period, playerCallback, metadataCharEnc );
+            icy.setMetadataQueue( metadataQueue );
+            ret = icy;
+        }
+
+        return ret;
+    }
+
+
+    /**
+     * Creates the reader of the connection's SocketChannel.
+     * The reader is served by NioReaderEngine - no thread per stream is needed.
+     * @param capacity the capacity of one buffer in bytes
+     * @return the reader or null if the connection does not provide a channel
+     * @since 0.9
+     */
+    protected BufferReader createChannelReader( URLConnection conn, int capacity ) throws Exception {
+        if (!(conn instanceof IcyURLConnection)) return null;
+
+        SocketChannel channel = ((IcyURLConnection) conn).getChannel();
+
+        if (channel == null) return null;
+
+        int period = getMetadataPeriod( conn );
+
+        Log.i( LOG, "Reading the stream by the non-blocking engine" );
+
+        IcyMetadataFilter filter = null;
+
+        if (period > 0) {
+            filter = new IcyMetadataFilter( period, playerCallback, metadataCharEnc );
+            filter.setMetadataQueue( metadataQueue );
+        }
+
+        ChannelBufferReader ret = new ChannelBufferReader( capacity, channel, filter );
+
+        ret.setStartFill( startFillBytes );
+
+        // the beginning of the body was read together with the headers:
+        ret.setInitialData( ((IcyURLConnection) conn).getBodyStart());
+
+        return ret;
+    }
+
+
+    /**
+     * Returns the period of the dynamic metadata.
+     * @return the period in bytes or -1 if the metadata are not enabled or not provided
+     * @since 0.9
+     */
+    protected int getMetadataPeriod( URLConnection conn ) {
         String smetaint = conn.getHeaderField( "icy-metaint" );
-        InputStream ret = conn.getInputStream();
+        int period = -1;
 
         if (!metadataEnabled) {
             Log.i( LOG, "Metadata not enabled" );
         }
         else if (smetaint != null) {
-            int period = -1;
             try {
                 period = Integer.parseInt( smetaint );
             }
@@ -663,15 +1752,11 @@ public class AACPlayer {
                 Log.e( LOG, "The icy-metaint '" + smetaint + "' cannot be parsed: '" + e );
             }
 
-            if (period > 0) {
-                Log.i( LOG, "The dynamic metainfo is sent every " + period + " bytes" );
-
-                ret = new IcyInputStream( ret, period, playerCallback, metadataCharEnc );
-            }
+            if (period > 0) Log.i( LOG, "The dynamic metainfo is sent every " + period + " bytes" );
         }
         else Log.i( LOG, "This stream does not provide dynamic metainfo" );
 
-        return ret;
+        return period;
     }
 
 
@@ -733,14 +1818,21 @@ public class AACPlayer {
 
 
     protected int computeAvgKBitSecRate( Decoder.Info info ) {
-        // do not change the value after a while - avoid changing of the out buffer:
-        if (countKBitSecRate < 64) {
+        int frames = info.getRoundFrames();
+
+        if (frames > 0) {
             int kBitSecRate = computeKBitSecRate( info );
-            int frames = info.getRoundFrames();
 
             sumKBitSecRate += kBitSecRate * frames;
             countKBitSecRate += frames;
             avgKBitSecRate = sumKBitSecRate / countKBitSecRate;
+
+            // the old values fade out, so the average follows long term changes,
+            // but slowly - the input buffers are not resized too often:
+            if (countKBitSecRate >= 1024) {
+                sumKBitSecRate /= 2;
+                countKBitSecRate /= 2;
+            }
         }
 
         return avgKBitSecRate;
@@ -780,4 +1872,184 @@ public class AACPlayer {
         return (int)(((long) bytesconsumed) * channels * sampleRate * durationMs  / (1000L * samples));
     }
 
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Private
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Connects the URL - an HTTP url is re-connected as ICY if the server answers "ICY 200 OK".
+     */
+    private URLConnection connect( String url ) throws IOException {
+        URLConnection conn = null;
+        boolean close = true;
+
+        while (true) {
+            conn = new URL( url ).openConnection();
+
+            prepareConnection( conn );
+            conn.connect();
+
+            try {
+                if (conn instanceof HttpURLConnection) {
+                    HttpURLConnection httpConn = (HttpURLConnection) conn;
+
+                    try {
+                        // pre-KitKat returns -1:
+                        if (httpConn.getResponseCode() == -1) {
+                            if (!responseCodeCheckEnabled) {
+                                Log.w( LOG, "No response code, but ignoring - for url " + url );
+                                close = false;
+                                break;
+                            }
+                            else {
+                                Log.w( LOG, "No response code for url " + url );
+                            }
+                        }
+                        else {
+                            // standard HTTP response / IcyURLConnection response
+                            close = false;
+                            break;
+                        }
+                    }
+                    catch (Exception e) {
+                        // KitKat throws exception:
+                        // java.net.ProtocolException: Unexpected status line: ICY 200 OK
+                        Log.w( LOG, "Invalid response code for url " + url + " - " + e );
+                    }
+                }
+                else if (conn.getHeaderFields() == null) {
+                    // sanity code
+                    Log.w( LOG, "No header fields in response for url " + url );
+                }
+                else {
+                    close = false;
+                    break;
+                }
+
+                if (url.startsWith( "http:" ) || url.startsWith( "https:" )) {
+                    // "http:" -> "icy:", "https:" -> "icys:"
+                    url = "icy" + url.substring( 4 );
+                    Log.i( LOG, "Trying to re-connect as ICY url " + url );
+                }
+                else throw new IOException( "Invalid response - no response code / headers detected" );
+            }
+            finally {
+                if (close) {
+                    if (conn instanceof HttpURLConnection) {
+                        try { ((HttpURLConnection)conn).disconnect(); } catch (Throwable t) {}
+                    }
+                    conn = null;
+                }
+            }
+        }
+
+        return conn;
+    }
+
+
+    /**
+     * Reads the body of the connection until the first decodable frame is found.
+     * @return the bytes read
+     */
+    private byte[] readFirstFrame( URLConnection cn ) throws IOException {
+        InputStream is = cn.getInputStream();
+        byte[] buf = new byte[ MAX_PROBE_BYTES ];
+        int len = 0;
+
+        while (len < buf.length) {
+            int n = is.read( buf, len, buf.length - len );
+
+            if (n == -1) throw new EOFException( "The stream ended before the first frame" );
+
+            len += n;
+
+            if (hasFrame( buf, len )) return Arrays.copyOf( buf, len );
+        }
+
+        throw new IOException( "No frame found in the first " + len + " bytes" );
+    }
+
+
+    /**
+     * Checks if the data contain an ADTS or MP3 frame - confirmed by the header of the next frame.
+     */
+    private static boolean hasFrame( byte[] b, int len ) {
+        for (int i=0; i + 6 < len; i++) {
+            if (b[i] != (byte) 0xff) continue;
+
+            int b1 = b[i+1] & 0xff;
+            int flen;
+
+            if ((b1 & 0xf6) == 0xf0) {
+                // ADTS - the 13 bits frame length:
+                flen = ((b[i+3] & 0x03) << 11) | ((b[i+4] & 0xff) << 3) | ((b[i+5] & 0xe0) >> 5);
+
+                if (flen < 7) continue;
+            }
+            else if ((b1 & 0xe6) == 0xe2 && (b1 & 0x18) != 0x08) {
+                // MPEG audio layer III (not the reserved version):
+                int br = (b[i+2] & 0xf0) >> 4;
+                int sr = (b[i+2] & 0x0c) >> 2;
+
+                if (br == 0 || br == 15 || sr == 3) continue;
+
+                int pad = (b[i+2] & 0x02) >> 1;
+
+                if ((b1 & 0x18) == 0x18) flen = 144000 * MP3_BITRATES_V1[ br ] / MP3_SAMPLE_RATES[ sr ] + pad;
+                else {
+                    int rate = MP3_SAMPLE_RATES[ sr ] >> ((b1 & 0x18) == 0x10 ? 1 : 2);
+                    flen = 72000 * MP3_BITRATES_V2[ br ] / rate + pad;
+                }
+            }
+            else continue;
+
+            // the next header not read yet:
+            if (i + flen + 1 >= len) continue;
+
+            if (b[i+flen] == (byte) 0xff && (b[i+flen+1] & 0xe0) == 0xe0) return true;
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Disconnects the connection - if possible.
+     */
+    private static void disconnect( URLConnection conn ) {
+        if (conn instanceof HttpURLConnection) {
+            try { ((HttpURLConnection)conn).disconnect(); } catch (Throwable t) {}
+        }
+    }
+
+
+    /**
+     * Releases the audio output created in advance if it was not used.
+     */
+    private void releasePreparedSink() {
+        AudioSink sink = preparedSink;
+        preparedSink = null;
+
+        if (sink != null) sink.release();
+    }
+
+
+    /**
+     * Prepares the playback - called at the beginning of each play() method.
+     * @return the expected bitrate or the default one if not known
+     */
+    private int prepare( int expectedKBitSecRate ) {
+        stopped = false;
+
+        if (playerCallback != null) playerCallback.playerStarted();
+
+        if (expectedKBitSecRate <= 0) expectedKBitSecRate = DEFAULT_EXPECTED_KBITSEC_RATE;
+
+        sumKBitSecRate = 0;
+        countKBitSecRate = 0;
+
+        return expectedKBitSecRate;
+    }
+
 }
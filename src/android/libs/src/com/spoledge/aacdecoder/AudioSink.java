@@ -0,0 +1,120 @@
+/*
+** AACDecoder - Freeware Advanced Audio (AAC) Decoder for Android
+** Copyright (C) 2011 Spolecne s.r.o., http://www.spoledge.com
+**
+** This file is a part of AACDecoder.
+**
+** AACDecoder is free software; you can redistribute it and/or modify
+** it under the terms of the GNU Lesser General Public License as published
+** by the Free Software Foundation; either version 3 of the License,
+** or (at your option) any later version.
+**
+** This program is distributed in the hope that it will be useful,
+** but WITHOUT ANY WARRANTY; without even the implied warranty of
+** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+** GNU Lesser General Public License for more details.
+**
+** You should have received a copy of the GNU Lesser General Public License
+** along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.spoledge.aacdecoder;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+
+/**
+ * This is the output of PCMFeed - the AudioTrack on a device (AudioTrackSink)
+ * or a sink which does not need any audio hardware (NullAudioSink, WavAudioSink, MemoryAudioSink).
+ * All positions are in frames (one sample of each channel), all offsets and sizes of data in samples.
+ * The methods are called by the PCMFeed execution thread, the listener can be called by any thread.
+ * @since 0.9
+ */
+public interface AudioSink {
+
+    /**
+     * The listener of the playback head events.
+     */
+    public interface Listener {
+
+        /**
+         * Called when the playback head reached the marker position.
+         */
+        public void onMarkerReached( AudioSink sink );
+
+
+        /**
+         * Called when the playback head reached a multiple of the notification period.
+         */
+        public void onPeriodicNotification( AudioSink sink );
+    }
+
+
+    /**
+     * Opens the sink.
+     * @param sampleRate the sampling rate in Hz
+     * @param channels the number of channels (1 or 2)
+     * @param bufferSizeInBytes the size of the audio buffer
+     * @param listener the listener of the playback head events
+     * @param periodInFrames the period of the periodic notifications
+     */
+    public void open( int sampleRate, int channels, int bufferSizeInBytes, Listener listener, int periodInFrames ) throws Exception;
+
+
+    /**
+     * Writes samples from a direct buffer.
+     * @param bytes the buffer in native byte order
+     * @param view the short view of the whole buffer
+     * @param offset the offset in samples
+     * @param n the number of samples
+     * @param blocking if false, then only the samples which fit into the audio buffer are written
+     * @return the number of samples written or a negative error code
+     */
+    public int write( ByteBuffer bytes, ShortBuffer view, int offset, int n, boolean blocking );
+
+
+    /**
+     * Writes samples from an array - blocking.
+     * @return the number of samples written or a negative error code
+     */
+    public int write( short[] samples, int offset, int n );
+
+
+    /**
+     * Starts or resumes the playback.
+     */
+    public void play();
+
+
+    /**
+     * Pauses the playback.
+     */
+    public void pause();
+
+
+    /**
+     * Discards the data not played yet.
+     */
+    public void flush();
+
+
+    /**
+     * Releases all resources - the sink cannot be used anymore.
+     */
+    public void release();
+
+
+    /**
+     * Returns the playback head position in frames.
+     * @throws IllegalStateException if the sink is not in a valid state
+     */
+    public int getPlaybackHeadPosition();
+
+
+    /**
+     * Sets the marker position in frames - the listener is notified when it is reached.
+     */
+    public void setNotificationMarkerPosition( int frames );
+
+}
+
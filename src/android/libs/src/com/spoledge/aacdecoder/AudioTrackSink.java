@@ -0,0 +1,257 @@
+/*
+** AACDecoder - Freeware Advanced Audio (AAC) Decoder for Android
+** Copyright (C) 2011 Spolecne s.r.o., http://www.spoledge.com
+**
+** This file is a part of AACDecoder.
+**
+** AACDecoder is free software; you can redistribute it and/or modify
+** it under the terms of the GNU Lesser General Public License as published
+** by the Free Software Foundation; either version 3 of the License,
+** or (at your option) any later version.
+**
+** This program is distributed in the hope that it will be useful,
+** but WITHOUT ANY WARRANTY; without even the implied warranty of
+** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+** GNU Lesser General Public License for more details.
+**
+** You should have received a copy of the GNU Lesser General Public License
+** along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.spoledge.aacdecoder;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+
+import android.os.Build;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+
+/**
+ * This is the audio sink playing the data by an AudioTrack.
+ * Direct buffers are passed to AudioTrack without any copying (Android 5.0+).
+ * The AudioTrack can be created in advance by prepare() - e.g. while the stream is connecting.
+ * @since 0.9
+ */
+public class AudioTrackSink implements AudioSink, AudioTrack.OnPlaybackPositionUpdateListener {
+
+    /**
+     * The callback - may be null.
+     */
+    protected PlayerCallback playerCallback;
+
+    /**
+     * The AudioTrack instance.
+     */
+    protected AudioTrack audioTrack;
+
+    /**
+     * The listener.
+     */
+    protected Listener listener;
+
+    /**
+     * The array used for writing direct buffers before Android 5.0.
+     */
+    private short[] scratch;
+
+    /**
+     * The parameters of the AudioTrack created by prepare() - not opened yet.
+     */
+    private int preparedSampleRate;
+    private int preparedChannels;
+    private int preparedBufferSize;
+
+    /**
+     * True after release() - no AudioTrack can be created then.
+     */
+    private boolean released;
+
+    private static final String LOG = "AudioTrackSink";
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a new sink.
+     * @param playerCallback the callback notified when the AudioTrack is created - may be null
+     */
+    public AudioTrackSink( PlayerCallback playerCallback ) {
+        this.playerCallback = playerCallback;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Public
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns the AudioTrack or null if not opened yet.
+     */
+    public AudioTrack getAudioTrack() {
+        return audioTrack;
+    }
+
+
+    /**
+     * Creates the AudioTrack in advance - this can be called by any thread.
+     * If open() is later called with the same parameters, then the track is reused,
+     * otherwise it is released and a new one is created.
+     * Nothing is done if the sink is already opened or released.
+     */
+    public synchronized void prepare( int sampleRate, int channels, int bufferSizeInBytes ) {
+        if (audioTrack != null || released) return;
+
+        audioTrack = createAudioTrack( sampleRate, channels, bufferSizeInBytes );
+
+        preparedSampleRate = sampleRate;
+        preparedChannels = channels;
+        preparedBufferSize = bufferSizeInBytes;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // AudioSink
+    ////////////////////////////////////////////////////////////////////////////
+
+    public synchronized void open( int sampleRate, int channels, int bufferSizeInBytes, Listener listener, int periodInFrames ) {
+        this.listener = listener;
+
+        AudioTrack atrack = audioTrack;
+
+        if (atrack != null) {
+            if (sampleRate == preparedSampleRate && channels == preparedChannels
+                    && bufferSizeInBytes == preparedBufferSize) {
+                Log.d( LOG, "open() using the prepared AudioTrack" );
+            }
+            else {
+                Log.d( LOG, "open() the prepared AudioTrack does not match: " + preparedSampleRate
+                            + " Hz / " + preparedChannels + " channels" );
+                atrack.release();
+                atrack = null;
+            }
+        }
+
+        if (atrack == null) atrack = createAudioTrack( sampleRate, channels, bufferSizeInBytes );
+
+        preparedSampleRate = 0;
+
+        atrack.setPlaybackPositionUpdateListener( this );
+        atrack.setPositionNotificationPeriod( periodInFrames );
+
+        if (playerCallback != null) playerCallback.playerAudioTrackCreated( atrack );
+
+        this.audioTrack = atrack;
+    }
+
+
+    /**
+     * Writes samples from a direct buffer.
+     * Since Android 5.0 the buffer is passed to AudioTrack directly,
+     * otherwise the samples are copied into an array first
+     * (and older releases do not block when the track is not playing).
+     */
+    public int write( ByteBuffer bb, ShortBuffer view, int offset, int n, boolean blocking ) {
+        if (Build.VERSION.SDK_INT >= 21) {
+            bb.limit( (offset + n) * 2 );
+            bb.position( offset * 2 );
+
+            int written = audioTrack.write( bb, n * 2, blocking ? AudioTrack.WRITE_BLOCKING : AudioTrack.WRITE_NON_BLOCKING );
+
+            return written < 0 ? written : written / 2;
+        }
+
+        if (scratch == null || scratch.length < n) scratch = new short[ n ];
+
+        view.clear();
+        view.position( offset );
+        view.get( scratch, 0, n );
+
+        return audioTrack.write( scratch, 0, n );
+    }
+
+
+    public int write( short[] samples, int offset, int n ) {
+        return audioTrack.write( samples, offset, n );
+    }
+
+
+    public void play() {
+        audioTrack.play();
+    }
+
+
+    public void pause() {
+        audioTrack.pause();
+    }
+
+
+    public void flush() {
+        audioTrack.flush();
+    }
+
+
+    public synchronized void release() {
+        released = true;
+
+        if (audioTrack != null) audioTrack.release();
+    }
+
+
+    public int getPlaybackHeadPosition() {
+        return audioTrack.getPlaybackHeadPosition();
+    }
+
+
+    public void setNotificationMarkerPosition( int frames ) {
+        audioTrack.setNotificationMarkerPosition( frames );
+    }
+
+
+    @Override
+    public String toString() {
+        return "AudioTrackSink[state=" + (audioTrack != null ? audioTrack.getPlayState() : -1) + "]";
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Protected
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a new AudioTrack in the streaming mode.
+     */
+    protected AudioTrack createAudioTrack( int sampleRate, int channels, int bufferSizeInBytes ) {
+        return new AudioTrack(
+                        AudioManager.STREAM_MUSIC,
+                        sampleRate,
+                        channels == 1 ?
+                            AudioFormat.CHANNEL_CONFIGURATION_MONO :
+                            AudioFormat.CHANNEL_CONFIGURATION_STEREO,
+                        AudioFormat.ENCODING_PCM_16BIT,
+                        bufferSizeInBytes,
+                        AudioTrack.MODE_STREAM );
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // OnPlaybackPositionUpdateListener
+    ////////////////////////////////////////////////////////////////////////////
+
+    public void onMarkerReached( AudioTrack track ) {
+        listener.onMarkerReached( this );
+    }
+
+
+    public void onPeriodicNotification( AudioTrack track ) {
+        listener.onPeriodicNotification( this );
+    }
+
+}
+
@@ -0,0 +1,272 @@
+/*
+** AACDecoder - Freeware Advanced Audio (AAC) Decoder for Android
+** Copyright (C) 2011 Spolecne s.r.o., http://www.spoledge.com
+**
+** This file is a part of AACDecoder.
+**
+** AACDecoder is free software; you can redistribute it and/or modify
+** it under the terms of the GNU Lesser General Public License as published
+** by the Free Software Foundation; either version 3 of the License,
+** or (at your option) any later version.
+**
+** This program is distributed in the hope that it will be useful,
+** but WITHOUT ANY WARRANTY; without even the implied warranty of
+** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+** GNU Lesser General Public License for more details.
+**
+** You should have received a copy of the GNU Lesser General Public License
+** along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.spoledge.aacdecoder;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+
+/**
+ * This is a pool of byte arrays and direct byte buffers shared by all players.
+ * The sizes are rounded up to powers of two (size classes), so a buffer
+ * released by one reader can be reused by another one even if the capacity differs slightly.
+ * The pool is bounded by the total number of bytes retained - when the limit is exceeded,
+ * the least recently released buffers are evicted (left to the garbage collector).
+ * <pre>
+ *  BufferPool pool = BufferPool.getDefault();
+ *
+ *  ByteBuffer bb = pool.acquireDirect( 4096 );
+ *  ...
+ *  pool.releaseDirect( bb );
+ * </pre>
+ * A released buffer must not be used anymore.
+ * @since 0.9
+ */
+public class BufferPool {
+
+    /**
+     * The default maximum number of bytes retained by the default pool.
+     */
+    public static final int DEFAULT_MAX_RETAINED_BYTES = 1024 * 1024;
+
+    /**
+     * The smallest size class.
+     */
+    public static final int MIN_SIZE = 256;
+
+    private static final String LOG = "BufferPool";
+
+    private static BufferPool defaultPool;
+
+    private final int maxRetainedBytes;
+
+    /**
+     * The released buffers (ByteBuffer or byte[]) - the least recently released first.
+     */
+    private final LinkedList<Object> entries = new LinkedList<Object>();
+
+    private int retainedBytes;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a new pool.
+     * @param maxRetainedBytes the maximum number of bytes kept by the pool;
+     *          0 means that nothing is retained
+     */
+    public BufferPool( int maxRetainedBytes ) {
+        this.maxRetainedBytes = maxRetainedBytes;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Public
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns the process-wide pool.
+     */
+    public static synchronized BufferPool getDefault() {
+        if (defaultPool == null) defaultPool = new BufferPool( DEFAULT_MAX_RETAINED_BYTES );
+
+        return defaultPool;
+    }
+
+
+    /**
+     * Returns the size class of the requested size.
+     * @return the smallest power of two which is not less than the size (at least MIN_SIZE)
+     */
+    public static int sizeClass( int size ) {
+        if (size <= MIN_SIZE) return MIN_SIZE;
+
+        int ret = Integer.highestOneBit( size );
+
+        return ret == size ? ret : ret << 1;
+    }
+
+
+    /**
+     * Returns a direct buffer.
+     * @param size the minimum capacity
+     * @return the cleared buffer - its capacity is the size class of the size
+     */
+    public ByteBuffer acquireDirect( int size ) {
+        int sc = sizeClass( size );
+        ByteBuffer ret = (ByteBuffer) take( sc, true );
+
+        if (ret == null) ret = ByteBuffer.allocateDirect( sc );
+
+        ret.clear();
+
+        return ret;
+    }
+
+
+    /**
+     * Returns the direct buffer back to the pool.
+     * Buffers not acquired from a pool (e.g. with a capacity not being a size class) are ignored.
+     */
+    public void releaseDirect( ByteBuffer buffer ) {
+        if (buffer != null && buffer.isDirect()) put( buffer, buffer.capacity());
+    }
+
+
+    /**
+     * Returns a byte array.
+     * @param size the minimum length
+     * @return the array - its length is the size class of the size; the content is undefined
+     */
+    public byte[] acquireArray( int size ) {
+        int sc = sizeClass( size );
+        byte[] ret = (byte[]) take( sc, false );
+
+        return ret != null ? ret : new byte[ sc ];
+    }
+
+
+    /**
+     * Returns the byte array back to the pool.
+     * Arrays not acquired from a pool are ignored.
+     */
+    public void releaseArray( byte[] array ) {
+        if (array != null) put( array, array.length );
+    }
+
+
+    /**
+     * Returns the number of requests served by a pooled buffer.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+
+    /**
+     * Returns the number of requests which had to allocate a new buffer.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+
+    /**
+     * Returns the number of buffers dropped because the pool was full.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+
+    /**
+     * Returns the total number of bytes currently kept by the pool.
+     */
+    public synchronized int getRetainedBytes() {
+        return retainedBytes;
+    }
+
+
+    /**
+     * Returns the maximum number of bytes kept by the pool.
+     */
+    public final int getMaxRetainedBytes() {
+        return maxRetainedBytes;
+    }
+
+
+    /**
+     * Drops all pooled buffers.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        retainedBytes = 0;
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        return "BufferPool[retained=" + retainedBytes + "/" + maxRetainedBytes
+                + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + "]";
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Private
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Removes the most recently released buffer of the size class.
+     * @return the buffer or null
+     */
+    private synchronized Object take( int sc, boolean direct ) {
+        Iterator<Object> it = entries.descendingIterator();
+
+        while (it.hasNext()) {
+            Object o = it.next();
+
+            if (direct ? (o instanceof ByteBuffer && ((ByteBuffer) o).capacity() == sc)
+                       : (o instanceof byte[] && ((byte[]) o).length == sc)) {
+                it.remove();
+                retainedBytes -= sc;
+                hits++;
+
+                return o;
+            }
+        }
+
+        misses++;
+
+        return null;
+    }
+
+
+    private synchronized void put( Object o, int size ) {
+        if (size != sizeClass( size ) || size > maxRetainedBytes) return;
+
+        for (Object e : entries) {
+            if (e == o) {
+                Log.w( LOG, "put() buffer already released: " + size );
+                return;
+            }
+        }
+
+        entries.addLast( o );
+        retainedBytes += size;
+
+        while (retainedBytes > maxRetainedBytes) {
+            Object e = entries.removeFirst();
+
+            retainedBytes -= e instanceof byte[] ? ((byte[]) e).length : ((ByteBuffer) e).capacity();
+            evictions++;
+        }
+    }
+
+}
@@ -21,14 +21,24 @@ package com.spoledge.aacdecoder;
 
 import android.util.Log;
 
+import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.IOException;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
 
 /**
  * This is a separate thread for reading data from a stream.
- * The buffer creates 3 buffer instances - one is being filled by the execution thread,
- * one is prepared with data, one can be processed by a consumer.
+ * The reader creates several buffer instances (3 by default) organized as a ring -
+ * one is being filled by the execution thread, one is processed by a consumer
+ * and the rest is prepared with data.
+ * The handoff between the two threads is lock-free (see SlotRing).
+ * The buffers are taken from the shared BufferPool and returned back
+ * when the reader was closed by the consumer and the execution thread finished.
  * <pre>
  *  InputStream is = ...;
  *
@@ -47,46 +57,165 @@ import java.io.IOException;
  *      // process data
  *      ...
  *  }
+ *
+ *  reader.stop();
+ *  reader.close();
  * </pre>
  */
 public class BufferReader implements Runnable {
 
+    /**
+     * The buffer filled by the reader.
+     * The data are stored in a direct ByteBuffer, so the native decoder can access
+     * them in place. The data start at the offset - the space before
+     * is reserved for the decoder, which prepends the unconsumed bytes of the previous buffer there.
+     */
     public static class Buffer {
-        private byte[] data;
+
+        /**
+         * The number of bytes reserved in front of the data.
+         * @since 0.9
+         */
+        public static final int HEADROOM = 2048;
+
+        private ByteBuffer data;
+        private int offset;
+        private int capacity;
         private int size;
 
+        /**
+         * True if the data do not continue the previous buffer (e.g. after a reconnect).
+         * Read by the native decoder.
+         */
+        boolean discontinuity;
+
         Buffer( int capacity ) {
-            data = new byte[ capacity ];
+            this( BufferPool.getDefault().acquireDirect( HEADROOM + capacity ), HEADROOM );
+            this.capacity = capacity;
+        }
+
+        Buffer( ByteBuffer data, int offset ) {
+            this( data, offset, 0 );
         }
 
+        Buffer( ByteBuffer data, int offset, int size ) {
+            this.data = data;
+            this.offset = offset;
+            this.capacity = data.capacity() - offset;
+            this.size = size;
+        }
+
+        /**
+         * Returns a copy of the data.
+         * @deprecated the data are not stored in an array anymore - use getByteBuffer()
+         */
+        @Deprecated
         public final byte[] getData() {
+            byte[] ret = new byte[ size ];
+            ByteBuffer bb = data.duplicate();
+            bb.position( offset );
+            bb.get( ret );
+
+            return ret;
+        }
+
+        /**
+         * Returns the underlying direct buffer.
+         * The data start at getOffset() and have getSize() bytes.
+         * @since 0.9
+         */
+        public final ByteBuffer getByteBuffer() {
             return data;
         }
 
+        /**
+         * Returns the offset of the data in the underlying buffer.
+         * @since 0.9
+         */
+        public final int getOffset() {
+            return offset;
+        }
+
+        /**
+         * Returns the maximum number of data bytes.
+         * @since 0.9
+         */
+        public final int getCapacity() {
+            return capacity;
+        }
+
         public final int getSize() {
             return size;
         }
+
+        /**
+         * Returns true if the data do not continue the data of the previous buffer
+         * - the decoder drops the unconsumed input and searches for the next frame.
+         * @since 0.9
+         */
+        public final boolean isDiscontinuity() {
+            return discontinuity;
+        }
     }
 
+    /**
+     * The default number of buffers.
+     * @since 0.9
+     */
+    public static final int DEFAULT_BUFFER_COUNT = 3;
+
     private static String LOG = "BufferReader";
 
-    int capacity;
+    volatile int capacity;
 
     private Buffer[] buffers;
 
+    private SlotRing ring;
+
     /**
-     * The buffer to be write into.
+     * True if the consumer holds the buffer returned by the last next() call.
      */
-    private int indexMine;
+    private boolean holding;
+
+    private volatile boolean stopped;
+
+    private InputStream is;
 
     /**
-     * The index of the buffer last returned in the next() method.
+     * The channel of the input stream if available (files) - then no copying is needed.
      */
-    private int indexBlocked;
+    private FileChannel channel;
 
-    private boolean stopped;
+    /**
+     * The array used for copying data from the input stream into the direct buffers.
+     */
+    private byte[] scratch;
 
-    private InputStream is;
+    /**
+     * The number of sides (the execution thread and the consumer) which finished.
+     */
+    private final AtomicInteger finished = new AtomicInteger();
+
+    /**
+     * The number of bytes needed to publish the next buffer while ramping up - 0 when not ramping.
+     * Accessed only by the producer (or before it started).
+     */
+    private int fillTarget;
+
+    /**
+     * The buffering controller notified about the input - may be null.
+     */
+    private volatile BufferingController bufferingController;
+
+    /**
+     * The total number of bytes read from the source - the progress watched by the consumer.
+     */
+    private volatile long bytesRead;
+
+    /**
+     * True if the source reached its end - not set when the reading failed or was stopped.
+     */
+    private volatile boolean endOfStream;
 
 
     ////////////////////////////////////////////////////////////////////////////
@@ -102,19 +231,43 @@ public class BufferReader implements Runnable {
      * @param is the input stream
      */
     public BufferReader( int capacity, InputStream is ) {
+        this( capacity, is, DEFAULT_BUFFER_COUNT );
+    }
+
+
+    /**
+     * Creates a new buffer.
+     *
+     * @param capacity the capacity of one buffer in bytes
+     * @param is the input stream
+     * @param count the number of buffers - at least 2;
+     *          one is always held by the consumer, the rest can be filled ahead
+     * @since 0.9
+     */
+    public BufferReader( int capacity, InputStream is, int count ) {
         this.capacity = capacity;
         this.is = is;
 
-        Log.d( LOG, "init(): capacity=" + capacity );
+        if (is instanceof FileInputStream) channel = ((FileInputStream) is).getChannel();
 
-        buffers = new Buffer[3];
+        Log.d( LOG, "init(): capacity=" + capacity + ", count=" + count );
+
+        ring = new SlotRing( count );
+        buffers = new Buffer[ count ];
 
         for (int i=0; i < buffers.length; i++) {
             buffers[i] = new Buffer( capacity );
         }
+    }
+
 
-        indexMine = 0;
-        indexBlocked = buffers.length-1;
+    /**
+     * Creates a reader without any buffers and without the stream.
+     * This is used by subclasses which provide the data themselves -
+     * they must override the methods run(), next(), stop(), isStopped() and getBufferedCount().
+     * @since 0.9
+     */
+    protected BufferReader() {
     }
 
 
@@ -125,37 +278,96 @@ public class BufferReader implements Runnable {
     /**
      * Changes the capacity of the buffer.
      */
-    public synchronized void setCapacity( int capacity ) {
+    public void setCapacity( int capacity ) {
         Log.d( LOG, "setCapacity(): " + capacity );
         this.capacity = capacity;
     }
 
 
+    /**
+     * Enables the low-latency start.
+     * The first buffer is published as soon as it contains at least the given number of bytes
+     * (instead of being filled up to the capacity); the threshold doubles with every buffer
+     * until it reaches the capacity - then the reader works as usual.
+     *
+     * NOTE: this must be called BEFORE the reader is started.
+     *
+     * @param startFill the minimum bytes of the first buffer - should hold at least a few
+     *          frames, so the decoder can detect the stream; 0 disables the ramp (default)
+     * @since 0.9
+     */
+    public void setStartFill( int startFill ) {
+        fillTarget = startFill > 0 ? startFill : 0;
+    }
+
+
+    /**
+     * Sets the controller which measures the input jitter.
+     * It is notified when a buffer is published. This can be called at any time.
+     * @param bufferingController the controller or null
+     * @since 0.9
+     */
+    public void setBufferingController( BufferingController bufferingController ) {
+        this.bufferingController = bufferingController;
+    }
+
+
+    /**
+     * Returns the number of buffers filled with data and not yet returned by next().
+     * @since 0.9
+     */
+    public int getBufferedCount() {
+        int n = ring.size();
+
+        return holding ? n - 1 : n;
+    }
+
+
+    /**
+     * Returns the total number of bytes read from the source so far.
+     * It grows with every read - even before a buffer is published.
+     * @since 0.9
+     */
+    public final long getBytesRead() {
+        return bytesRead;
+    }
+
+
     /**
      * The main loop.
      */
     public void run() {
         Log.d( LOG, "run() started...." );
 
-        int cap = capacity;
-        int total = 0;
-
         while (!stopped) {
-            Buffer buffer = buffers[ indexMine ];
-            total = 0;
+            int index = ring.claim();
 
-            if (cap != buffer.data.length) {
-                Log.d( LOG, "run() capacity changed: " + buffer.data.length + " -> " + cap);
-                buffers[ indexMine ] = buffer = null;
-                buffers[ indexMine ] = buffer = new Buffer( cap );
+            if (index == -1) break;
+
+            Buffer buffer = buffers[ index ];
+            int cap = capacity;
+            int total = 0;
+
+            if (cap != buffer.getCapacity()) {
+                Log.d( LOG, "run() capacity changed: " + buffer.getCapacity() + " -> " + cap);
+                buffers[ index ] = buffer = resize( buffer, cap );
             }
 
-            while (!stopped && total < cap) {
-                try {
-                    int n = is.read( buffer.data, total, cap - total );
+            // read as much as available, but publish when the target is reached:
+            int target = getFillTarget( cap );
 
-                    if (n == -1) stopped = true;
-                    else total += n;
+            while (!stopped && total < target) {
+                try {
+                    int n = read( buffer, total, cap - total );
+
+                    if (n == -1) {
+                        endOfStream = true;
+                        stopped = true;
+                    }
+                    else {
+                        total += n;
+                        addBytesRead( n );
+                    }
                 }
                 catch (IOException e) {
                     Log.e( LOG, "Exception when reading: " + e );
@@ -165,31 +377,163 @@ public class BufferReader implements Runnable {
 
             buffer.size = total;
 
-            synchronized (this) {
-                notify();
-                int indexNew = (indexMine + 1) % buffers.length;
+            ring.publish();
+            published( total );
+        }
 
-                while (!stopped && indexNew == indexBlocked) {
-                    //Log.d( LOG, "run() waiting...." );
-                    try { wait(); } catch (InterruptedException e) {}
-                    //Log.d( LOG, "run() awaken" );
-                }
+        stopped = true;
+        ring.stop();
 
-                indexMine = indexNew;
-                cap = capacity;
-            }
+        Log.d( LOG, "run() stopped - parked " + ring.getParkCount() + " times." );
+
+        producerFinished();
+    }
+
+
+    /**
+     * Reads data from the stream into the buffer.
+     * @param buffer the target buffer
+     * @param pos the position relative to the buffer's offset
+     * @param len the maximum number of bytes
+     * @return the number of bytes read or -1 on eof
+     */
+    protected int read( Buffer buffer, int pos, int len ) throws IOException {
+        ByteBuffer bb = buffer.data;
+        bb.limit( buffer.offset + pos + len );
+        bb.position( buffer.offset + pos );
+
+        if (channel != null) return channel.read( bb );
+
+        if (scratch == null || scratch.length < len) {
+            BufferPool pool = BufferPool.getDefault();
+            pool.releaseArray( scratch );
+            scratch = pool.acquireArray( capacity > len ? capacity : len );
         }
 
-        Log.d( LOG, "run() stopped." );
+        int n = is.read( scratch, 0, len );
+
+        if (n > 0) bb.put( scratch, 0, n );
+
+        return n;
+    }
+
+
+    /**
+     * Returns a free buffer to be filled without waiting.
+     * This is used by subclasses which fill the buffers without the execution thread
+     * (see ChannelBufferReader); the buffer must be then passed to publishBuffer().
+     * @return the buffer or null if no buffer is free or the reader was stopped
+     * @since 0.9
+     */
+    protected Buffer claimBuffer() {
+        int index = ring.tryClaim();
+
+        if (index == -1) return null;
+
+        Buffer buffer = buffers[ index ];
+        int cap = capacity;
+
+        if (cap != buffer.getCapacity()) {
+            Log.d( LOG, "claimBuffer() capacity changed: " + buffer.getCapacity() + " -> " + cap);
+            buffers[ index ] = buffer = resize( buffer, cap );
+        }
+
+        return buffer;
+    }
+
+
+    /**
+     * Passes the buffer returned by claimBuffer() to the consumer.
+     * @param size the number of bytes stored in the buffer
+     * @since 0.9
+     */
+    protected void publishBuffer( Buffer buffer, int size ) {
+        buffer.size = size;
+        ring.publish();
+        published( size );
+    }
+
+
+    /**
+     * Returns the number of bytes which should be stored in a buffer before it is published.
+     * This is the capacity unless the reader is ramping up after the start (see setStartFill()).
+     * @param cap the capacity of the buffer
+     * @since 0.9
+     */
+    protected final int getFillTarget( int cap ) {
+        int t = fillTarget;
+
+        return t > 0 && t < cap ? t : cap;
+    }
+
+
+    /**
+     * Increases the number of bytes read from the source.
+     * Subclasses filling the buffers without the execution thread must call it after each read.
+     * @since 0.9
+     */
+    protected final void addBytesRead( int n ) {
+        bytesRead += n;
+    }
+
+
+    /**
+     * Marks that the source reached its end (see isEndOfStream()).
+     * Subclasses filling the buffers without the execution thread must call it before finish().
+     * @since 0.9
+     */
+    protected final void setEndOfStream() {
+        endOfStream = true;
+    }
+
+
+    /**
+     * Signals the end of the data - the consumer gets the published buffers and then null.
+     * @since 0.9
+     */
+    protected void finish() {
+        stopped = true;
+        ring.stop();
+    }
+
+
+    /**
+     * Signals that the producer will not touch the buffers anymore.
+     * This is called at the end of run(); subclasses filling the buffers
+     * without the execution thread must call it themselves.
+     * @since 0.9
+     */
+    protected final void producerFinished() {
+        if (finished.incrementAndGet() == 2) recycle();
+    }
+
+
+    /**
+     * Called by the consumer thread when a buffer was returned - it can be filled again.
+     * This implementation does nothing.
+     * @since 0.9
+     */
+    protected void onRelease() {
     }
 
 
     /**
      * Stops the thread - the object cannot be longer used.
      */
-    public synchronized void stop() {
+    public void stop() {
         stopped = true;
-        notify();
+        ring.stop();
+    }
+
+
+    /**
+     * Tells that the consumer will not use the buffers anymore (the decoder was stopped).
+     * The buffers are returned to the pool as soon as the execution thread finishes too,
+     * so this should be called after stop().
+     * @since 0.9
+     */
+    public void close() {
+        if (finished.incrementAndGet() == 2) recycle();
     }
 
 
@@ -201,27 +545,119 @@ public class BufferReader implements Runnable {
     }
 
 
+    /**
+     * Returns true if the reader ended because the source reached its end.
+     * It returns false if the reading failed (e.g. the connection was broken) or was stopped.
+     * @since 0.9
+     */
+    public boolean isEndOfStream() {
+        return endOfStream;
+    }
+
+
     /**
      * Returns next available buffer instance.
-     * The returned instance can be freely used by another thread.
+     * The returned instance can be freely used by another thread
+     * until this method is called again.
      * Blocks the caller until a buffer is ready.
+     * This method must be always called by the same (consumer) thread.
+     * @return the buffer or null if the reader was stopped and no more data are available
      */
-    public synchronized Buffer next() {
-        int indexNew = (indexBlocked + 1) % buffers.length;
+    public Buffer next() {
+        if (holding) {
+            holding = false;
+            ring.release();
+            onRelease();
+        }
 
-        while (!stopped && indexNew == indexMine) {
-            Log.d( LOG, "next() waiting...." );
-            try { wait(); } catch (InterruptedException e) {}
-            Log.d( LOG, "next() awaken" );
+        int index = ring.acquire();
+
+        if (index == -1) return null;
+
+        holding = true;
+
+        return buffers[ index ];
+    }
+
+
+    /**
+     * Waits until the next buffer is available - then next() does not block.
+     * The buffer returned by the last next() call is released first.
+     * This method must be always called by the same (consumer) thread.
+     * @param timeoutMs the maximum time to wait
+     * @return true if a buffer is available or the reader was stopped, false if the time elapsed
+     * @since 0.9
+     */
+    public boolean await( long timeoutMs ) {
+        // subclasses providing the data themselves never wait:
+        if (ring == null) return true;
+
+        if (holding) {
+            holding = false;
+            ring.release();
+            onRelease();
         }
 
-        if (indexNew == indexMine) return null;
+        return ring.await( timeoutMs * 1000000L );
+    }
+
 
-        indexBlocked = indexNew;
+    ////////////////////////////////////////////////////////////////////////////
+    // Private
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Changes the capacity of a free buffer.
+     * The memory is reused if it is large enough, otherwise it is exchanged in the pool.
+     */
+    private Buffer resize( Buffer buffer, int cap ) {
+        if (buffer.offset + cap <= buffer.data.capacity()) {
+            buffer.capacity = cap;
+
+            return buffer;
+        }
+
+        BufferPool.getDefault().releaseDirect( buffer.data );
+
+        return new Buffer( cap );
+    }
+
+
+    /**
+     * Doubles the fill target after a buffer was published and notifies the controller.
+     */
+    private void published( int size ) {
+        BufferingController bc = bufferingController;
+        if (bc != null) bc.onInput( size );
+
+        if (fillTarget == 0) return;
+
+        fillTarget <<= 1;
+
+        if (fillTarget >= capacity) {
+            Log.d( LOG, "published() ramp finished - publishing full buffers now" );
+            fillTarget = 0;
+        }
+    }
+
+
+    /**
+     * Returns all buffers to the pool - both sides finished.
+     */
+    private void recycle() {
+        BufferPool pool = BufferPool.getDefault();
+
+        if (buffers != null) {
+            for (int i=0; i < buffers.length; i++) {
+                if (buffers[i] != null) pool.releaseDirect( buffers[i].data );
+                buffers[i] = null;
+            }
+        }
 
-        notify();
+        pool.releaseArray( scratch );
+        scratch = null;
 
-        return buffers[ indexBlocked ]; 
+        Log.d( LOG, "recycle() " + pool );
     }
 
 }
@@ -0,0 +1,294 @@
+/*
+** AACDecoder - Freeware Advanced Audio (AAC) Decoder for Android
+** Copyright (C) 2011 Spolecne s.r.o., http://www.spoledge.com
+**
+** This file is a part of AACDecoder.
+**
+** AACDecoder is free software; you can redistribute it and/or modify
+** it under the terms of the GNU Lesser General Public License as published
+** by the Free Software Foundation; either version 3 of the License,
+** or (at your option) any later version.
+**
+** This program is distributed in the hope that it will be useful,
+** but WITHOUT ANY WARRANTY; without even the implied warranty of
+** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+** GNU Lesser General Public License for more details.
+**
+** You should have received a copy of the GNU Lesser General Public License
+** along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.spoledge.aacdecoder;
+
+import android.util.Log;
+
+
+/**
+ * This is an adaptive buffering controller shared by the reader and PCMFeed of one stream.
+ * It measures the jitter of the input (how late the data arrive compared to the playback time
+ * they represent) and collects the underruns of the audio output.
+ * From this it computes:
+ * <ul>
+ *  <li>the start threshold - how much audio must be buffered before the output starts;
+ *      it shrinks on steady networks and grows after underruns</li>
+ *  <li>the input buffer size - how much compressed data each reader buffer holds;
+ *      it grows on bad networks</li>
+ * </ul>
+ * The decisions are reported to the callback if it is a BufferingListener.
+ * All methods can be called by any thread.
+ * @since 0.9
+ */
+public class BufferingController {
+
+    /**
+     * The default minimum start threshold.
+     */
+    public static final int DEFAULT_MIN_START_MS = 300;
+
+    /**
+     * The time without underruns after which the penalty is halved.
+     */
+    public static final int RECOVERY_MS = 60000;
+
+    private static final String LOG = "BufferingController";
+
+    /**
+     * The minimum number of input measurements before the start threshold is lowered.
+     */
+    private static final int MIN_MEASUREMENTS = 3;
+
+    /**
+     * The step of reported changes - smaller changes are not reported.
+     */
+    private static final int STEP_MS = 50;
+
+    private final int minStartMs;
+    private final int maxStartMs;
+    private final int minInputMs;
+    private final int maxInputMs;
+
+    private final PlayerCallback playerCallback;
+
+    /**
+     * The input rate in bytes per second or 0 if not known.
+     */
+    private int byteRate;
+
+    /**
+     * The reference for the lag computation.
+     */
+    private long t0;
+    private long bytes;
+    private long lastLagMs;
+    private int measurements;
+
+    /**
+     * The smoothed jitter in ms (1/16 gain like RFC 3550).
+     */
+    private double jitterMs;
+
+    private int underruns;
+    private long lastUnderrun;
+
+    /**
+     * The lower bound of the start threshold raised by underruns.
+     */
+    private int penaltyMs;
+
+    private volatile int startThresholdMs;
+    private volatile int inputBufferMs;
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a new controller.
+     * Until the first measurements the start threshold is the whole audio buffer
+     * and the input buffer has its minimum size.
+     * @param audioBufferCapacityMs the capacity of the audio output - the maximum start threshold
+     * @param decodeBufferCapacityMs the default input buffer duration - the minimum one;
+     *          it can grow up to four times
+     * @param playerCallback the callback - notified if it is a BufferingListener; may be null
+     */
+    public BufferingController( int audioBufferCapacityMs, int decodeBufferCapacityMs, PlayerCallback playerCallback ) {
+        this.maxStartMs = audioBufferCapacityMs;
+        this.minStartMs = Math.min( DEFAULT_MIN_START_MS, audioBufferCapacityMs );
+        this.minInputMs = decodeBufferCapacityMs;
+        this.maxInputMs = decodeBufferCapacityMs * 4;
+        this.playerCallback = playerCallback;
+
+        startThresholdMs = maxStartMs;
+        inputBufferMs = minInputMs;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Public
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns the current start threshold.
+     * @return the amount of audio in ms which should be buffered before the output is started
+     */
+    public int getStartThresholdMs() {
+        return startThresholdMs;
+    }
+
+
+    /**
+     * Returns the current duration of one input buffer.
+     */
+    public int getInputBufferMs() {
+        return inputBufferMs;
+    }
+
+
+    /**
+     * Returns the smoothed input jitter in ms.
+     */
+    public synchronized int getJitterMs() {
+        return (int) jitterMs;
+    }
+
+
+    /**
+     * Returns the number of underruns reported so far.
+     */
+    public synchronized int getUnderruns() {
+        return underruns;
+    }
+
+
+    /**
+     * Sets the bitrate of the input - needed for the jitter measurement.
+     * The measurement is restarted.
+     * @param kbitSec the bitrate in kbit/s; 0 or less means unknown
+     */
+    public synchronized void setBitRate( int kbitSec ) {
+        byteRate = kbitSec > 0 ? kbitSec * 125 : 0;
+        t0 = 0;
+    }
+
+
+    /**
+     * Called by the reader when a buffer of input data is available.
+     * @param size the number of bytes
+     */
+    public void onInput( int size ) {
+        boolean changed;
+
+        synchronized (this) {
+            if (byteRate == 0 || size <= 0) return;
+
+            long now = System.currentTimeMillis();
+
+            if (t0 == 0) {
+                t0 = now;
+                bytes = size;
+                lastLagMs = 0;
+
+                return;
+            }
+
+            // how late the data are compared to the playback time:
+            long lag = now - t0 - bytes * 1000 / byteRate;
+            bytes += size;
+
+            // only late arrivals count - a burst of data (negative difference) is fine:
+            long d = lag - lastLagMs;
+            lastLagMs = lag;
+
+            jitterMs += ((d > 0 ? d : 0) - jitterMs) / 16;
+            measurements++;
+
+            changed = recompute( now );
+        }
+
+        if (changed) report();
+    }
+
+
+    /**
+     * Called by PCMFeed when the audio output ran out of data.
+     */
+    public void onUnderrun() {
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+
+            underruns++;
+            lastUnderrun = now;
+
+            // more audio needed in front of the playback head:
+            int p = Math.max( startThresholdMs, minStartMs ) * 2;
+            penaltyMs = Math.min( p, maxStartMs );
+
+            Log.w( LOG, "onUnderrun() #" + underruns + " - penalty " + penaltyMs + " ms" );
+
+            recompute( now );
+        }
+
+        // always report - the audio is buffering again:
+        report();
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        return "BufferingController[start=" + startThresholdMs + " ms, input=" + inputBufferMs
+                + " ms, jitter=" + (int) jitterMs + " ms, underruns=" + underruns + "]";
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Private
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Computes new values.
+     * @return true if changed
+     */
+    private boolean recompute( long now ) {
+        if (penaltyMs > 0 && now - lastUnderrun > RECOVERY_MS) {
+            penaltyMs /= 2;
+            lastUnderrun = now;
+
+            if (penaltyMs < minStartMs) penaltyMs = 0;
+        }
+
+        int start = startThresholdMs;
+
+        if (measurements >= MIN_MEASUREMENTS || penaltyMs > 0) {
+            start = minStartMs + 4 * (int) jitterMs;
+            if (start < penaltyMs) start = penaltyMs;
+            if (start > maxStartMs) start = maxStartMs;
+
+            start = start / STEP_MS * STEP_MS;
+        }
+
+        int input = minInputMs + 2 * (int) jitterMs + penaltyMs;
+        if (input > maxInputMs) input = maxInputMs;
+
+        input = input / STEP_MS * STEP_MS;
+        if (input < minInputMs) input = minInputMs;
+
+        if (start == startThresholdMs && input == inputBufferMs) return false;
+
+        startThresholdMs = start;
+        inputBufferMs = input;
+
+        return true;
+    }
+
+
+    private void report() {
+        Log.d( LOG, "report() " + this );
+
+        PlayerCallback cb = playerCallback;
+
+        if (cb instanceof BufferingListener) {
+            ((BufferingListener) cb).playerBufferingChanged( startThresholdMs, inputBufferMs, getUnderruns());
+        }
+    }
+
+}
@@ -0,0 +1,58 @@
+/*
+** AACDecoder - Freeware Advanced Audio (AAC) Decoder for Android
+** Copyright (C) 2011 Spolecne s.r.o., http://www.spoledge.com
+**
+** This file is a part of AACDecoder.
+**
+** AACDecoder is free software; you can redistribute it and/or modify
+** it under the terms of the GNU Lesser General Public License as published
+** by the Free Software Foundation; either version 3 of the License,
+** or (at your option) any later version.
+**
+** This program is distributed in the hope that it will be useful,
+** but WITHOUT ANY WARRANTY; without even the implied warranty of
+** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+** GNU Lesser General Public License for more details.
+**
+** You should have received a copy of the GNU Lesser General Public License
+** along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.spoledge.aacdecoder;
+
+
+/**
+ * The optional listener of the buffering events.
+ * If the PlayerCallback passed to the player implements also this interface,
+ * then it is notified about the decisions of the adaptive buffering (see BufferingController)
+ * and about the reconnects of live streams (see ReconnectingBufferReader).
+ * The existing implementations of PlayerCallback need not be changed.
+ * <pre>
+ *  public class MyCallback implements PlayerCallback, BufferingListener {
+ *      ...
+ *  }
+ * </pre>
+ * @since 0.9
+ */
+public interface BufferingListener {
+
+    /**
+     * This method is called when the adaptive buffering changes its decisions
+     * (see BufferingController) - e.g. after an underrun or when the network is steady.
+     *
+     * @param startThresholdMs the amount of audio buffered before the output (re)starts
+     * @param inputBufferMs the duration of compressed data held by one input buffer
+     * @param underruns the total number of underruns of the audio output
+     */
+    public void playerBufferingChanged( int startThresholdMs, int inputBufferMs, int underruns );
+
+
+    /**
+     * This method is called when the player reconnected the stream after a network outage
+     * (see ReconnectingBufferReader) - the playback continues without restarting the audio output.
+     *
+     * @param reconnects the total number of successful reconnects of the stream
+     * @param latencyMs the time from detecting the outage to the new connection
+     */
+    public void playerReconnected( int reconnects, int latencyMs );
+
+}
@@ -0,0 +1,473 @@
+/*
+** AACDecoder - Freeware Advanced Audio (AAC) Decoder for Android
+** Copyright (C) 2011 Spolecne s.r.o., http://www.spoledge.com
+**
+** This file is a part of AACDecoder.
+**
+** AACDecoder is free software; you can redistribute it and/or modify
+** it under the terms of the GNU Lesser General Public License as published
+** by the Free Software Foundation; either version 3 of the License,
+** or (at your option) any later version.
+**
+** This program is distributed in the hope that it will be useful,
+** but WITHOUT ANY WARRANTY; without even the implied warranty of
+** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+** GNU Lesser General Public License for more details.
+**
+** You should have received a copy of the GNU Lesser General Public License
+** along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.spoledge.aacdecoder;
+
+import android.media.AudioTrack;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * This is a PlayerCallback which passes the calls to another callback asynchronously,
+ * so the callback never runs on the reader, decoder or audio output threads.
+ * The calls are delivered in order by one task at a time. The queue is bounded and the values
+ * which are only a state (buffer levels, metadata of the same key, ...) are coalesced
+ * - the last value wins.
+ * Only playerAudioTrackCreated() is called synchronously - the AudioTrack can be configured
+ * before it is used.
+ * <pre>
+ *  AACPlayer player = new AACPlayer( new CallbackDispatcher( myCallback ));
+ * </pre>
+ * @since 0.9
+ */
+public class CallbackDispatcher implements PlayerCallback, BufferingListener {
+
+    /**
+     * One pending call.
+     */
+    private static final class Event {
+        final int type;
+        final String key;
+
+        String value;
+        Throwable t;
+        boolean flag;
+        int i1;
+        int i2;
+        int i3;
+
+        /**
+         * The time of the (last) call in nanoseconds.
+         */
+        long ts;
+
+        Event( int type, String key ) {
+            this.type = type;
+            this.key = key;
+        }
+    }
+
+
+    /**
+     * The default maximum number of pending calls.
+     */
+    public static final int DEFAULT_CAPACITY = 32;
+
+    private static final String LOG = "CallbackDispatcher";
+
+    private static final int TYPE_STARTED = 0;
+    private static final int TYPE_PCMFEED_BUFFER = 1;
+    private static final int TYPE_STOPPED = 2;
+    private static final int TYPE_EXCEPTION = 3;
+    private static final int TYPE_METADATA = 4;
+    private static final int TYPE_BUFFERING_CHANGED = 5;
+    private static final int TYPE_RECONNECTED = 6;
+
+    private static final int KEEP_ALIVE_SECONDS = 30;
+
+    private static Executor defaultExecutor;
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Attributes
+    ////////////////////////////////////////////////////////////////////////////
+
+    private final PlayerCallback playerCallback;
+    private final Executor executor;
+    private final int capacity;
+
+    private final ArrayDeque<Event> events;
+
+    /**
+     * True if a task delivering the events is scheduled or running.
+     */
+    private boolean scheduled;
+
+    private final Runnable drainTask = new Runnable() {
+        public void run() {
+            drain();
+        }
+    };
+
+    private int delivered;
+    private int coalesced;
+    private int dropped;
+    private long totalLatencyNanos;
+    private long maxLatencyNanos;
+    private long maxCallbackNanos;
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a new dispatcher using the default executor - one thread shared by all dispatchers.
+     * @param playerCallback the target callback
+     */
+    public CallbackDispatcher( PlayerCallback playerCallback ) {
+        this( playerCallback, null, DEFAULT_CAPACITY );
+    }
+
+
+    /**
+     * Creates a new dispatcher.
+     * @param playerCallback the target callback
+     * @param executor the executor of the delivering tasks - null means the default one
+     * @param capacity the maximum number of pending calls
+     */
+    public CallbackDispatcher( PlayerCallback playerCallback, Executor executor, int capacity ) {
+        this.playerCallback = playerCallback;
+        this.executor = executor != null ? executor : getDefaultExecutor();
+        this.capacity = capacity;
+
+        events = new ArrayDeque<Event>( capacity );
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // PlayerCallback
+    ////////////////////////////////////////////////////////////////////////////
+
+    public void playerStarted() {
+        post( new Event( TYPE_STARTED, null ));
+    }
+
+
+    public void playerPCMFeedBuffer( boolean isPlaying, int audioBufferSizeMs, int audioBufferCapacityMs ) {
+        boolean schedule;
+
+        synchronized (this) {
+            Event e = take( TYPE_PCMFEED_BUFFER, null );
+            e.flag = isPlaying;
+            e.i1 = audioBufferSizeMs;
+            e.i2 = audioBufferCapacityMs;
+
+            schedule = enqueue( e );
+        }
+
+        if (schedule) schedule();
+    }
+
+
+    public void playerStopped( int perf ) {
+        Event e = new Event( TYPE_STOPPED, null );
+        e.i1 = perf;
+
+        post( e );
+    }
+
+
+    public void playerException( Throwable t ) {
+        Event e = new Event( TYPE_EXCEPTION, null );
+        e.t = t;
+
+        post( e );
+    }
+
+
+    public void playerMetadata( String key, String value ) {
+        boolean schedule;
+
+        synchronized (this) {
+            Event e = take( TYPE_METADATA, key );
+            e.value = value;
+
+            schedule = enqueue( e );
+        }
+
+        if (schedule) schedule();
+    }
+
+
+    /**
+     * Calls the target callback synchronously.
+     */
+    public void playerAudioTrackCreated( AudioTrack audioTrack ) {
+        playerCallback.playerAudioTrackCreated( audioTrack );
+    }
+
+
+    /**
+     * Passes the call to the target callback if it is a BufferingListener.
+     */
+    public void playerBufferingChanged( int startThresholdMs, int inputBufferMs, int underruns ) {
+        if (!(playerCallback instanceof BufferingListener)) return;
+
+        boolean schedule;
+
+        synchronized (this) {
+            Event e = take( TYPE_BUFFERING_CHANGED, null );
+            e.i1 = startThresholdMs;
+            e.i2 = inputBufferMs;
+            e.i3 = underruns;
+
+            schedule = enqueue( e );
+        }
+
+        if (schedule) schedule();
+    }
+
+
+    /**
+     * Passes the call to the target callback if it is a BufferingListener.
+     */
+    public void playerReconnected( int reconnects, int latencyMs ) {
+        if (!(playerCallback instanceof BufferingListener)) return;
+
+        boolean schedule;
+
+        synchronized (this) {
+            Event e = take( TYPE_RECONNECTED, null );
+            e.i1 = reconnects;
+            e.i2 = latencyMs;
+
+            schedule = enqueue( e );
+        }
+
+        if (schedule) schedule();
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Public
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns the target callback.
+     */
+    public final PlayerCallback getPlayerCallback() {
+        return playerCallback;
+    }
+
+
+    /**
+     * Returns the number of calls delivered.
+     */
+    public synchronized int getDeliveredCount() {
+        return delivered;
+    }
+
+
+    /**
+     * Returns the number of calls replaced by a newer value before they were delivered.
+     */
+    public synchronized int getCoalescedCount() {
+        return coalesced;
+    }
+
+
+    /**
+     * Returns the number of calls dropped because the queue was full.
+     */
+    public synchronized int getDroppedCount() {
+        return dropped;
+    }
+
+
+    /**
+     * Returns the average time from the call to its delivery in microseconds.
+     */
+    public synchronized int getAverageLatencyUs() {
+        return delivered > 0 ? (int)(totalLatencyNanos / delivered / 1000) : 0;
+    }
+
+
+    /**
+     * Returns the maximum time from the call to its delivery in microseconds.
+     */
+    public synchronized int getMaxLatencyUs() {
+        return (int)(maxLatencyNanos / 1000);
+    }
+
+
+    /**
+     * Returns the maximum time spent by the target callback in microseconds.
+     */
+    public synchronized int getMaxCallbackUs() {
+        return (int)(maxCallbackNanos / 1000);
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Private
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns the executor shared by the dispatchers without their own one.
+     */
+    private static synchronized Executor getDefaultExecutor() {
+        if (defaultExecutor == null) {
+            ThreadPoolExecutor tpe = new ThreadPoolExecutor( 1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                                            new LinkedBlockingQueue<Runnable>(),
+                                            new PlayerThreadFactory( "aac-callback", Process.THREAD_PRIORITY_DEFAULT ));
+            tpe.allowCoreThreadTimeOut( true );
+
+            defaultExecutor = tpe;
+        }
+
+        return defaultExecutor;
+    }
+
+
+    /**
+     * Removes the pending event of the same type (and key) - its value will be replaced.
+     * @return the pending event or a new one
+     */
+    private Event take( int type, String key ) {
+        for (Iterator<Event> it = events.iterator(); it.hasNext();) {
+            Event e = it.next();
+
+            if (e.type == type && (key != null ? key.equals( e.key ) : e.key == null)) {
+                it.remove();
+                coalesced++;
+
+                return e;
+            }
+        }
+
+        return new Event( type, key );
+    }
+
+
+    private void post( Event e ) {
+        boolean schedule;
+
+        synchronized (this) {
+            schedule = enqueue( e );
+        }
+
+        if (schedule) schedule();
+    }
+
+
+    /**
+     * Adds the event to the end of the queue - if full, then the oldest state is dropped.
+     * @return true if the delivering task must be scheduled
+     */
+    private boolean enqueue( Event e ) {
+        if (events.size() >= capacity) {
+            Event victim = null;
+
+            for (Event p : events) {
+                if (isState( p.type )) {
+                    victim = p;
+                    break;
+                }
+            }
+
+            if (victim != null) events.remove( victim );
+            else victim = events.poll();
+
+            dropped++;
+            Log.w( LOG, "enqueue() queue full - dropped event type " + victim.type );
+        }
+
+        e.ts = System.nanoTime();
+        events.add( e );
+
+        if (scheduled) return false;
+
+        scheduled = true;
+
+        return true;
+    }
+
+
+    private void schedule() {
+        try {
+            executor.execute( drainTask );
+        }
+        catch (RejectedExecutionException e) {
+            Log.w( LOG, "schedule() no thread available - delivering by the caller: " + e );
+            drain();
+        }
+    }
+
+
+    /**
+     * Delivers the pending events - until the queue is empty.
+     */
+    private void drain() {
+        while (true) {
+            Event e;
+
+            synchronized (this) {
+                e = events.poll();
+
+                if (e == null) {
+                    scheduled = false;
+                    return;
+                }
+            }
+
+            long start = System.nanoTime();
+
+            try {
+                deliver( e );
+            }
+            catch (Throwable t) {
+                Log.e( LOG, "drain() callback failed:", t );
+            }
+
+            long end = System.nanoTime();
+
+            synchronized (this) {
+                long latency = start - e.ts;
+
+                delivered++;
+                totalLatencyNanos += latency;
+                if (latency > maxLatencyNanos) maxLatencyNanos = latency;
+                if (end - start > maxCallbackNanos) maxCallbackNanos = end - start;
+            }
+        }
+    }
+
+
+    private void deliver( Event e ) {
+        switch (e.type) {
+            case TYPE_STARTED: playerCallback.playerStarted(); break;
+            case TYPE_PCMFEED_BUFFER: playerCallback.playerPCMFeedBuffer( e.flag, e.i1, e.i2 ); break;
+            case TYPE_STOPPED: playerCallback.playerStopped( e.i1 ); break;
+            case TYPE_EXCEPTION: playerCallback.playerException( e.t ); break;
+            case TYPE_METADATA: playerCallback.playerMetadata( e.key, e.value ); break;
+            case TYPE_BUFFERING_CHANGED: ((BufferingListener) playerCallback).playerBufferingChanged( e.i1, e.i2, e.i3 ); break;
+            case TYPE_RECONNECTED: ((BufferingListener) playerCallback).playerReconnected( e.i1, e.i2 ); break;
+        }
+    }
+
+
+    /**
+     * Returns true if the event type is a state - it can be coalesced or dropped.
+     */
+    private static boolean isState( int type ) {
+        return type == TYPE_PCMFEED_BUFFER || type == TYPE_METADATA
+                || type == TYPE_BUFFERING_CHANGED || type == TYPE_RECONNECTED;
+    }
+
+}
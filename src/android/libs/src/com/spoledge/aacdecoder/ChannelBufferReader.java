@@ -0,0 +1,269 @@
+/*
+** AACDecoder - Freeware Advanced Audio (AAC) Decoder for Android
+** Copyright (C) 2011 Spolecne s.r.o., http://www.spoledge.com
+**
+** This file is a part of AACDecoder.
+**
+** AACDecoder is free software; you can redistribute it and/or modify
+** it under the terms of the GNU Lesser General Public License as published
+** by the Free Software Foundation; either version 3 of the License,
+** or (at your option) any later version.
+**
+** This program is distributed in the hope that it will be useful,
+** but WITHOUT ANY WARRANTY; without even the implied warranty of
+** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+** GNU Lesser General Public License for more details.
+**
+** You should have received a copy of the GNU Lesser General Public License
+** along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.spoledge.aacdecoder;
+
+import android.util.Log;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+
+/**
+ * This is a reader of a non-blocking socket channel.
+ * It has no execution thread - the buffers are filled by NioReaderEngine
+ * when data arrive. When all buffers are full, the engine stops reading the channel,
+ * so the TCP flow control slows down the sender.
+ * <pre>
+ *  SocketChannel channel = ...; // connected, the response headers already read
+ *
+ *  ChannelBufferReader reader = new ChannelBufferReader( 4096, channel, null );
+ *  NioReaderEngine.getDefault().register( reader );
+ *
+ *  // get the data
+ *  while (...) {
+ *      BufferReader.Buffer buf = reader.next();
+ *      ...
+ *  }
+ * </pre>
+ * @since 0.9
+ */
+public class ChannelBufferReader extends BufferReader {
+
+    /**
+     * The result of readAvailable(): more data may come.
+     */
+    static final int READ_MORE = 0;
+
+    /**
+     * The result of readAvailable(): no free buffer - stop reading the channel.
+     */
+    static final int READ_FULL = 1;
+
+    /**
+     * The result of readAvailable(): end of stream or error - the channel should be deregistered.
+     */
+    static final int READ_END = 2;
+
+    private static final String LOG = "ChannelBufferReader";
+
+    private SocketChannel channel;
+    private IcyMetadataFilter filter;
+
+    /**
+     * The engine serving this reader.
+     */
+    private volatile NioReaderEngine engine;
+
+    /**
+     * The selection key and the state - accessed only by the engine thread.
+     */
+    SelectionKey key;
+    boolean deregistered;
+
+    /**
+     * The buffer being filled and its size.
+     */
+    private Buffer current;
+    private int filled;
+
+    /**
+     * The bytes already read from the channel by someone else - passed first; may be null.
+     */
+    private ByteBuffer initialData;
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a new reader.
+     * @param capacity the capacity of one buffer in bytes
+     * @param channel the connected channel - it is switched to non-blocking mode by the engine
+     * @param filter the filter of ICY metadata - may be null
+     */
+    public ChannelBufferReader( int capacity, SocketChannel channel, IcyMetadataFilter filter ) {
+        super( capacity, null );
+
+        this.channel = channel;
+        this.filter = filter;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Public
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns the channel.
+     */
+    public final SocketChannel getChannel() {
+        return channel;
+    }
+
+
+    /**
+     * Sets the bytes which were already read from the channel - e.g. together with
+     * the response headers (see IcyURLConnection.getBodyStart()).
+     * They are passed before the data of the channel (and filtered as well).
+     * NOTE: this must be called BEFORE the reader is registered.
+     * @param initialData the data from the position to the limit
+     */
+    public void setInitialData( ByteBuffer initialData ) {
+        this.initialData = initialData;
+    }
+
+
+    /**
+     * Registers this reader with the default engine.
+     * This allows to run the reader by an Executor like the stream based BufferReader -
+     * the method returns immediately.
+     */
+    @Override
+    public void run() {
+        NioReaderEngine.getDefault().register( this );
+    }
+
+
+    @Override
+    public void stop() {
+        boolean wasStopped = isStopped();
+
+        super.stop();
+
+        // let the engine deregister the channel:
+        NioReaderEngine e = engine;
+        if (e != null && !wasStopped) e.wakeup( this );
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Protected
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Asks the engine to read the channel again - a buffer was released.
+     */
+    @Override
+    protected void onRelease() {
+        NioReaderEngine e = engine;
+        if (e != null && !isStopped()) e.wakeup( this );
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Package
+    ////////////////////////////////////////////////////////////////////////////
+
+    void setEngine( NioReaderEngine engine ) {
+        this.engine = engine;
+    }
+
+
+    /**
+     * Reads all available data - called by the engine thread.
+     * @return READ_MORE, READ_FULL or READ_END
+     */
+    int readAvailable() {
+        if (isStopped()) return READ_END;
+
+        try {
+            while (true) {
+                if (current == null) {
+                    current = claimBuffer();
+
+                    if (current == null) return isStopped() ? READ_END : READ_FULL;
+
+                    filled = 0;
+                }
+
+                int cap = current.getCapacity();
+                ByteBuffer bb = current.getByteBuffer();
+                int pos = current.getOffset() + filled;
+
+                bb.limit( current.getOffset() + cap );
+                bb.position( pos );
+
+                int n;
+
+                if (initialData != null) {
+                    n = Math.min( initialData.remaining(), cap - filled );
+
+                    ByteBuffer src = initialData.duplicate();
+                    src.limit( src.position() + n );
+                    bb.put( src );
+
+                    initialData.position( initialData.position() + n );
+                    if (!initialData.hasRemaining()) initialData = null;
+                }
+                else n = channel.read( bb );
+
+                if (n == -1) {
+                    Log.d( LOG, "readAvailable() end of stream" );
+                    setEndOfStream();
+                    end();
+                    return READ_END;
+                }
+
+                if (n == 0) return READ_MORE;
+
+                if (filter != null) n = filter.filter( bb, pos, n );
+
+                // only the audio data - the same as read by BufferReader from IcyInputStream:
+                addBytesRead( n );
+
+                filled += n;
+
+                if (filled >= getFillTarget( cap )) {
+                    publishBuffer( current, filled );
+                    current = null;
+                }
+            }
+        }
+        catch (IOException e) {
+            if (!isStopped()) Log.e( LOG, "Exception when reading: " + e );
+            end();
+
+            return READ_END;
+        }
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Private
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Publishes the partially filled buffer and finishes.
+     */
+    private void end() {
+        if (current != null) {
+            publishBuffer( current, filled );
+            current = null;
+        }
+
+        finish();
+    }
+
+}
+
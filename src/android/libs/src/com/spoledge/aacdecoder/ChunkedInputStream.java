@@ -0,0 +1,199 @@
+/*
+** AACDecoder - Freeware Advanced Audio (AAC) Decoder for Android
+** Copyright (C) 2011 Spolecne s.r.o., http://www.spoledge.com
+**
+** This file is a part of AACDecoder.
+**
+** AACDecoder is free software; you can redistribute it and/or modify
+** it under the terms of the GNU Lesser General Public License as published
+** by the Free Software Foundation; either version 3 of the License,
+** or (at your option) any later version.
+**
+** This program is distributed in the hope that it will be useful,
+** but WITHOUT ANY WARRANTY; without even the implied warranty of
+** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+** GNU Lesser General Public License for more details.
+**
+** You should have received a copy of the GNU Lesser General Public License
+** along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.spoledge.aacdecoder;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * This decodes the body of a HTTP/1.1 response sent with "Transfer-Encoding: chunked".
+ * The chunk sizes, chunk extensions and trailers are removed - only the data are returned.
+ * The stream does not read anything after the last (zero-length) chunk and its trailers,
+ * so the underlying connection can be reused - see isFinished().
+ * NOTE: closing this stream does not close the underlying stream.
+ * @since 0.9
+ */
+public class ChunkedInputStream extends FilterInputStream {
+
+    /**
+     * The maximum length of a chunk-size line (including extensions) or a trailer line.
+     */
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    /**
+     * The number of bytes remaining in the current chunk; -1 before the first chunk.
+     */
+    private long remaining = -1;
+
+    private boolean finished;
+    private boolean closed;
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a new stream.
+     * @param in the stream positioned at the first chunk-size line
+     */
+    public ChunkedInputStream( InputStream in ) {
+        super( in );
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Public
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns true if the last chunk and the trailers were read.
+     */
+    public final boolean isFinished() {
+        return finished;
+    }
+
+
+    @Override
+    public int read() throws IOException {
+        if (!nextChunk()) return -1;
+
+        int ret = in.read();
+
+        if (ret == -1) throw new IOException( "Unexpected end of the chunked stream" );
+
+        remaining--;
+
+        return ret;
+    }
+
+
+    @Override
+    public int read( byte[] buf, int off, int len ) throws IOException {
+        if (len == 0) return 0;
+        if (!nextChunk()) return -1;
+
+        int n = in.read( buf, off, (int) Math.min( len, remaining ));
+
+        if (n == -1) throw new IOException( "Unexpected end of the chunked stream" );
+
+        remaining -= n;
+
+        return n;
+    }
+
+
+    @Override
+    public long skip( long n ) throws IOException {
+        if (n <= 0 || !nextChunk()) return 0;
+
+        long ret = in.skip( Math.min( n, remaining ));
+        remaining -= ret;
+
+        return ret;
+    }
+
+
+    @Override
+    public int available() throws IOException {
+        if (closed || finished || remaining <= 0) return 0;
+
+        return (int) Math.min( in.available(), remaining );
+    }
+
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+
+    /**
+     * Closes this stream only - the underlying stream is left open.
+     */
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Private
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Reads the next chunk-size line if the current chunk is exhausted.
+     * @return false if the last chunk was already read
+     */
+    private boolean nextChunk() throws IOException {
+        if (closed) throw new IOException( "Stream closed" );
+        if (finished) return false;
+        if (remaining > 0) return true;
+
+        // the CRLF after the data of the previous chunk:
+        if (remaining == 0 && readLine().length() != 0) throw new IOException( "Invalid chunk end" );
+
+        String line = readLine();
+        int n = line.indexOf( ';' );
+        if (n != -1) line = line.substring( 0, n );
+
+        try {
+            remaining = Long.parseLong( line.trim(), 16 );
+        }
+        catch (NumberFormatException e) {
+            throw new IOException( "Invalid chunk size: " + line );
+        }
+
+        if (remaining < 0) throw new IOException( "Invalid chunk size: " + line );
+
+        if (remaining == 0) {
+            // the trailers are ignored:
+            while (readLine().length() != 0);
+
+            finished = true;
+
+            return false;
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Reads one line - the new-line characters (CRLF or LF) are removed.
+     */
+    private String readLine() throws IOException {
+        StringBuilder sb = new StringBuilder();
+
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) throw new IOException( "Unexpected end of the chunked stream" );
+            if (c == '\r') continue;
+            if (sb.length() == MAX_LINE_LENGTH) throw new IOException( "Chunk line too long" );
+
+            sb.append( (char) c );
+        }
+
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,253 @@
+/*
+** AACDecoder - Freeware Advanced Audio (AAC) Decoder for Android
+** Copyright (C) 2011 Spolecne s.r.o., http://www.spoledge.com
+**
+** This file is a part of AACDecoder.
+**
+** AACDecoder is free software; you can redistribute it and/or modify
+** it under the terms of the GNU Lesser General Public License as published
+** by the Free Software Foundation; either version 3 of the License,
+** or (at your option) any later version.
+**
+** This program is distributed in the hope that it will be useful,
+** but WITHOUT ANY WARRANTY; without even the implied warranty of
+** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+** GNU Lesser General Public License for more details.
+**
+** You should have received a copy of the GNU Lesser General Public License
+** along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.spoledge.aacdecoder;
+
+import android.util.Log;
+
+import java.io.IOException;
+
+import java.net.Socket;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+
+/**
+ * This is a small pool of idle keep-alive connections used by IcyURLConnection.
+ * Only connections of finite responses (e.g. playlists) which were read till the end
+ * are returned to the pool - the next request to the same server then does not need
+ * to open a new connection.
+ * The pool is bounded and the idle connections expire - the least recently returned are closed first.
+ * All methods are thread safe.
+ * @since 0.9
+ */
+public class ConnectionPool {
+
+    private static final class Idle {
+        final String key;
+        final Socket socket;
+        final long expires;
+
+        Idle( String key, Socket socket, long expires ) {
+            this.key = key;
+            this.socket = socket;
+            this.expires = expires;
+        }
+    }
+
+
+    /**
+     * The default maximum number of idle connections.
+     */
+    public static final int DEFAULT_MAX_IDLE = 4;
+
+    /**
+     * The default time an idle connection is kept - most servers close it after 15 seconds.
+     */
+    public static final long DEFAULT_KEEP_ALIVE_MS = 10000;
+
+    private static final String LOG = "ConnectionPool";
+
+    private static ConnectionPool defaultPool;
+
+    private final int maxIdle;
+    private final long keepAliveMs;
+
+    /**
+     * The idle connections - the least recently returned first.
+     */
+    private final LinkedList<Idle> idles = new LinkedList<Idle>();
+
+    private long hits;
+    private long misses;
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a new pool.
+     * @param maxIdle the maximum number of idle connections; 0 means that nothing is kept
+     * @param keepAliveMs the time an idle connection is kept in ms
+     */
+    public ConnectionPool( int maxIdle, long keepAliveMs ) {
+        this.maxIdle = maxIdle;
+        this.keepAliveMs = keepAliveMs;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Public
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns the process-wide pool.
+     */
+    public static synchronized ConnectionPool getDefault() {
+        if (defaultPool == null) defaultPool = new ConnectionPool( DEFAULT_MAX_IDLE, DEFAULT_KEEP_ALIVE_MS );
+
+        return defaultPool;
+    }
+
+
+    /**
+     * Returns an idle plain connection to the server and removes it from the pool.
+     * @return the connected socket or null if no such connection is available
+     */
+    public Socket get( String host, int port ) {
+        return get( host, port, false );
+    }
+
+
+    /**
+     * Returns an idle connection to the server and removes it from the pool.
+     * @param secure true for TLS connections
+     * @return the connected socket or null if no such connection is available
+     */
+    public Socket get( String host, int port, boolean secure ) {
+        String key = key( host, port, secure );
+        long now = System.currentTimeMillis();
+        LinkedList<Socket> expired = null;
+        Socket ret = null;
+
+        synchronized (this) {
+            // the most recently returned is the most probably still alive:
+            for (Iterator<Idle> it = idles.descendingIterator(); it.hasNext();) {
+                Idle idle = it.next();
+
+                if (idle.expires <= now || idle.socket.isClosed()) {
+                    it.remove();
+
+                    if (expired == null) expired = new LinkedList<Socket>();
+                    expired.add( idle.socket );
+                }
+                else if (ret == null && idle.key.equals( key )) {
+                    it.remove();
+                    ret = idle.socket;
+                }
+            }
+
+            if (ret != null) hits++;
+            else misses++;
+        }
+
+        if (expired != null) {
+            for (Socket s : expired) close( s );
+        }
+
+        return ret;
+    }
+
+
+    /**
+     * Returns the connection to the pool.
+     * The response must be read completely - the next response must start at the current position.
+     * If the pool is full, then the least recently returned connection is closed.
+     */
+    public void put( String host, int port, Socket socket ) {
+        put( host, port, false, socket );
+    }
+
+
+    /**
+     * Returns the connection to the pool.
+     * @param secure true for TLS connections
+     */
+    public void put( String host, int port, boolean secure, Socket socket ) {
+        if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+            close( socket );
+            return;
+        }
+
+        Socket evicted = null;
+
+        synchronized (this) {
+            if (maxIdle > 0) {
+                idles.add( new Idle( key( host, port, secure ), socket, System.currentTimeMillis() + keepAliveMs ));
+                socket = null;
+            }
+
+            if (idles.size() > maxIdle) evicted = idles.removeFirst().socket;
+        }
+
+        if (socket != null) close( socket );
+        if (evicted != null) close( evicted );
+    }
+
+
+    /**
+     * Closes all idle connections.
+     */
+    public void clear() {
+        LinkedList<Idle> list;
+
+        synchronized (this) {
+            list = new LinkedList<Idle>( idles );
+            idles.clear();
+        }
+
+        for (Idle idle : list) close( idle.socket );
+    }
+
+
+    /**
+     * Returns the number of idle connections.
+     */
+    public synchronized int size() {
+        return idles.size();
+    }
+
+
+    /**
+     * Returns the number of requests served by an idle connection.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+
+    /**
+     * Returns the number of requests which had to open a new connection.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Private
+    ////////////////////////////////////////////////////////////////////////////
+
+    private static String key( String host, int port, boolean secure ) {
+        return (secure ? "tls:" : "") + host.toLowerCase() + ':' + port;
+    }
+
+
+    private static void close( Socket socket ) {
+        try {
+            socket.close();
+        }
+        catch (IOException e) {
+            Log.w( LOG, "close(): " + e );
+        }
+    }
+
+}
@@ -21,6 +21,9 @@ package com.spoledge.aacdecoder;
 
 import android.util.Log;
 
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
 /**
  * The decoder which calls native implementation(s).
  */
@@ -49,7 +52,7 @@ public class Decoder {
 
         /**
          * Returns the sampling rate in Hz.
-         * @return the sampling rate - always set
+         * @return the sampling rate - always set (in push mode 0 until the stream is detected)
          */
         public int getSampleRate() {
             return sampleRate;
@@ -166,6 +169,12 @@ public class Decoder {
     protected Info info;
 
 
+    /**
+     * True if the decoder was started by startPush().
+     */
+    protected boolean push;
+
+
     ////////////////////////////////////////////////////////////////////////////
     // Constructors
     ////////////////////////////////////////////////////////////////////////////
@@ -238,6 +247,106 @@ public class Decoder {
         if (aacdw == 0) throw new RuntimeException("Cannot start native decoder");
 
         state = STATE_RUNNING;
+        push = false;
+
+        return info;
+    }
+
+
+    /**
+     * Starts decoding in push mode - the caller passes the input by feed()
+     * and collects the samples by drain(); no BufferReader and no thread is needed.
+     * <pre>
+     *  Decoder decoder = Decoder.create();
+     *  Decoder.Info info = decoder.startPush();
+     *
+     *  while (...) {
+     *      decoder.feed( input );
+     *      decoder.drain( output );
+     *
+     *      // info.getSampleRate() is 0 until enough input was fed to detect the stream
+     *      ...
+     *  }
+     *
+     *  // the last frames:
+     *  decoder.finish();
+     *  while (decoder.drain( output ).getRoundSamples() > 0) ...
+     * </pre>
+     * @since 0.9
+     */
+    public Info startPush() {
+        if (state != STATE_IDLE) throw new IllegalStateException();
+
+        info = new Info();
+
+        aacdw = nativeStartPush( decoder, info );
+
+        if (aacdw == 0) throw new RuntimeException("Cannot start native decoder");
+
+        state = STATE_RUNNING;
+        push = true;
+
+        return info;
+    }
+
+
+    /**
+     * Passes the input in push mode.
+     * All remaining bytes of the buffer are copied by the decoder,
+     * so the buffer can be reused immediately; its position is set to the limit.
+     * Direct buffers are accessed in place, other buffers must be backed by an array.
+     * @since 0.9
+     */
+    public void feed( ByteBuffer input ) {
+        if (state != STATE_RUNNING || !push) throw new IllegalStateException();
+
+        int len = input.remaining();
+
+        if (len == 0) return;
+
+        int res;
+
+        if (input.isDirect()) res = nativeFeed( aacdw, input, input.position(), len );
+        else res = nativeFeedArray( aacdw, input.array(), input.arrayOffset() + input.position(), len );
+
+        if (res < 0) throw new RuntimeException( "Cannot feed the decoder" );
+
+        input.position( input.limit());
+    }
+
+
+    /**
+     * Signals the end of the input in push mode - no more feed() calls follow.
+     * Then drain() starts the decoder even with less input than needed normally
+     * and decodes all the remaining input including the last frames.
+     * @since 0.9
+     */
+    public void finish() {
+        if (state != STATE_RUNNING || !push) throw new IllegalStateException();
+
+        nativeFinish( aacdw );
+    }
+
+
+    /**
+     * Decodes all complete frames fed so far in push mode - never blocks.
+     * The samples are stored from the beginning of the buffer;
+     * after decoding the position is set to 0 and the limit to the number of samples produced.
+     * If not enough input was fed yet, then no samples are produced.
+     * The last frames of the input are decoded only after finish() was called.
+     * @param samples the direct buffer (e.g. a view of a direct ByteBuffer in native byte order)
+     * @since 0.9
+     */
+    public Info drain( ShortBuffer samples ) {
+        if (state != STATE_RUNNING || !push) throw new IllegalStateException();
+        if (!samples.isDirect()) throw new IllegalArgumentException( "The buffer is not direct" );
+
+        long n = nativeDrain( aacdw, samples, samples.capacity());
+
+        if (n < 0) throw new RuntimeException( "Cannot decode the input" );
+
+        samples.clear();
+        samples.limit( info.getRoundSamples());
 
         return info;
     }
@@ -248,7 +357,7 @@ public class Decoder {
      * @return the number of samples produced (totally all channels = the length of the filled array)
      */
     public Info decode( short[] samples, int outLen ) {
-        if (state != STATE_RUNNING) throw new IllegalStateException();
+        if (state != STATE_RUNNING || push) throw new IllegalStateException();
 
         nativeDecode( aacdw, samples, outLen );
 
@@ -256,6 +365,30 @@ public class Decoder {
     }
 
 
+    /**
+     * Decodes stream directly into a direct buffer - no array copying is done.
+     * The samples are stored from the beginning of the buffer;
+     * after decoding the position is set to 0 and the limit to the number of samples produced.
+     * @param samples the direct buffer (e.g. a view of a direct ByteBuffer in native byte order)
+     * @param outLen the maximum number of samples to be produced
+     * @since 0.9
+     */
+    public Info decode( ShortBuffer samples, int outLen ) {
+        if (state != STATE_RUNNING || push) throw new IllegalStateException();
+        if (!samples.isDirect()) throw new IllegalArgumentException( "The buffer is not direct" );
+        if (outLen > samples.capacity()) throw new IllegalArgumentException( "The buffer is too small: " + samples.capacity());
+
+        long n = nativeDecodeDirect( aacdw, samples, outLen );
+
+        if (n < 0) throw new RuntimeException( "Cannot decode into the buffer" );
+
+        samples.clear();
+        samples.limit( info.getRoundSamples());
+
+        return info;
+    }
+
+
     /**
      * Stops the decoder and releases all resources.
      */
@@ -306,6 +439,55 @@ public class Decoder {
     protected native long nativeDecode( long aacdw, short[] samples, int outLen );
 
 
+    /**
+     * Actually decodes a chunk of data directly into the memory of the direct buffer.
+     * Calls back Java method BufferReader.next() when additional input is needed.
+     * @param aacdw the pointer to the C struct
+     * @return the number of samples or -1 if the buffer is not direct
+     */
+    protected native long nativeDecodeDirect( long aacdw, ShortBuffer samples, int outLen );
+
+
+    /**
+     * Actually starts decoding in push mode.
+     * The stream type is detected later when enough input is available.
+     * @param decoder the pointer to the C struct AACDDecoder or NULL
+     * @return the pointer to the C struct
+     */
+    protected native long nativeStartPush( long decoder, Info info );
+
+
+    /**
+     * Actually passes the input of a direct buffer - the data are copied.
+     * @param aacdw the pointer to the C struct
+     * @return 0 or -1 if the buffer is not direct
+     */
+    protected native int nativeFeed( long aacdw, ByteBuffer input, int off, int len );
+
+
+    /**
+     * Actually passes the input of an array - the data are copied.
+     * @param aacdw the pointer to the C struct
+     * @return 0 or -1 on error
+     */
+    protected native int nativeFeedArray( long aacdw, byte[] input, int off, int len );
+
+
+    /**
+     * Actually decodes the input fed so far directly into the memory of the direct buffer.
+     * @param aacdw the pointer to the C struct
+     * @return the number of samples or -1 on error
+     */
+    protected native long nativeDrain( long aacdw, ShortBuffer samples, int outLen );
+
+
+    /**
+     * Actually signals the end of the input in push mode.
+     * @param aacdw the pointer to the C struct
+     */
+    protected native void nativeFinish( long aacdw );
+
+
     /**
      * Actually stops decoding - releases all resources.
      * @param aacdw the pointer to the C struct
@@ -19,9 +19,9 @@ public class FlashAACInputStream extends InputStream {
     private DataInputStream dis = null;
     private int countInBackBuffer = 0;
     private int backBufferLen = 65536;
-    private byte[] backBuffer = new byte[backBufferLen];
+    private byte[] backBuffer;
     private int readBufferLen = 65536;
-    private byte[] readBuffer = new byte[readBufferLen];
+    private byte[] readBuffer;
 
     private int _aacProfile;
     private int _sampleRateIndex;
@@ -41,6 +41,23 @@ public class FlashAACInputStream extends InputStream {
             throw new IOException("No Audio Stream");
 
         dis.readInt(); // data offset of header. ignoring
+
+        // the buffers are shared with other streams - returned by close():
+        backBuffer = BufferPool.getDefault().acquireArray(backBufferLen);
+        readBuffer = BufferPool.getDefault().acquireArray(readBufferLen);
+    }
+
+    @Override
+    public void close() throws IOException {
+        // unblocks a pending read first:
+        dis.close();
+
+        synchronized (this) {
+            BufferPool.getDefault().releaseArray(backBuffer);
+            BufferPool.getDefault().releaseArray(readBuffer);
+            backBuffer = null;
+            readBuffer = null;
+        }
     }
 
     // don't use-- efficiency is not good
@@ -56,7 +73,10 @@ public class FlashAACInputStream extends InputStream {
     // returns: number of bytes read into b
 
     @Override
-    public int read(byte[] b, int off, int len) throws IOException {
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (readBuffer == null)
+            throw new IOException("Stream closed");
+
         if (off < 0 || len < 0 || b.length - off < len)
             throw new IndexOutOfBoundsException();
 
@@ -69,6 +69,37 @@ public class IcyInputStream extends FilterInputStream {
     protected String characterEncoding;
 
 
+    /**
+     * The parser of the metadata - skips the repeated blocks.
+     * @since 0.9
+     */
+    protected IcyMetadataParser parser;
+
+
+    /**
+     * The number of reads of the underlying stream.
+     */
+    private int reads;
+
+
+    /**
+     * The number of audio bytes read so far - the offset of the metadata.
+     */
+    private long position;
+
+
+    /**
+     * The buffer for reading single bytes.
+     */
+    private final byte[] single = new byte[1];
+
+
+    /**
+     * True if a subclass overrides parseMetadata() - then it gets the metadata strings.
+     */
+    private final boolean legacyParse;
+
+
     ////////////////////////////////////////////////////////////////////////////
     // Constructors
     ////////////////////////////////////////////////////////////////////////////
@@ -107,8 +138,10 @@ public class IcyInputStream extends FilterInputStream {
         this.playerCallback = playerCallback;
         this.characterEncoding = characterEncoding != null ? characterEncoding : "UTF-8";
 
+        parser = new IcyMetadataParser( playerCallback, this.characterEncoding );
+        legacyParse = overridesParseMetadata();
         remaining = period;
-        mbuffer = new byte[128];
+        mbuffer = BufferPool.getDefault().acquireArray( 128 );
     }
 
 
@@ -118,25 +151,45 @@ public class IcyInputStream extends FilterInputStream {
 
     @Override
     public int read() throws IOException {
-        int ret = super.read();
-
-        if (--remaining == 0) fetchMetadata();
-
-        return ret;
+        return read( single, 0, 1 ) == 1 ? single[0] & 0xff : -1;
     }
 
 
+    /**
+     * Reads the audio data.
+     * The whole request is read by one read of the underlying stream - not only up to the next
+     * metadata block. The metadata are removed and the audio bytes are moved in place.
+     */
     @Override
     public int read( byte[] buffer, int offset, int len ) throws IOException {
-        int ret = in.read( buffer, offset, remaining < len ? remaining : len );
+        int ret;
 
-        if (remaining == ret) fetchMetadata();
-        else remaining -= ret;
+        // a read containing only metadata is repeated:
+        do {
+            ret = in.read( buffer, offset, len );
+            reads++;
+        }
+        while (ret > 0 && (ret = strip( buffer, offset, ret )) == 0);
 
         return ret;
     }
 
 
+    /**
+     * Closes the stream and returns the metadata buffer to the pool.
+     */
+    @Override
+    public void close() throws IOException {
+        // unblocks a pending read first:
+        super.close();
+
+        synchronized (this) {
+            BufferPool.getDefault().releaseArray( mbuffer );
+            mbuffer = null;
+        }
+    }
+
+
     ////////////////////////////////////////////////////////////////////////////
     // Public
     ////////////////////////////////////////////////////////////////////////////
@@ -152,6 +205,28 @@ public class IcyInputStream extends FilterInputStream {
      */
     public void setCharacterEncoding( String characterEncoding ) {
         this.characterEncoding = characterEncoding;
+        parser.setCharacterEncoding( characterEncoding );
+    }
+
+
+    /**
+     * Sets the queue which delays the metadata until the matching audio is played.
+     * The metadata are stamped with the number of audio bytes read before them.
+     * @param metadataQueue the queue or null to send the metadata to PlayerCallback immediately
+     * @since 0.9
+     */
+    public void setMetadataQueue( TimedMetadataQueue metadataQueue ) {
+        parser.setMetadataQueue( metadataQueue );
+    }
+
+
+    /**
+     * Returns the number of reads of the underlying stream - including the reads of the metadata
+     * split by the end of a read.
+     * @since 0.9
+     */
+    public int getReadCount() {
+        return reads;
     }
 
 
@@ -160,56 +235,93 @@ public class IcyInputStream extends FilterInputStream {
     ////////////////////////////////////////////////////////////////////////////
 
     /**
-     * This method reads the metadata string.
-     * Actually it calls the method parseMetadata().
+     * Removes the metadata from the data read into the buffer.
+     * The audio bytes are moved to the beginning of the range.
+     * @param n the number of bytes read at the offset
+     * @return the number of audio bytes left at the offset
      */
-    protected void fetchMetadata() throws IOException {
-        remaining = period;
+    protected int strip( byte[] buffer, int offset, int n ) throws IOException {
+        int r = offset;
+        int w = offset;
+        int end = offset + n;
 
-        int size = in.read();
+        // remaining == 0 means that the next byte is the length of the metadata:
+        while (end - r > remaining) {
+            if (w != r) System.arraycopy( buffer, r, buffer, w, remaining );
 
-        // either no metadata or eof:
-        if (size < 1) return;
+            r += remaining;
+            w += remaining;
+            position += remaining;
 
-        // size *= 16:
-        size <<= 4;
+            // size *= 16:
+            int size = (buffer[ r++ ] & 0xff) << 4;
+            int avail = Math.min( size, end - r );
 
-        if (mbuffer.length < size) {
-            mbuffer = null;
-            mbuffer = new byte[ size ];
-            Log.d( LOG, "Enlarged metadata buffer to " + size + " bytes");
+            if (size > 0) fetchMetadata( buffer, r, avail, size );
+
+            r += avail;
+            remaining = period;
         }
 
-        size = readFully( mbuffer, 0, size );
+        int rest = end - r;
 
-        // find the string end:
-        for (int i=0; i < size; i++) {
-            if (mbuffer[i] == 0) {
-                size = i;
-                break;
-            }
-        }
+        if (w != r) System.arraycopy( buffer, r, buffer, w, rest );
 
-        String s;
+        remaining -= rest;
+        position += rest;
 
-        try {
-            s = new String( mbuffer, 0, size, characterEncoding );
-        }
-        catch (Exception e) {
-            Log.e( LOG, "Cannot convert bytes to String" );
-            return;
+        return w + rest - offset;
+    }
+
+
+    /**
+     * This method collects the metadata block - the bytes not read yet are read from the underlying stream.
+     * Actually it passes the block to the parser - the callback is called only if the block has changed.
+     * If a subclass overrides parseMetadata(), then the block is passed to it as a string instead.
+     * @param buffer the buffer containing the beginning of the block
+     * @param offset the start of the block in the buffer
+     * @param len the number of bytes of the block in the buffer
+     * @param size the size of the whole block
+     */
+    protected synchronized void fetchMetadata( byte[] buffer, int offset, int len, int size ) throws IOException {
+        if (mbuffer == null) throw new IOException( "Stream closed" );
+
+        if (mbuffer.length < size) {
+            BufferPool pool = BufferPool.getDefault();
+            pool.releaseArray( mbuffer );
+            mbuffer = pool.acquireArray( size );
+            Log.d( LOG, "Enlarged metadata buffer to " + mbuffer.length + " bytes");
         }
 
-        Log.d( LOG, "Metadata string: " + s );
+        System.arraycopy( buffer, offset, mbuffer, 0, len );
 
-        parseMetadata( s );
+        size = len + readFully( mbuffer, len, size - len );
+
+        if (legacyParse) parseMetadata( mbuffer, size );
+        else parser.parse( mbuffer, 0, size, position );
+    }
+
+
+    /**
+     * The old hook reading the metadata block from the stream - not used anymore.
+     * It is final, so the subclasses overriding it do not compile instead of silently
+     * losing the metadata; they should override fetchMetadata( byte[], int, int, int ).
+     * @deprecated the blocks are read by fetchMetadata( byte[], int, int, int )
+     */
+    @Deprecated
+    protected final void fetchMetadata() throws IOException {
+        throw new UnsupportedOperationException( "Replaced by fetchMetadata( byte[], int, int, int )" );
     }
 
 
     /**
      * Parses the metadata and sends them to PlayerCallback.
+     * This is called (for every block) only if a subclass overrides it - otherwise
+     * the blocks are parsed by IcyMetadataParser which skips the repeated ones.
      * @param s the metadata string like: StreamTitle='...';StreamUrl='...';
+     * @deprecated the blocks are parsed by IcyMetadataParser
      */
+    @Deprecated
     protected void parseMetadata( String s ) {
         String[] kvs = s.split( ";" );
 
@@ -243,6 +355,7 @@ public class IcyInputStream extends FilterInputStream {
         int oo = offset;
 
         while (size > 0 && (n = in.read( buffer, offset, size )) != -1) {
+            reads++;
             offset += n;
             size -= n;
         }
@@ -250,5 +363,54 @@ public class IcyInputStream extends FilterInputStream {
         return offset - oo;
     }
 
-}
 
+    ////////////////////////////////////////////////////////////////////////////
+    // Private
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Converts the block to the string and passes it to parseMetadata( String ).
+     */
+    @SuppressWarnings("deprecation")
+    private void parseMetadata( byte[] b, int size ) {
+        // find the string end:
+        for (int i=0; i < size; i++) {
+            if (b[i] == 0) {
+                size = i;
+                break;
+            }
+        }
+
+        String s;
+
+        try {
+            s = new String( b, 0, size, characterEncoding );
+        }
+        catch (Exception e) {
+            Log.e( LOG, "Cannot convert bytes to String" );
+            return;
+        }
+
+        Log.d( LOG, "Metadata string: " + s );
+
+        parseMetadata( s );
+    }
+
+
+    /**
+     * Returns true if a subclass overrides parseMetadata( String ).
+     */
+    private boolean overridesParseMetadata() {
+        for (Class<?> c = getClass(); c != IcyInputStream.class; c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod( "parseMetadata", String.class );
+                return true;
+            }
+            catch (NoSuchMethodException e) {
+            }
+        }
+
+        return false;
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+** AACDecoder - Freeware Advanced Audio (AAC) Decoder for Android
+** Copyright (C) 2011 Spolecne s.r.o., http://www.spoledge.com
+**
+** This file is a part of AACDecoder.
+**
+** AACDecoder is free software; you can redistribute it and/or modify
+** it under the terms of the GNU Lesser General Public License as published
+** by the Free Software Foundation; either version 3 of the License,
+** or (at your option) any later version.
+**
+** This program is distributed in the hope that it will be useful,
+** but WITHOUT ANY WARRANTY; without even the implied warranty of
+** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+** GNU Lesser General Public License for more details.
+**
+** You should have received a copy of the GNU Lesser General Public License
+** along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.spoledge.aacdecoder;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * This is a filter which removes Icecast/Shoutcast metadata from the stream data in place.
+ * It is a state machine, so the data can be passed in chunks of any size
+ * (e.g. as returned by a non-blocking channel).
+ * <pre>
+ *  IcyMetadataFilter filter = new IcyMetadataFilter( period, playerCallback, null );
+ *
+ *  int n = channel.read( bb );
+ *  n = filter.filter( bb, pos, n ); // only the audio data are left at pos
+ * </pre>
+ * @since 0.9
+ */
+public class IcyMetadataFilter {
+
+    private static final String LOG = "IcyMetadataFilter";
+
+    private static final int STATE_AUDIO = 0;
+    private static final int STATE_LENGTH = 1;
+    private static final int STATE_METADATA = 2;
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Attributes
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * The period of metadata frame in bytes.
+     */
+    protected int period;
+
+    /**
+     * The actual number of remaining audio bytes before the metadata.
+     */
+    protected int remaining;
+
+    /**
+     * The buffer used for collecting metadata bytes.
+     */
+    protected byte[] mbuffer;
+
+    /**
+     * The callback - may be null.
+     */
+    protected PlayerCallback playerCallback;
+
+    /**
+     * The parser of the metadata - skips the repeated blocks.
+     */
+    protected IcyMetadataParser parser;
+
+    /**
+     * The number of audio bytes passed so far - the offset of the metadata.
+     */
+    private long position;
+
+    private int state = STATE_AUDIO;
+    private int msize;
+    private int mpos;
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a new filter.
+     * @param period the period of metadata frame is repeating (in bytes)
+     * @param playerCallback the callback - may be null
+     * @param characterEncoding the encoding used for metadata strings - may be null = default is UTF-8
+     */
+    public IcyMetadataFilter( int period, PlayerCallback playerCallback, String characterEncoding ) {
+        this.period = period;
+        this.playerCallback = playerCallback;
+
+        parser = new IcyMetadataParser( playerCallback, characterEncoding );
+        remaining = period;
+        mbuffer = new byte[ 128 ];
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Public
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Sets the queue which delays the metadata until the matching audio is played.
+     * The metadata are stamped with the number of audio bytes passed before them.
+     * @param metadataQueue the queue or null to send the metadata to PlayerCallback immediately
+     */
+    public void setMetadataQueue( TimedMetadataQueue metadataQueue ) {
+        parser.setMetadataQueue( metadataQueue );
+    }
+
+
+    /**
+     * Removes the metadata from the data in place.
+     * The audio data are moved to the beginning of the range.
+     * @param bb the buffer - its position and limit are not changed
+     * @param offset the start of the data
+     * @param len the length of the data
+     * @return the number of audio bytes left at the offset
+     */
+    public int filter( ByteBuffer bb, int offset, int len ) {
+        int r = offset;
+        int w = offset;
+        int end = offset + len;
+
+        while (r < end) {
+            switch (state) {
+                case STATE_AUDIO: {
+                    int n = Math.min( remaining, end - r );
+
+                    // no metadata removed yet - the data stay where they are:
+                    if (w != r) {
+                        for (int i=0; i < n; i++) bb.put( w + i, bb.get( r + i ));
+                    }
+
+                    r += n;
+                    w += n;
+                    remaining -= n;
+                    position += n;
+
+                    if (remaining == 0) state = STATE_LENGTH;
+                    break;
+                }
+
+                case STATE_LENGTH: {
+                    msize = (bb.get( r++ ) & 0xff) << 4;
+                    mpos = 0;
+
+                    if (msize == 0) {
+                        remaining = period;
+                        state = STATE_AUDIO;
+                    }
+                    else {
+                        if (mbuffer.length < msize) {
+                            mbuffer = new byte[ msize ];
+                            Log.d( LOG, "Enlarged metadata buffer to " + msize + " bytes");
+                        }
+
+                        state = STATE_METADATA;
+                    }
+                    break;
+                }
+
+                case STATE_METADATA: {
+                    int n = Math.min( msize - mpos, end - r );
+
+                    for (int i=0; i < n; i++) mbuffer[ mpos + i ] = bb.get( r + i );
+
+                    r += n;
+                    mpos += n;
+
+                    if (mpos == msize) {
+                        parser.parse( mbuffer, 0, msize, position );
+                        remaining = period;
+                        state = STATE_AUDIO;
+                    }
+                    break;
+                }
+            }
+        }
+
+        return w - offset;
+    }
+
+}
@@ -0,0 +1,268 @@
+/*
+** AACDecoder - Freeware Advanced Audio (AAC) Decoder for Android
+** Copyright (C) 2011 Spolecne s.r.o., http://www.spoledge.com
+**
+** This file is a part of AACDecoder.
+**
+** AACDecoder is free software; you can redistribute it and/or modify
+** it under the terms of the GNU Lesser General Public License as published
+** by the Free Software Foundation; either version 3 of the License,
+** or (at your option) any later version.
+**
+** This program is distributed in the hope that it will be useful,
+** but WITHOUT ANY WARRANTY; without even the implied warranty of
+** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+** GNU Lesser General Public License for more details.
+**
+** You should have received a copy of the GNU Lesser General Public License
+** along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.spoledge.aacdecoder;
+
+import android.util.Log;
+
+import java.nio.charset.Charset;
+
+
+/**
+ * This is a parser of Icecast/Shoutcast metadata which works directly with the bytes of the block.
+ * The last block is remembered - when the same block is repeated (the StreamTitle usually does not
+ * change for minutes), then nothing is allocated and no callback is called.
+ * <pre>
+ *  IcyMetadataParser parser = new IcyMetadataParser( playerCallback, null );
+ *
+ *  parser.parse( mbuffer, 0, size ); // calls playerMetadata() only if the block has changed
+ * </pre>
+ * NOTE: the delimiters are searched in the bytes, so the character encoding must be ASCII compatible
+ * (e.g. UTF-8 or ISO-8859-x).
+ * @since 0.9
+ */
+public class IcyMetadataParser {
+
+    private static final String LOG = "IcyMetadataParser";
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Attributes
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * The callback - may be null.
+     */
+    protected PlayerCallback playerCallback;
+
+    /**
+     * The character encoding of the metadata.
+     */
+    protected String characterEncoding;
+
+    /**
+     * The queue delaying the metadata until played - may be null.
+     */
+    protected TimedMetadataQueue metadataQueue;
+
+    private Charset charset;
+
+    private byte[] last = new byte[ 128 ];
+    private int lastSize = -1;
+    private int lastHash;
+
+    private int changes;
+    private int repeats;
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a new parser.
+     * @param playerCallback the callback - may be null
+     * @param characterEncoding the encoding used for metadata strings - may be null = default is UTF-8
+     */
+    public IcyMetadataParser( PlayerCallback playerCallback, String characterEncoding ) {
+        this.playerCallback = playerCallback;
+
+        setCharacterEncoding( characterEncoding );
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Public
+    ////////////////////////////////////////////////////////////////////////////
+
+    public String getCharacterEncoding() {
+        return characterEncoding;
+    }
+
+
+    /**
+     * Sets the character encoding used for the metadata strings.
+     * The next block is always parsed.
+     * @param characterEncoding the encoding - may be null = default is UTF-8
+     */
+    public void setCharacterEncoding( String characterEncoding ) {
+        this.characterEncoding = characterEncoding != null ? characterEncoding : "UTF-8";
+
+        try {
+            charset = Charset.forName( this.characterEncoding );
+        }
+        catch (Exception e) {
+            Log.e( LOG, "Unsupported character encoding: " + this.characterEncoding );
+            charset = null;
+        }
+
+        lastSize = -1;
+    }
+
+
+    /**
+     * Sets the queue which delays the metadata until the matching audio is played.
+     * @param metadataQueue the queue or null to send the metadata to PlayerCallback immediately
+     */
+    public void setMetadataQueue( TimedMetadataQueue metadataQueue ) {
+        this.metadataQueue = metadataQueue;
+    }
+
+
+    public TimedMetadataQueue getMetadataQueue() {
+        return metadataQueue;
+    }
+
+
+    /**
+     * Parses the metadata block and sends the values to PlayerCallback immediately - only if the block
+     * differs from the last one.
+     * @param b the bytes like: StreamTitle='...';StreamUrl='...'; - optionally padded by zeros
+     * @param off the start of the block
+     * @param len the length of the block
+     * @return true if the block has changed
+     */
+    public boolean parse( byte[] b, int off, int len ) {
+        return parse( b, off, len, -1 );
+    }
+
+
+    /**
+     * Parses the metadata block and sends the values to the metadata queue or PlayerCallback - only if the block
+     * differs from the last one.
+     * @param b the bytes like: StreamTitle='...';StreamUrl='...'; - optionally padded by zeros
+     * @param off the start of the block
+     * @param len the length of the block
+     * @param offset the number of audio bytes before the block or -1 if unknown (sent immediately)
+     * @return true if the block has changed
+     */
+    public boolean parse( byte[] b, int off, int len, long offset ) {
+        // find the string end and compute the hash in one pass:
+        int size = 0;
+        int hash = 1;
+
+        while (size < len && b[ off + size ] != 0) hash = 31 * hash + b[ off + size++ ];
+
+        if (size == lastSize && hash == lastHash && isLast( b, off )) {
+            repeats++;
+            return false;
+        }
+
+        if (last.length < size) last = new byte[ size ];
+
+        System.arraycopy( b, off, last, 0, size );
+        lastSize = size;
+        lastHash = hash;
+        changes++;
+
+        Charset cs = charset;
+
+        if (cs == null) return true;
+
+        Log.d( LOG, "Metadata string: " + new String( b, off, size, cs ));
+
+        parseFields( b, off, off + size, cs, offset );
+
+        return true;
+    }
+
+
+    /**
+     * Returns the number of blocks which have changed (including the first one).
+     */
+    public int getChangeCount() {
+        return changes;
+    }
+
+
+    /**
+     * Returns the number of repeated blocks - parsed without any allocation and callback.
+     */
+    public int getRepeatCount() {
+        return repeats;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Private
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Compares the bytes with the last block - the sizes must be already equal.
+     */
+    private boolean isLast( byte[] b, int off ) {
+        byte[] l = last;
+
+        for (int i=0; i < lastSize; i++) {
+            if (b[ off + i ] != l[i]) return false;
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Splits the fields key=value; or key='value'; - quoted values may contain the ';' character.
+     * Only the keys and values passed to the callback are allocated.
+     */
+    private void parseFields( byte[] b, int pos, int end, Charset cs, long offset ) {
+        TimedMetadataQueue queue = offset != -1 ? metadataQueue : null;
+
+        while (pos < end) {
+            int eq = pos;
+
+            while (eq < end && b[eq] != '=' && b[eq] != ';') eq++;
+
+            // no key or no value:
+            if (eq == pos || eq == end || b[eq] == ';') {
+                pos = eq + 1;
+                continue;
+            }
+
+            int vs = eq + 1;
+            int ve;
+            int next;
+
+            if (vs < end && b[vs] == '\'') {
+                ve = ++vs;
+
+                while (ve < end && !(b[ve] == '\'' && (ve + 1 == end || b[ve+1] == ';'))) ve++;
+
+                next = ve + 2;
+            }
+            else {
+                ve = vs;
+
+                while (ve < end && b[ve] != ';') ve++;
+
+                next = ve + 1;
+            }
+
+            if (queue != null) {
+                queue.add( offset, new String( b, pos, eq - pos, cs ), new String( b, vs, ve - vs, cs ));
+            }
+            else if (playerCallback != null) {
+                playerCallback.playerMetadata( new String( b, pos, eq - pos, cs ), new String( b, vs, ve - vs, cs ));
+            }
+
+            pos = next;
+        }
+    }
+
+}
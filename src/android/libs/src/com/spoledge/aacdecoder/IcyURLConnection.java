@@ -19,20 +19,44 @@
 */
 package com.spoledge.aacdecoder;
 
+import android.os.Build;
+import android.util.Log;
+
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
 
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.Socket;
 import java.net.URL;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import java.lang.reflect.Method;
+
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
 
 /**
  * This is a URLConnection allowing to accept http-like ICY (shoutcast) responses.
@@ -62,16 +86,302 @@ import java.util.Map;
  *  java.net.URL url = new java.net.URL( "icy://159.253.145.178:8100" );
  *  java.net.URLConnection = url.openConnection(); // should be instance of IcyURLConnection
  * </pre>
+ *
+ * Redirects (3xx) are followed unless disabled by setInstanceFollowRedirects( false )
+ * and the final URL is remembered for a while, so the next connections skip the hops.
+ * Bodies sent with "Transfer-Encoding: chunked" are decoded. The connections of finite
+ * responses (with Content-Length or chunked) are returned to the ConnectionPool
+ * when the input stream is closed after reading the whole body.
+ *
+ * The protocols "icys" and "https" are connected by TLS. The sockets are created
+ * by one shared SSLSocketFactory by default, so the TLS sessions are cached and
+ * reconnects to the same server resume the session instead of doing the full handshake.
+ * The time of the handshake is reported by getHandshakeNanos().
+ * NOTE: TLS connections do not provide a channel - the body is read by the input stream.
  */
 public class IcyURLConnection extends HttpURLConnection {
 
+    private static final class Redirect {
+        final URL target;
+        final long expires;
+
+        Redirect( URL target, long expires ) {
+            this.target = target;
+            this.expires = expires;
+        }
+    }
+
+
+    /**
+     * The map of the response headers - the keys are case-insensitive,
+     * but they are kept as sent by the server.
+     */
+    private static final class HeaderMap extends HashMap<String, List<String>> {
+        private final HashMap<String, String> names = new HashMap<String, String>();
+
+        private Object name( Object key ) {
+            if (!(key instanceof String)) return key;
+
+            String ret = names.get( ((String) key).toLowerCase( Locale.US ));
+
+            return ret != null ? ret : key;
+        }
+
+        @Override
+        public List<String> get( Object key ) {
+            return super.get( name( key ));
+        }
+
+        @Override
+        public boolean containsKey( Object key ) {
+            return super.containsKey( name( key ));
+        }
+
+        @Override
+        public List<String> put( String key, List<String> value ) {
+            if (key == null) return super.put( key, value );
+
+            String lkey = key.toLowerCase( Locale.US );
+            String n = names.get( lkey );
+
+            if (n == null) names.put( lkey, n = key );
+
+            return super.put( n, value );
+        }
+
+        @Override
+        public void putAll( Map<? extends String, ? extends List<String>> map ) {
+            for (Map.Entry<? extends String, ? extends List<String>> me : map.entrySet()) {
+                put( me.getKey(), me.getValue());
+            }
+        }
+
+        @Override
+        public List<String> remove( Object key ) {
+            Object n = name( key );
+
+            if (n instanceof String) names.remove( ((String) n).toLowerCase( Locale.US ));
+
+            return super.remove( n );
+        }
+
+        @Override
+        public void clear() {
+            names.clear();
+            super.clear();
+        }
+    }
+
+
+    /**
+     * The finite body - ends at the content length or the last chunk.
+     * When closed after the whole body was read, the socket is returned to the pool.
+     */
+    private final class BodyInputStream extends FilterInputStream {
+        private final ChunkedInputStream chunkedInput;
+        private final Socket bodySocket;
+        private final String host;
+        private final int port;
+        private final boolean secure;
+
+        /**
+         * The remaining bytes of the content length; -1 if chunked.
+         */
+        private long remaining;
+
+        private boolean closed;
+
+
+        /**
+         * @param length the content length or -1 if chunked
+         * @param host the host for the pool or null if the connection cannot be reused
+         */
+        BodyInputStream( InputStream in, long length, String host, int port, boolean secure ) {
+            super( length < 0 ? new ChunkedInputStream( in ) : in );
+
+            this.chunkedInput = length < 0 ? (ChunkedInputStream) this.in : null;
+            this.bodySocket = socket;
+            this.remaining = length;
+            this.host = host;
+            this.port = port;
+            this.secure = secure;
+        }
+
+
+        @Override
+        public int read() throws IOException {
+            if (chunkedInput == null && remaining == 0) return -1;
+
+            int ret = in.read();
+
+            if (ret != -1 && chunkedInput == null) remaining--;
+
+            return ret;
+        }
+
+
+        @Override
+        public int read( byte[] buf, int off, int len ) throws IOException {
+            if (chunkedInput == null) {
+                if (remaining == 0) return -1;
+
+                len = (int) Math.min( len, remaining );
+            }
+
+            int n = in.read( buf, off, len );
+
+            if (n > 0 && chunkedInput == null) remaining -= n;
+
+            return n;
+        }
+
+
+        @Override
+        public int available() throws IOException {
+            int n = in.available();
+
+            return chunkedInput == null ? (int) Math.min( n, remaining ) : n;
+        }
+
+
+        @Override
+        public long skip( long n ) throws IOException {
+            if (chunkedInput == null) n = Math.min( n, remaining );
+
+            long ret = in.skip( n );
+
+            if (chunkedInput == null) remaining -= ret;
+
+            return ret;
+        }
+
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+
+        @Override
+        public void close() throws IOException {
+            synchronized (IcyURLConnection.this) {
+                if (closed) return;
+                closed = true;
+
+                boolean finished = chunkedInput != null ? chunkedInput.isFinished() : remaining == 0;
+
+                if (host != null && finished && bodySocket == socket) {
+                    released = true;
+                    ConnectionPool.getDefault().put( host, port, secure, bodySocket );
+                }
+                else bodySocket.close();
+            }
+        }
+    }
+
+
+    /**
+     * The maximum number of redirects followed by one connect() call.
+     */
+    public static final int MAX_REDIRECTS = 5;
+
+    /**
+     * How long a permanent redirect (301, 308) is remembered - one day.
+     */
+    public static final long PERMANENT_REDIRECT_TTL_MS = 24 * 3600 * 1000L;
+
+    /**
+     * How long a temporary redirect (302, 303, 307) is remembered - five minutes.
+     */
+    public static final long TEMPORARY_REDIRECT_TTL_MS = 5 * 60 * 1000L;
+
+    /**
+     * The maximum number of remembered redirects.
+     */
+    private static final int MAX_REDIRECT_ENTRIES = 32;
+
+    private static final String LOG = "IcyURLConnection";
+
+    private static SSLSocketFactory defaultSSLSocketFactory;
+
+    /**
+     * The remembered redirects - the original URL to the final URL, in the access order.
+     */
+    private static final LinkedHashMap<String, Redirect> redirects = new LinkedHashMap<String, Redirect>( 16, 0.75f, true ) {
+        @Override
+        protected boolean removeEldestEntry( Map.Entry<String, Redirect> eldest ) {
+            return size() > MAX_REDIRECT_ENTRIES;
+        }
+    };
+
+    /**
+     * The initial size of the buffer for reading the response head.
+     */
+    private static final int HEAD_BUFFER_SIZE = 4096;
+
+    /**
+     * The maximum length of one response line.
+     */
+    private static final int MAX_LINE_LENGTH = 65536;
+
     protected Socket socket;
     protected OutputStream outputStream;
     protected InputStream inputStream;
     protected HashMap<String, List<String>> requestProps;
+
+    /**
+     * The response headers - the keys are case-insensitive.
+     */
     protected HashMap<String, List<String>> headers;
     protected String responseLine;
 
+    /**
+     * The buffer used while reading the response head and its state.
+     */
+    private byte[] hbuf;
+    private int hpos;
+    private int hlen;
+
+    /**
+     * The bytes of the body read together with the response head - may be null.
+     */
+    private byte[] bodyStart;
+
+    /**
+     * The time spent by reading and parsing the response head.
+     */
+    private long headNanos;
+
+    /**
+     * The protocol of the response line as sent by the server (e.g. "ICY" or "HTTP/1.1").
+     */
+    private String responseProtocol;
+
+    /**
+     * The URL actually connected after following the redirects.
+     */
+    private URL effectiveUrl;
+
+    /**
+     * True if the body is chunked - the socket cannot be read directly.
+     */
+    private boolean chunked;
+
+    /**
+     * True if the socket was returned to the ConnectionPool - it must not be closed.
+     */
+    private boolean released;
+
+    private SSLSocketFactory sslSocketFactory;
+    private HostnameVerifier hostnameVerifier;
+
+    /**
+     * The time of the TLS handshake of the last connection; -1 if not secure or reused.
+     */
+    private long handshakeNanos = -1;
+
+    private boolean sessionResumed;
+
 
     ////////////////////////////////////////////////////////////////////////////
     // Constructors
@@ -98,40 +408,83 @@ public class IcyURLConnection extends HttpURLConnection {
         // according to specification:
         if (connected) return;
 
-        socket = createSocket();
-
-        socket.connect(
-            new InetSocketAddress( url.getHost(), url.getPort() != -1 ? url.getPort() : url.getDefaultPort()),
-            getConnectTimeout());
+        String key = url.toString();
+        URL target = url;
+        Redirect cached = null;
 
-        Map<String, List<String>> requestProps = getRequestProperties();
+        if (getInstanceFollowRedirects()) {
+            synchronized (redirects) {
+                cached = redirects.get( key );
 
-        connected = true;
+                if (cached != null && cached.expires <= System.currentTimeMillis()) {
+                    redirects.remove( key );
+                    cached = null;
+                }
+            }
+        }
 
-        headers = new HashMap<String, List<String>>();
+        if (cached != null) {
+            try {
+                request( cached.target );
 
-        outputStream = socket.getOutputStream();
-        inputStream = socket.getInputStream();
+                if (parseResponseCode( responseLine ) >= 400) throw new IOException( "Response " + responseLine );
 
-        writeLine( "GET " + ("".equals(url.getPath()) ? "/" : url.getPath()) + " HTTP/1.1" );
-        writeLine( "Host: " + url.getHost());
+                target = cached.target;
+            }
+            catch (IOException e) {
+                Log.w( LOG, "connect(): remembered redirect " + cached.target + " failed - " + e );
+                closeSocket();
 
-        if (requestProps != null) {
-            for (Map.Entry<String, List<String>> entry : requestProps.entrySet()) {
-                for (String val : entry.getValue()) {
-                    writeLine( entry.getKey() + ": " + val );
+                synchronized (redirects) {
+                    redirects.remove( key );
                 }
             }
         }
 
-        writeLine( "" );
+        if (target == url) request( url );
+
+        boolean permanent = true;
+        int hops = 0;
+        int code;
 
-        responseLine = readResponseLine();
+        while (getInstanceFollowRedirects() && isRedirect( code = parseResponseCode( responseLine ))) {
+            String location = getHeaderField( "Location" );
 
-        for (String line = readLine(); line != null && line.length() != 0;) {
-            parseHeaderLine( line );
-            line = readLine();
+            if (location == null) break;
+
+            if (++hops > MAX_REDIRECTS) {
+                closeSocket();
+                throw new ProtocolException( "Too many redirects: " + url );
+            }
+
+            URL next = new URL( target, location );
+
+            if (!isSupported( next )) {
+                closeSocket();
+                throw new ProtocolException( "Unsupported redirect: " + next );
+            }
+
+            Log.d( LOG, "connect(): " + code + " redirect to " + next );
+
+            permanent &= (code == HTTP_MOVED_PERM || code == 308);
+            closeSocket();
+
+            target = next;
+            request( target );
+        }
+
+        if (hops > 0) {
+            long ttl = permanent ? PERMANENT_REDIRECT_TTL_MS : TEMPORARY_REDIRECT_TTL_MS;
+
+            synchronized (redirects) {
+                redirects.put( key, new Redirect( target, System.currentTimeMillis() + ttl ));
+            }
         }
+
+        effectiveUrl = target;
+        connected = true;
+
+        prepareBody( target );
     }
 
 
@@ -141,6 +494,148 @@ public class IcyURLConnection extends HttpURLConnection {
     }
 
 
+    /**
+     * Returns the channel of the socket.
+     * After the headers are read, the channel can be used for reading the body
+     * instead of the input stream (e.g. in non-blocking mode by NioReaderEngine).
+     * NOTE: the beginning of the body may be already read with the headers - see getBodyStart().
+     * @return the channel or null if not connected, the socket has no channel, the connection is secure
+     *      or the body is finite (chunked or with Content-Length) - it must be read by the input stream
+     *      which stops at its end (the connection may be kept alive)
+     * @since 0.9
+     */
+    public SocketChannel getChannel() {
+        Socket s = socket;
+
+        return s != null && !(inputStream instanceof BodyInputStream) && !(s instanceof SSLSocket) ? s.getChannel() : null;
+    }
+
+
+    /**
+     * Returns the bytes of the body which were read together with the response head.
+     * The input stream returns them first, but a reader of the channel must prepend them itself.
+     * @return the read-only buffer or null if no such bytes
+     * @since 0.9
+     */
+    public ByteBuffer getBodyStart() {
+        byte[] b = bodyStart;
+
+        return b != null ? ByteBuffer.wrap( b ).asReadOnlyBuffer() : null;
+    }
+
+
+    /**
+     * Returns the URL actually connected - differs from getURL() if a redirect was followed.
+     * @return the URL or null if not connected
+     * @since 0.9
+     */
+    public URL getEffectiveURL() {
+        return effectiveUrl;
+    }
+
+
+    /**
+     * Returns true if the body is sent with "Transfer-Encoding: chunked".
+     * The input stream returns the decoded data, but the channel is not available.
+     * @since 0.9
+     */
+    public boolean isChunked() {
+        return chunked;
+    }
+
+
+    /**
+     * Returns the time spent by reading and parsing the response head (including the waiting for the server).
+     * @return the time in nanoseconds
+     * @since 0.9
+     */
+    public long getHeadNanos() {
+        return headNanos;
+    }
+
+
+    /**
+     * Returns the factory used for creating the TLS sockets of all new connections.
+     * @return the factory - by default the SSLSocketFactory.getDefault()
+     * @since 0.9
+     */
+    public static synchronized SSLSocketFactory getDefaultSSLSocketFactory() {
+        if (defaultSSLSocketFactory == null) defaultSSLSocketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+
+        return defaultSSLSocketFactory;
+    }
+
+
+    /**
+     * Sets the factory used for creating the TLS sockets of all new connections.
+     * The TLS sessions are cached by the SSLContext of the factory - it should not be
+     * changed often, otherwise the sessions cannot be resumed.
+     * @since 0.9
+     */
+    public static synchronized void setDefaultSSLSocketFactory( SSLSocketFactory factory ) {
+        defaultSSLSocketFactory = factory;
+    }
+
+
+    /**
+     * Returns the factory used for creating the TLS sockets of this connection.
+     * @since 0.9
+     */
+    public SSLSocketFactory getSSLSocketFactory() {
+        return sslSocketFactory != null ? sslSocketFactory : getDefaultSSLSocketFactory();
+    }
+
+
+    /**
+     * Sets the factory used for creating the TLS sockets of this connection.
+     * Must be called before connect().
+     * @param factory the factory or null to use the default one
+     * @since 0.9
+     */
+    public void setSSLSocketFactory( SSLSocketFactory factory ) {
+        this.sslSocketFactory = factory;
+    }
+
+
+    /**
+     * Returns the verifier of the server's host name.
+     * @since 0.9
+     */
+    public HostnameVerifier getHostnameVerifier() {
+        return hostnameVerifier != null ? hostnameVerifier : HttpsURLConnection.getDefaultHostnameVerifier();
+    }
+
+
+    /**
+     * Sets the verifier of the server's host name.
+     * Must be called before connect().
+     * @param verifier the verifier or null to use HttpsURLConnection.getDefaultHostnameVerifier()
+     * @since 0.9
+     */
+    public void setHostnameVerifier( HostnameVerifier verifier ) {
+        this.hostnameVerifier = verifier;
+    }
+
+
+    /**
+     * Returns the time spent by the TLS handshake (excluding the TCP connect).
+     * @return the time in nanoseconds or -1 if the connection is not secure or an idle connection was reused
+     * @since 0.9
+     */
+    public long getHandshakeNanos() {
+        return handshakeNanos;
+    }
+
+
+    /**
+     * Returns true if the TLS session was resumed - the full handshake was not needed.
+     * @since 0.9
+     */
+    public boolean isSessionResumed() {
+        return sessionResumed;
+    }
+
+
     @Override
     public OutputStream getOutputStream() {
         return outputStream;
@@ -149,9 +644,9 @@ public class IcyURLConnection extends HttpURLConnection {
 
     @Override
     public String getHeaderField( String name ) {
-        HashMap<String, List<String>> lmap = headers;
+        Map<String, List<String>> lmap = headers;
 
-        if (lmap != null) {
+        if (lmap != null && name != null) {
             List<String> list = lmap.get( name );
 
             if (list != null && !list.isEmpty()) return list.get(0);
@@ -209,10 +704,7 @@ public class IcyURLConnection extends HttpURLConnection {
     public synchronized void disconnect() {
         if (!connected) return;
 
-        if (socket != null) {
-            try { socket.close();} catch (IOException e){}
-            socket = null;
-        }
+        closeSocket();
 
         inputStream = null;
         outputStream = null;
@@ -234,14 +726,23 @@ public class IcyURLConnection extends HttpURLConnection {
     /**
      * Creates a new unconnected Socket instance.
      * Subclasses may use this method to override the default socket implementation.
+     * Actually the socket of a new SocketChannel is returned, so the body can be read
+     * by the channel - see getChannel(). If the channel cannot be opened, then a plain socket is used.
      */
     protected Socket createSocket() {
-        return new Socket();
+        try {
+            return SocketChannel.open().socket();
+        }
+        catch (IOException e) {
+            return new Socket();
+        }
     }
 
 
     /**
      * Reads one response header line and adds it to the headers map.
+     * The headers are parsed by parseHeader() from the bytes now; this method is called
+     * instead of it only if a subclass overrides this one - for compatibility.
      */
     protected void parseHeaderLine( String line ) throws IOException {
         int len = 2;
@@ -253,18 +754,50 @@ public class IcyURLConnection extends HttpURLConnection {
             if (n == -1) return;
         }
 
-        String key = line.substring( 0, n );
-        String val = line.substring( n + len );
+        addHeader( line.substring( 0, n ), line.substring( n + len ));
+    }
+
 
+    /**
+     * Parses one response header line directly from the bytes and adds it to the headers map.
+     * The whitespace around the value is removed.
+     * @param end the end of the line (excluding the new-line characters)
+     * @since 0.9
+     */
+    protected void parseHeader( byte[] buf, int start, int end ) throws IOException {
+        int n = start;
+        while (n < end && buf[n] != ':') n++;
+
+        if (n == end) return;
+
+        int v = n + 1;
+        while (v < end && (buf[v] == ' ' || buf[v] == '\t')) v++;
+
+        int e = end;
+        while (e > v && (buf[e-1] == ' ' || buf[e-1] == '\t')) e--;
+
+        addHeader( new String( buf, start, n - start, "ISO-8859-1" ), new String( buf, v, e - v, "ISO-8859-1" ));
+    }
+
+
+    /**
+     * Adds the header to the headers map.
+     * @since 0.9
+     */
+    protected void addHeader( String key, String val ) {
         List<String> list = headers.get( key );
 
-        if (list != null) {
-            list.add( val );
+        if (list == null) {
+            // most headers are not repeated:
+            headers.put( key, Collections.singletonList( val ));
         }
         else {
-            list = new ArrayList<String>();
+            if (list.size() == 1) {
+                list = new ArrayList<String>( list );
+                headers.put( key, list );
+            }
+
             list.add( val );
-            headers.put( key, list );
         }
     }
 
@@ -279,6 +812,7 @@ public class IcyURLConnection extends HttpURLConnection {
             int n = line.indexOf( ' ' );
 
             if (n != -1) {
+                responseProtocol = line.substring( 0, n );
                 line = "HTTP/1.0" + line.substring( n );
             }
         }
@@ -289,19 +823,29 @@ public class IcyURLConnection extends HttpURLConnection {
 
     /**
      * Reads one response line.
+     * While connecting the bytes are taken from the buffer of the response head,
+     * otherwise they are read from the input stream one by one.
      * @return the line without any new-line character.
      */
     protected String readLine() throws IOException {
-        StringBuilder sb = new StringBuilder();
+        if (hbuf == null) {
+            StringBuilder sb = new StringBuilder();
+
+            int c;
+            while ((c = inputStream.read()) != -1) {
+                if (c == '\r') continue;
+                if (c == '\n') break;
+                sb.append( (char)c );
+            }
 
-        int c;
-        while ((c = inputStream.read()) != -1) {
-            if (c == '\r') continue;
-            if (c == '\n') break;
-            sb.append( (char)c );
+            return sb.toString();
         }
 
-        return sb.toString();
+        int end = nextLine();
+        String ret = new String( hbuf, hpos, end - hpos, "ISO-8859-1" );
+        skipLine( end );
+
+        return ret;
     }
 
 
@@ -314,4 +858,362 @@ public class IcyURLConnection extends HttpURLConnection {
         outputStream.write( line.getBytes( "UTF-8" ));
     }
 
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Private
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Sends the request and reads the response head.
+     * An idle connection from the ConnectionPool is used if available;
+     * if it was closed by the server meanwhile, then a new connection is opened.
+     */
+    private void request( URL target ) throws IOException {
+        String host = target.getHost();
+        int port = target.getPort() != -1 ? target.getPort() : target.getDefaultPort();
+        boolean secure = isSecure( target );
+        Socket s = ConnectionPool.getDefault().get( host, port, secure );
+
+        handshakeNanos = -1;
+        sessionResumed = false;
+
+        if (s != null) {
+            try {
+                send( s, target );
+
+                if (responseLine.length() != 0) return;
+            }
+            catch (IOException e) {
+                Log.d( LOG, "request(): idle connection to " + host + " was closed - " + e );
+            }
+
+            closeSocket();
+        }
+
+        s = createSocket();
+
+        try {
+            s.connect( new InetSocketAddress( host, port ), getConnectTimeout());
+
+            if (secure) s = startTLS( s, host, port );
+
+            send( s, target );
+        }
+        catch (IOException e) {
+            try { s.close();} catch (IOException e2){}
+            socket = null;
+            throw e;
+        }
+    }
+
+
+    /**
+     * Writes the request into the connected socket and reads the response head.
+     */
+    private void send( Socket s, URL target ) throws IOException {
+        socket = s;
+        released = false;
+        chunked = false;
+        bodyStart = null;
+        responseProtocol = null;
+        responseLine = null;
+
+        socket.setSoTimeout( getReadTimeout());
+
+        Map<String, List<String>> requestProps = getRequestProperties();
+
+        headers = new HeaderMap();
+
+        outputStream = socket.getOutputStream();
+        inputStream = socket.getInputStream();
+
+        // the file includes the query:
+        String file = target.getFile();
+        int port = target.getPort();
+
+        writeLine( "GET " + ("".equals( file ) ? "/" : file) + " HTTP/1.1" );
+        writeLine( "Host: " + target.getHost() + (port != -1 && port != target.getDefaultPort() ? ":" + port : ""));
+
+        if (requestProps != null) {
+            for (Map.Entry<String, List<String>> entry : requestProps.entrySet()) {
+                for (String val : entry.getValue()) {
+                    writeLine( entry.getKey() + ": " + val );
+                }
+            }
+        }
+
+        writeLine( "" );
+
+        // the head is read by blocks - the bytes following it belong to the body:
+        hbuf = BufferPool.getDefault().acquireArray( HEAD_BUFFER_SIZE );
+        hpos = hlen = 0;
+
+        try {
+            long ts = System.nanoTime();
+
+            responseLine = readResponseLine();
+
+            // the subclasses overriding the old hook still get the lines:
+            boolean lines = overridesParseHeaderLine();
+
+            int end;
+            while ((end = nextLine()) > hpos) {
+                if (lines) parseHeaderLine( new String( hbuf, hpos, end - hpos, "ISO-8859-1" ));
+                else parseHeader( hbuf, hpos, end );
+
+                skipLine( end );
+            }
+
+            skipLine( end );
+
+            headNanos = System.nanoTime() - ts;
+
+            if (hlen > hpos) {
+                bodyStart = new byte[ hlen - hpos ];
+                System.arraycopy( hbuf, hpos, bodyStart, 0, bodyStart.length );
+
+                PushbackInputStream pis = new PushbackInputStream( inputStream, bodyStart.length );
+                pis.unread( bodyStart );
+                inputStream = pis;
+            }
+        }
+        finally {
+            BufferPool.getDefault().releaseArray( hbuf );
+            hbuf = null;
+        }
+    }
+
+
+    /**
+     * Returns true if a subclass overrides parseHeaderLine().
+     */
+    private boolean overridesParseHeaderLine() {
+        for (Class<?> c = getClass(); c != IcyURLConnection.class; c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod( "parseHeaderLine", String.class );
+                return true;
+            }
+            catch (NoSuchMethodException e) {
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Wraps the input stream according to the transfer encoding and the content length.
+     * Finite bodies of HTTP/1.1 keep-alive responses are read by BodyInputStream
+     * which returns the socket to the pool when closed.
+     */
+    private void prepareBody( URL target ) {
+        String te = getHeaderField( "Transfer-Encoding" );
+        chunked = te != null && te.toLowerCase().contains( "chunked" );
+
+        long length = -1;
+
+        if (!chunked) {
+            String cl = getHeaderField( "Content-Length" );
+
+            if (cl != null) {
+                try {
+                    length = Long.parseLong( cl.trim());
+                }
+                catch (NumberFormatException e) {
+                    Log.w( LOG, "prepareBody(): invalid Content-Length: " + cl );
+                }
+            }
+        }
+
+        if (!chunked && length < 0) return;
+
+        boolean keepAlive = "HTTP/1.1".equals( responseProtocol )
+                && !"close".equalsIgnoreCase( getHeaderField( "Connection" ));
+
+        int port = target.getPort() != -1 ? target.getPort() : target.getDefaultPort();
+
+        inputStream = new BodyInputStream( inputStream, length, keepAlive ? target.getHost() : null, port, isSecure( target ));
+    }
+
+
+    /**
+     * Layers a TLS socket over the connected socket and does the handshake.
+     * The host name is passed to the server by SNI and verified against the server's certificate.
+     */
+    private Socket startTLS( Socket plain, String host, int port ) throws IOException {
+        SSLSocket ret = (SSLSocket) getSSLSocketFactory().createSocket( plain, host, port, true );
+
+        try {
+            setServerName( ret, host );
+
+            // the read timeout applies to the handshake too:
+            ret.setSoTimeout( getReadTimeout());
+
+            long ts = System.nanoTime();
+            long tsMs = System.currentTimeMillis();
+
+            ret.startHandshake();
+
+            handshakeNanos = System.nanoTime() - ts;
+
+            SSLSession session = ret.getSession();
+
+            if (!getHostnameVerifier().verify( host, session )) {
+                throw new SSLPeerUnverifiedException( "Hostname " + host + " not verified" );
+            }
+
+            // a resumed session was created by an earlier handshake:
+            sessionResumed = session.getCreationTime() < tsMs;
+
+            Log.d( LOG, "startTLS(): " + session.getProtocol() + " " + session.getCipherSuite()
+                        + (sessionResumed ? " resumed" : " full handshake") + " in " + handshakeNanos / 1000 + " us" );
+
+            return ret;
+        }
+        catch (IOException e) {
+            try { ret.close();} catch (IOException e2){}
+            throw e;
+        }
+    }
+
+
+    /**
+     * Sets the SNI host name - most TLS servers hosting more streams need it.
+     * Older Android versions (before 7.0) allow this only by the hidden method of the implementation.
+     */
+    private static void setServerName( SSLSocket socket, String host ) {
+        // IP addresses are not sent:
+        if (host.indexOf( ':' ) != -1 || Character.isDigit( host.charAt( host.length() - 1 ))) return;
+
+        try {
+            if (Build.VERSION.SDK_INT >= 24) {
+                SSLParameters params = socket.getSSLParameters();
+                params.setServerNames( Collections.<SNIServerName>singletonList( new SNIHostName( host )));
+                socket.setSSLParameters( params );
+            }
+            else {
+                Method m = socket.getClass().getMethod( "setHostname", String.class );
+                m.invoke( socket, host );
+            }
+        }
+        catch (NoSuchMethodException e) {
+            // the implementation sets the SNI itself from the host passed to createSocket()
+        }
+        catch (Exception e) {
+            Log.w( LOG, "setServerName(): cannot set SNI - " + e );
+        }
+    }
+
+
+    /**
+     * Closes the socket unless it was returned to the pool.
+     */
+    private void closeSocket() {
+        if (socket != null && !released) {
+            try { socket.close();} catch (IOException e){}
+        }
+
+        socket = null;
+    }
+
+
+    /**
+     * Returns the status code of the response line or -1 if not valid.
+     */
+    private static int parseResponseCode( String line ) {
+        if (line == null) return -1;
+
+        int n = line.indexOf( ' ' );
+        if (n == -1) return -1;
+
+        int e = line.indexOf( ' ', n + 1 );
+        if (e == -1) e = line.length();
+
+        try {
+            return Integer.parseInt( line.substring( n + 1, e ));
+        }
+        catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+
+    private static boolean isRedirect( int code ) {
+        return code == HTTP_MOVED_PERM || code == HTTP_MOVED_TEMP || code == HTTP_SEE_OTHER
+                || code == 307 || code == 308;
+    }
+
+
+    /**
+     * Returns true if the URL can be connected by this class.
+     */
+    private static boolean isSupported( URL url ) {
+        String protocol = url.getProtocol();
+
+        return "http".equals( protocol ) || "icy".equals( protocol ) || isSecure( url );
+    }
+
+
+    /**
+     * Returns true if the URL is connected by TLS.
+     */
+    private static boolean isSecure( URL url ) {
+        String protocol = url.getProtocol();
+
+        return "https".equals( protocol ) || "icys".equals( protocol );
+    }
+
+
+    /**
+     * Finds the end of the current line in the head buffer - reads more data if needed.
+     * @return the end of the line excluding the new-line characters (CRLF or LF);
+     *      at the end of the stream the end of the available data
+     */
+    private int nextLine() throws IOException {
+        int i = hpos;
+
+        while (true) {
+            while (i < hlen) {
+                if (hbuf[i] == '\n') return i > hpos && hbuf[i-1] == '\r' ? i - 1 : i;
+                i++;
+            }
+
+            // move the line to the beginning:
+            if (hpos > 0) {
+                System.arraycopy( hbuf, hpos, hbuf, 0, hlen - hpos );
+                i -= hpos;
+                hlen -= hpos;
+                hpos = 0;
+            }
+
+            if (hlen == hbuf.length) {
+                if (hlen >= MAX_LINE_LENGTH) throw new IOException( "Response line too long" );
+
+                BufferPool pool = BufferPool.getDefault();
+                byte[] b = pool.acquireArray( hlen * 2 );
+                System.arraycopy( hbuf, 0, b, 0, hlen );
+                pool.releaseArray( hbuf );
+                hbuf = b;
+            }
+
+            int n = inputStream.read( hbuf, hlen, hbuf.length - hlen );
+
+            if (n == -1) return hlen;
+
+            hlen += n;
+        }
+    }
+
+
+    /**
+     * Moves the head buffer position after the line and its new-line characters.
+     * @param end the value returned by nextLine()
+     */
+    private void skipLine( int end ) {
+        if (end < hlen && hbuf[end] == '\r') end++;
+        if (end < hlen && hbuf[end] == '\n') end++;
+
+        hpos = end;
+    }
+
 }
@@ -28,19 +28,48 @@ import java.net.URLStreamHandler;
 
 /**
  * The URLStreamHandler for the ICY protocol.
+ * The secure variant (protocol "icys") connects by TLS - it can be registered by:
+ * <pre>
+ *  if ("icys".equals( protocol )) return new com.spoledge.aacdecoder.IcyURLStreamHandler( true );
+ * </pre>
  */
 public class IcyURLStreamHandler extends URLStreamHandler {
 
+    private final boolean secure;
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a new handler of the plain ICY protocol.
+     */
+    public IcyURLStreamHandler() {
+        this( false );
+    }
+
+
+    /**
+     * Creates a new handler.
+     * @param secure true for the protocol "icys" (ICY over TLS)
+     * @since 0.9
+     */
+    public IcyURLStreamHandler( boolean secure ) {
+        this.secure = secure;
+    }
+
+
     ////////////////////////////////////////////////////////////////////////////
     // URLStreamHandler
     ////////////////////////////////////////////////////////////////////////////
 
     /**
-     * Actually returns 80.
+     * Actually returns 80 or 443 if secure.
      */
     @Override
     protected int getDefaultPort() {
-        return 80;
+        return secure ? 443 : 80;
     }
 
 
@@ -0,0 +1,160 @@
+/*
+** AACDecoder - Freeware Advanced Audio (AAC) Decoder for Android
+** Copyright (C) 2011 Spolecne s.r.o., http://www.spoledge.com
+**
+** This file is a part of AACDecoder.
+**
+** AACDecoder is free software; you can redistribute it and/or modify
+** it under the terms of the GNU Lesser General Public License as published
+** by the Free Software Foundation; either version 3 of the License,
+** or (at your option) any later version.
+**
+** This program is distributed in the hope that it will be useful,
+** but WITHOUT ANY WARRANTY; without even the implied warranty of
+** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+** GNU Lesser General Public License for more details.
+**
+** You should have received a copy of the GNU Lesser General Public License
+** along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.spoledge.aacdecoder;
+
+import android.util.Log;
+
+import java.io.IOException;
+
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * This is a reader of a local file mapped into memory.
+ * The whole file is returned as one buffer, so the native decoder reads it in place -
+ * no thread is needed and no data are copied.
+ * The run() method does nothing, so the reader does not need to be executed.
+ * <pre>
+ *  FileInputStream is = new FileInputStream( path );
+ *  BufferReader reader = MappedBufferReader.map( is.getChannel());
+ *
+ *  if (reader == null) {
+ *      // fallback - e.g. the file is too big:
+ *      reader = new BufferReader( 4096, is );
+ *      new Thread( reader ).start();
+ *  }
+ * </pre>
+ * @since 0.9
+ */
+public class MappedBufferReader extends BufferReader {
+
+    private static final String LOG = "MappedBufferReader";
+
+    private Buffer buffer;
+    private boolean returned;
+    private volatile boolean stopped;
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a new reader.
+     * @param data the mapped file
+     */
+    public MappedBufferReader( MappedByteBuffer data ) {
+        buffer = new Buffer( data, 0, data.capacity());
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Public
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Maps the file into memory.
+     * The channel can be closed after this method returns - the mapping stays valid.
+     * @param channel the channel of the file
+     * @return the reader or null if the file cannot be mapped (e.g. it is too big)
+     */
+    public static MappedBufferReader map( FileChannel channel ) {
+        try {
+            long size = channel.size();
+
+            if (size == 0 || size > Integer.MAX_VALUE) {
+                Log.w( LOG, "map(): cannot map file of size " + size );
+                return null;
+            }
+
+            MappedByteBuffer data = channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+
+            Log.d( LOG, "map(): mapped " + size + " bytes" );
+
+            return new MappedBufferReader( data );
+        }
+        catch (IOException e) {
+            Log.w( LOG, "map(): cannot map file: " + e );
+            return null;
+        }
+    }
+
+
+    /**
+     * Does nothing - the capacity is always the size of the file.
+     */
+    @Override
+    public void setCapacity( int capacity ) {
+    }
+
+
+    /**
+     * Returns 1 if the file was not returned by next() yet, 0 otherwise.
+     */
+    @Override
+    public int getBufferedCount() {
+        return returned || stopped ? 0 : 1;
+    }
+
+
+    /**
+     * Does nothing - no thread is needed.
+     */
+    @Override
+    public void run() {
+    }
+
+
+    @Override
+    public void stop() {
+        stopped = true;
+    }
+
+
+    @Override
+    public boolean isStopped() {
+        return stopped;
+    }
+
+
+    /**
+     * Returns true if the whole file was returned.
+     */
+    @Override
+    public boolean isEndOfStream() {
+        return returned && !stopped;
+    }
+
+
+    /**
+     * Returns the whole file first, then null.
+     */
+    @Override
+    public Buffer next() {
+        if (returned || stopped) return null;
+
+        returned = true;
+
+        return buffer;
+    }
+
+}
+
@@ -0,0 +1,106 @@
+/*
+** AACDecoder - Freeware Advanced Audio (AAC) Decoder for Android
+** Copyright (C) 2011 Spolecne s.r.o., http://www.spoledge.com
+**
+** This file is a part of AACDecoder.
+**
+** AACDecoder is free software; you can redistribute it and/or modify
+** it under the terms of the GNU Lesser General Public License as published
+** by the Free Software Foundation; either version 3 of the License,
+** or (at your option) any later version.
+**
+** This program is distributed in the hope that it will be useful,
+** but WITHOUT ANY WARRANTY; without even the implied warranty of
+** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+** GNU Lesser General Public License for more details.
+**
+** You should have received a copy of the GNU Lesser General Public License
+** along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.spoledge.aacdecoder;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+
+/**
+ * This is an audio sink which stores all the samples in memory.
+ * The data are consumed as fast as possible.
+ * @since 0.9
+ */
+public class MemoryAudioSink extends NullAudioSink {
+
+    private short[] samples = new short[ 65536 ];
+    private int size;
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ////////////////////////////////////////////////////////////////////////////
+
+    public MemoryAudioSink() {
+        super( false );
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Public
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns the number of samples stored (all channels).
+     */
+    public synchronized int getSampleCount() {
+        return size;
+    }
+
+
+    /**
+     * Returns a copy of the samples stored.
+     */
+    public synchronized short[] getSamples() {
+        short[] ret = new short[ size ];
+        System.arraycopy( samples, 0, ret, 0, size );
+
+        return ret;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Protected
+    ////////////////////////////////////////////////////////////////////////////
+
+    @Override
+    protected synchronized void consume( ByteBuffer bytes, ShortBuffer view, int offset, int n ) {
+        ensureCapacity( n );
+
+        view.clear();
+        view.position( offset );
+        view.get( samples, size, n );
+        size += n;
+    }
+
+
+    @Override
+    protected synchronized void consume( short[] samples, int offset, int n ) {
+        ensureCapacity( n );
+
+        System.arraycopy( samples, offset, this.samples, size, n );
+        size += n;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Private
+    ////////////////////////////////////////////////////////////////////////////
+
+    private void ensureCapacity( int n ) {
+        if (size + n <= samples.length) return;
+
+        short[] tmp = new short[ Math.max( size + n, samples.length * 2 ) ];
+        System.arraycopy( samples, 0, tmp, 0, size );
+        samples = tmp;
+    }
+
+}
+
@@ -0,0 +1,231 @@
+/*
+** AACDecoder - Freeware Advanced Audio (AAC) Decoder for Android
+** Copyright (C) 2011 Spolecne s.r.o., http://www.spoledge.com
+**
+** This file is a part of AACDecoder.
+**
+** AACDecoder is free software; you can redistribute it and/or modify
+** it under the terms of the GNU Lesser General Public License as published
+** by the Free Software Foundation; either version 3 of the License,
+** or (at your option) any later version.
+**
+** This program is distributed in the hope that it will be useful,
+** but WITHOUT ANY WARRANTY; without even the implied warranty of
+** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+** GNU Lesser General Public License for more details.
+**
+** You should have received a copy of the GNU Lesser General Public License
+** along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.spoledge.aacdecoder;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * This keeps the statistics of the mirrors of streams - how fast they delivered
+ * the first frame and when they failed. It is used by AACPlayer for ordering the mirrors:
+ * the mirrors which did not fail recently come first, the faster ones before the slower ones.
+ * The latency is an exponentially weighted moving average, so one slow start does not
+ * disqualify a mirror forever. A failure is forgotten after FAILURE_PENALTY_MS.
+ * The statistics are bounded (the least recently used entries are dropped).
+ * All methods are thread safe.
+ * @since 0.9
+ */
+public class MirrorStats {
+
+    private static final class MirrorEntry {
+        long latencyMs = -1;
+        int successes;
+        int failures;
+        long lastFailure;
+    }
+
+
+    /**
+     * The default maximum number of mirrors.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 64;
+
+    /**
+     * How long a failed mirror is put behind the others.
+     */
+    public static final long FAILURE_PENALTY_MS = 5 * 60 * 1000L;
+
+    private static MirrorStats defaultStats;
+
+    private final int maxEntries;
+
+    /**
+     * The entries in the access order.
+     */
+    private final LinkedHashMap<String, MirrorEntry> entries;
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates new statistics.
+     * @param maxEntries the maximum number of mirrors
+     */
+    public MirrorStats( final int maxEntries ) {
+        this.maxEntries = maxEntries;
+
+        entries = new LinkedHashMap<String, MirrorEntry>( 16, 0.75f, true ) {
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<String, MirrorEntry> eldest ) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Public
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns the process-wide statistics.
+     */
+    public static synchronized MirrorStats getDefault() {
+        if (defaultStats == null) defaultStats = new MirrorStats( DEFAULT_MAX_ENTRIES );
+
+        return defaultStats;
+    }
+
+
+    /**
+     * Records the successful start of the mirror.
+     * @param latencyMs the time from opening the connection to the first frame
+     */
+    public synchronized void success( String url, long latencyMs ) {
+        MirrorEntry e = entry( url );
+
+        // EWMA with the gain 1/4:
+        e.latencyMs = e.latencyMs < 0 ? latencyMs : e.latencyMs + (latencyMs - e.latencyMs) / 4;
+        e.successes++;
+    }
+
+
+    /**
+     * Records the failure of the mirror - it could not be connected or the stream broke.
+     */
+    public synchronized void failure( String url ) {
+        MirrorEntry e = entry( url );
+
+        e.failures++;
+        e.lastFailure = System.currentTimeMillis();
+    }
+
+
+    /**
+     * Returns the average latency of the mirror.
+     * @return the time to the first frame in ms or -1 if not known
+     */
+    public synchronized long getLatencyMs( String url ) {
+        MirrorEntry e = entries.get( url );
+
+        return e != null ? e.latencyMs : -1;
+    }
+
+
+    /**
+     * Returns the number of successful starts of the mirror.
+     */
+    public synchronized int getSuccesses( String url ) {
+        MirrorEntry e = entries.get( url );
+
+        return e != null ? e.successes : 0;
+    }
+
+
+    /**
+     * Returns the number of failures of the mirror.
+     */
+    public synchronized int getFailures( String url ) {
+        MirrorEntry e = entries.get( url );
+
+        return e != null ? e.failures : 0;
+    }
+
+
+    /**
+     * Returns true if the mirror failed recently (within FAILURE_PENALTY_MS).
+     */
+    public synchronized boolean isFailing( String url ) {
+        MirrorEntry e = entries.get( url );
+
+        return e != null && e.lastFailure + FAILURE_PENALTY_MS > System.currentTimeMillis();
+    }
+
+
+    /**
+     * Orders the mirrors - the best first.
+     * The mirrors which failed recently are moved to the end; the rest is ordered by the latency.
+     * The mirrors without statistics keep their position relative to each other
+     * and are placed after the mirrors known to be fast.
+     * @param urls the mirrors in the preferred order
+     * @return a new array
+     */
+    public synchronized String[] order( String[] urls ) {
+        final long now = System.currentTimeMillis();
+        final long[] failing = new long[ urls.length ];
+        final long[] latency = new long[ urls.length ];
+        Integer[] idx = new Integer[ urls.length ];
+
+        for (int i=0; i < urls.length; i++) {
+            MirrorEntry e = entries.get( urls[i] );
+
+            idx[i] = i;
+            failing[i] = e != null && e.lastFailure + FAILURE_PENALTY_MS > now ? e.lastFailure : 0;
+            latency[i] = e != null && e.latencyMs >= 0 ? e.latencyMs : Long.MAX_VALUE;
+        }
+
+        // stable sort - the preferred order is kept for equal mirrors:
+        Arrays.sort( idx, new Comparator<Integer>() {
+            public int compare( Integer a, Integer b ) {
+                // the most recently failed last:
+                if (failing[a] != failing[b]) return failing[a] < failing[b] ? -1 : 1;
+                if (latency[a] != latency[b]) return latency[a] < latency[b] ? -1 : 1;
+
+                return 0;
+            }
+        });
+
+        String[] ret = new String[ urls.length ];
+
+        for (int i=0; i < ret.length; i++) ret[i] = urls[ idx[i] ];
+
+        return ret;
+    }
+
+
+    /**
+     * Removes all statistics.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Private
+    ////////////////////////////////////////////////////////////////////////////
+
+    private MirrorEntry entry( String url ) {
+        MirrorEntry e = entries.get( url );
+
+        if (e == null) {
+            e = new MirrorEntry();
+            entries.put( url, e );
+        }
+
+        return e;
+    }
+
+}
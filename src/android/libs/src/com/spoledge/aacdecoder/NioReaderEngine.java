@@ -0,0 +1,285 @@
+/*
+** AACDecoder - Freeware Advanced Audio (AAC) Decoder for Android
+** Copyright (C) 2011 Spolecne s.r.o., http://www.spoledge.com
+**
+** This file is a part of AACDecoder.
+**
+** AACDecoder is free software; you can redistribute it and/or modify
+** it under the terms of the GNU Lesser General Public License as published
+** by the Free Software Foundation; either version 3 of the License,
+** or (at your option) any later version.
+**
+** This program is distributed in the hope that it will be useful,
+** but WITHOUT ANY WARRANTY; without even the implied warranty of
+** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+** GNU Lesser General Public License for more details.
+**
+** You should have received a copy of the GNU Lesser General Public License
+** along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.spoledge.aacdecoder;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * This is the network engine which serves any number of ChannelBufferReader
+ * instances by one thread and one Selector.
+ * The thread is started when the first reader is registered and it is stopped
+ * when no reader is registered.
+ * <pre>
+ *  NioReaderEngine.getDefault().register( reader );
+ * </pre>
+ * @since 0.9
+ */
+public class NioReaderEngine implements Runnable {
+
+    private static final String LOG = "NioReaderEngine";
+
+    private static NioReaderEngine defaultEngine;
+
+    private final ConcurrentLinkedQueue<ChannelBufferReader> pending = new ConcurrentLinkedQueue<ChannelBufferReader>();
+
+    private Selector selector;
+    private Thread thread;
+
+    /**
+     * The number of registered readers.
+     */
+    private int count;
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Public
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns the shared instance.
+     */
+    public static synchronized NioReaderEngine getDefault() {
+        if (defaultEngine == null) defaultEngine = new NioReaderEngine();
+
+        return defaultEngine;
+    }
+
+
+    /**
+     * Registers the reader - the engine starts reading its channel.
+     */
+    public synchronized void register( ChannelBufferReader reader ) {
+        reader.setEngine( this );
+        count++;
+
+        wakeup( reader );
+    }
+
+
+    /**
+     * Returns the number of registered readers.
+     */
+    public synchronized int getReaderCount() {
+        return count;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Runnable
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * The main loop.
+     */
+    public void run() {
+        Log.d( LOG, "run() started" );
+
+        try {
+            Process.setThreadPriority( Process.THREAD_PRIORITY_BACKGROUND );
+        }
+        catch (Throwable t) {
+            Log.w( LOG, "Cannot set thread priority: " + t );
+        }
+
+        Selector sel;
+
+        synchronized (this) {
+            sel = selector;
+        }
+
+        try {
+            while (true) {
+                // the requests added before a select() call are signalled by Selector.wakeup():
+                processPending( sel );
+
+                try {
+                    sel.select();
+                }
+                catch (IOException e) {
+                    Log.e( LOG, "run() select failed: " + e );
+                }
+
+                Iterator<SelectionKey> it = sel.selectedKeys().iterator();
+
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    ChannelBufferReader reader = (ChannelBufferReader) key.attachment();
+
+                    if (key.isValid()) read( reader );
+                    else deregister( reader );
+                }
+
+                synchronized (this) {
+                    if (count == 0 && pending.isEmpty()) {
+                        selector = null;
+                        thread = null;
+                        break;
+                    }
+                }
+            }
+        }
+        finally {
+            synchronized (this) {
+                // an unexpected end - the next wakeup() starts a new engine:
+                if (thread == Thread.currentThread()) {
+                    Log.e( LOG, "run() stopped unexpectedly - releasing " + count + " readers" );
+
+                    selector = null;
+                    thread = null;
+
+                    for (SelectionKey key : sel.keys().toArray( new SelectionKey[0] )) {
+                        ChannelBufferReader reader = (ChannelBufferReader) key.attachment();
+
+                        reader.finish();
+                        deregister( reader );
+                    }
+                }
+            }
+
+            try { sel.close(); } catch (IOException e) {}
+        }
+
+        Log.d( LOG, "run() stopped" );
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Package
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Asks the engine thread to process the reader - called by any thread.
+     */
+    synchronized void wakeup( ChannelBufferReader reader ) {
+        pending.add( reader );
+
+        if (thread == null) {
+            try {
+                selector = Selector.open();
+            }
+            catch (IOException e) {
+                Log.e( LOG, "Cannot open selector: " + e );
+
+                // the reader is not read by the next engine - its buffers are recycled:
+                pending.remove( reader );
+                reader.finish();
+                deregister( reader );
+                return;
+            }
+
+            thread = new Thread( this, "NioReaderEngine" );
+            thread.setDaemon( true );
+            thread.start();
+        }
+        else selector.wakeup();
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Private
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Registers new readers and resumes reading the readers which have free buffers.
+     */
+    private void processPending( Selector sel ) {
+        ChannelBufferReader reader;
+
+        while ((reader = pending.poll()) != null) {
+            if (reader.deregistered) continue;
+
+            if (reader.key == null) {
+                try {
+                    reader.getChannel().configureBlocking( false );
+                    reader.key = reader.getChannel().register( sel, SelectionKey.OP_READ, reader );
+                }
+                catch (Exception e) {
+                    Log.e( LOG, "Cannot register channel: " + e );
+                    reader.finish();
+                    deregister( reader );
+                    continue;
+                }
+            }
+
+            if (!reader.key.isValid()) {
+                deregister( reader );
+                continue;
+            }
+
+            // the data might be already in the socket buffer:
+            read( reader );
+        }
+    }
+
+
+    private void read( ChannelBufferReader reader ) {
+        SelectionKey key = reader.key;
+
+        try {
+            switch (reader.readAvailable()) {
+                case ChannelBufferReader.READ_MORE:
+                    if (key.interestOps() != SelectionKey.OP_READ) key.interestOps( SelectionKey.OP_READ );
+                    break;
+
+                case ChannelBufferReader.READ_FULL:
+                    // backpressure - stop reading until a buffer is released:
+                    if (key.interestOps() != 0) key.interestOps( 0 );
+                    break;
+
+                default:
+                    deregister( reader );
+            }
+        }
+        catch (RuntimeException e) {
+            // e.g. CancelledKeyException - the channel was closed by another thread (disconnect):
+            Log.w( LOG, "read() reader failed: " + e );
+
+            reader.finish();
+            deregister( reader );
+        }
+    }
+
+
+    private void deregister( ChannelBufferReader reader ) {
+        if (reader.deregistered) return;
+
+        if (reader.key != null) reader.key.cancel();
+        reader.deregistered = true;
+        reader.producerFinished();
+
+        synchronized (this) {
+            count--;
+        }
+    }
+
+}
+
@@ -0,0 +1,351 @@
+/*
+** AACDecoder - Freeware Advanced Audio (AAC) Decoder for Android
+** Copyright (C) 2011 Spolecne s.r.o., http://www.spoledge.com
+**
+** This file is a part of AACDecoder.
+**
+** AACDecoder is free software; you can redistribute it and/or modify
+** it under the terms of the GNU Lesser General Public License as published
+** by the Free Software Foundation; either version 3 of the License,
+** or (at your option) any later version.
+**
+** This program is distributed in the hope that it will be useful,
+** but WITHOUT ANY WARRANTY; without even the implied warranty of
+** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+** GNU Lesser General Public License for more details.
+**
+** You should have received a copy of the GNU Lesser General Public License
+** along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.spoledge.aacdecoder;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+
+/**
+ * This is an audio sink which discards the data - no audio hardware is needed.
+ * It can be used for measuring the decoding pipeline outside a device.
+ * <p>
+ * In the real-time mode the sink consumes the data at the sampling rate
+ * as an AudioTrack would do (the blocking writes wait, underruns are counted
+ * and the events are fired by a timer thread).
+ * Otherwise the data are consumed immediately after play() - as fast as possible.
+ * <pre>
+ *  AACPlayer player = new AACPlayer() {
+ *      protected AudioSink createAudioSink( Decoder.Info info ) {
+ *          return new NullAudioSink( true );
+ *      }
+ *  };
+ * </pre>
+ * @since 0.9
+ */
+public class NullAudioSink implements AudioSink {
+
+    protected final boolean realTime;
+
+    protected int sampleRate;
+    protected int channels;
+    protected int bufferFrames;
+    protected Listener listener;
+
+    private int periodFrames;
+    private int nextPeriod;
+    private int marker = -1;
+
+    private boolean playing;
+    private int writtenFrames;
+    private int underruns;
+
+    /**
+     * True if the playback head reached the end of the data.
+     */
+    private boolean starved;
+
+    /**
+     * The head position when the playback was (re)started.
+     */
+    private int headBase;
+    private long headBaseNanos;
+
+    private Timer timer;
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a new sink.
+     * @param realTime true if the data should be consumed at the sampling rate,
+     *      false if the data should be consumed as fast as possible
+     */
+    public NullAudioSink( boolean realTime ) {
+        this.realTime = realTime;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Public
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns true if the data are consumed at the sampling rate.
+     */
+    public final boolean isRealTime() {
+        return realTime;
+    }
+
+
+    /**
+     * Returns the number of frames written.
+     */
+    public synchronized int getWrittenFrames() {
+        return writtenFrames;
+    }
+
+
+    /**
+     * Returns how many times the playback head reached the end of the data while playing
+     * and more data were written later.
+     * This is always 0 when not in the real-time mode.
+     */
+    public synchronized int getUnderrunCount() {
+        return underruns;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // AudioSink
+    ////////////////////////////////////////////////////////////////////////////
+
+    public void open( int sampleRate, int channels, int bufferSizeInBytes, Listener listener, int periodInFrames ) throws Exception {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.bufferFrames = bufferSizeInBytes / (2 * channels);
+        this.listener = listener;
+        this.periodFrames = periodInFrames;
+        this.nextPeriod = periodInFrames;
+
+        if (realTime && periodInFrames > 0) {
+            long periodMs = Math.max( 1, 1000L * periodInFrames / sampleRate );
+
+            timer = new Timer( "NullAudioSink", true );
+            timer.schedule( new TimerTask() {
+                public void run() {
+                    fireEvents();
+                }
+            }, periodMs, periodMs );
+        }
+    }
+
+
+    public int write( ByteBuffer bytes, ShortBuffer view, int offset, int n, boolean blocking ) {
+        int ret = 0;
+
+        while (n > 0) {
+            int frames = reserve( n / channels, blocking );
+
+            if (frames == 0) break;
+
+            consume( bytes, view, offset, frames * channels );
+
+            offset += frames * channels;
+            n -= frames * channels;
+            ret += frames * channels;
+        }
+
+        fireEvents();
+
+        return ret;
+    }
+
+
+    public int write( short[] samples, int offset, int n ) {
+        int ret = 0;
+
+        while (n > 0) {
+            int frames = reserve( n / channels, true );
+
+            if (frames == 0) break;
+
+            consume( samples, offset, frames * channels );
+
+            offset += frames * channels;
+            n -= frames * channels;
+            ret += frames * channels;
+        }
+
+        fireEvents();
+
+        return ret;
+    }
+
+
+    public void play() {
+        synchronized (this) {
+            if (!playing) {
+                headBaseNanos = System.nanoTime();
+                playing = true;
+            }
+        }
+
+        fireEvents();
+    }
+
+
+    public synchronized void pause() {
+        headBase = head();
+        playing = false;
+    }
+
+
+    public synchronized void flush() {
+        if (!playing) writtenFrames = headBase;
+    }
+
+
+    public synchronized void release() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+
+        playing = false;
+    }
+
+
+    public synchronized int getPlaybackHeadPosition() {
+        return head();
+    }
+
+
+    public void setNotificationMarkerPosition( int frames ) {
+        synchronized (this) {
+            marker = frames;
+        }
+
+        fireEvents();
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Protected
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Consumes the samples written - this implementation does nothing.
+     */
+    protected void consume( ByteBuffer bytes, ShortBuffer view, int offset, int n ) {
+    }
+
+
+    /**
+     * Consumes the samples written - this implementation does nothing.
+     */
+    protected void consume( short[] samples, int offset, int n ) {
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Private
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Computes the current playback head position.
+     */
+    private int head() {
+        if (!playing) return headBase;
+
+        if (!realTime) {
+            headBase = writtenFrames;
+            headBaseNanos = System.nanoTime();
+
+            return headBase;
+        }
+
+        long now = System.nanoTime();
+        long head = headBase + (now - headBaseNanos) * sampleRate / 1000000000L;
+
+        if (head >= writtenFrames) {
+            // the data were not delivered in time (or the end of the stream):
+            if (head > writtenFrames) starved = true;
+
+            headBase = writtenFrames;
+            headBaseNanos = now;
+
+            return headBase;
+        }
+
+        return (int) head;
+    }
+
+
+    /**
+     * Reserves the space in the buffer - waits if needed.
+     * @return the number of frames which can be written
+     */
+    private synchronized int reserve( int frames, boolean blocking ) {
+        while (true) {
+            int free = bufferFrames - (writtenFrames - head());
+
+            if (free > 0) {
+                int ret = Math.min( free, frames );
+                writtenFrames += ret;
+
+                // more data after the head reached the end:
+                if (starved) {
+                    starved = false;
+                    underruns++;
+                }
+
+                return ret;
+            }
+
+            if (!blocking || !playing || !realTime) {
+                // a not playing sink would block forever:
+                return 0;
+            }
+
+            long waitMs = 1 + 1000L * Math.min( frames, bufferFrames / 4 + 1 ) / sampleRate;
+
+            try { wait( waitMs ); } catch (InterruptedException e) { return 0; }
+        }
+    }
+
+
+    /**
+     * Fires the events reached by the playback head - outside the lock.
+     */
+    private void fireEvents() {
+        boolean markerReached = false;
+        int periods = 0;
+
+        synchronized (this) {
+            int head = head();
+
+            if (marker >= 0 && head >= marker) {
+                marker = -1;
+                markerReached = true;
+            }
+
+            if (periodFrames > 0) {
+                while (head >= nextPeriod) {
+                    nextPeriod += periodFrames;
+                    periods++;
+                }
+            }
+        }
+
+        if (listener == null) return;
+
+        // one notification is enough if several periods passed:
+        if (periods > 0) listener.onPeriodicNotification( this );
+        if (markerReached) listener.onMarkerReached( this );
+    }
+
+}
+
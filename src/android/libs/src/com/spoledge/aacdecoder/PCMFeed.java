@@ -19,15 +19,22 @@
 */
 package com.spoledge.aacdecoder;
 
-import android.media.AudioFormat;
-import android.media.AudioManager;
-import android.media.AudioTrack;
-
 import android.util.Log;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
 
 /**
- * This is a PCM Feeder which uses arrays (short[]).
+ * This is a PCM Feeder which uses a queue of direct buffers (chunks).
+ * The producer (decoder) can run several chunks ahead of the audio output;
+ * the handoff is lock-free (see SlotRing) and the chunks are recycled.
+ * The output is an AudioSink - by default AudioTrackSink.
  *
  * <pre>
  *  // 44100 Hz, stereo, buffering of 1.5 seconds:
@@ -37,15 +44,19 @@ import android.util.Log;
  *  new Thread( pcmfeed ).start();
  *
  *  while (...) {
- *      // obtain the PCM data:
- *      short[] samples = ...
+ *      // obtain a free chunk, on error break the loop:
+ *      ShortBuffer chunk = pcmfeed.acquireChunk( size );
+ *      if (chunk == null) break;
+ *
+ *      // fill the chunk with the PCM data:
+ *      int n = ...
  *
- *      // feed the audio buffer; on error break the loop:
- *      if (!pcmfeed.feed( samples, samples.length )) break;
+ *      // enqueue the chunk; on error break the loop:
+ *      if (!pcmfeed.publishChunk( n )) break;
  *  }
  * </pre>
  */
-public class PCMFeed implements Runnable, AudioTrack.OnPlaybackPositionUpdateListener {
+public class PCMFeed implements Runnable, AudioSink.Listener {
 
     /**
      * Constant value when reached a marker position.
@@ -62,6 +73,15 @@ public class PCMFeed implements Runnable, AudioTrack.OnPlaybackPositionUpdateLis
     public static final int MARKER_REACHED_ACTION_PAUSE = 1;
 
 
+    /**
+     * The default number of chunks in the queue.
+     * One is being written to the audio output, one is being filled by the producer
+     * and the rest is waiting.
+     * @since 0.9
+     */
+    public static final int DEFAULT_QUEUE_DEPTH = 4;
+
+
     private static final String LOG = "PCMFeed";
 
 
@@ -81,12 +101,13 @@ public class PCMFeed implements Runnable, AudioTrack.OnPlaybackPositionUpdateLis
     protected PlayerCallback playerCallback;
 
     /**
-     * The AudioTrack instance.
+     * The audio output.
+     * @since 0.9
      */
-    protected AudioTrack audioTrack;
+    protected AudioSink sink;
 
     /**
-     * True iff the AudioTrack is playing.
+     * True iff the audio output is playing.
      */
     protected boolean isPlaying;
 
@@ -101,31 +122,115 @@ public class PCMFeed implements Runnable, AudioTrack.OnPlaybackPositionUpdateLis
      */
     protected boolean stoppedByEOF;
 
+    /**
+     * True after the run() method finished.
+     */
+    private boolean finished;
+
 
     /**
      * The local variable in run() method set by method acquireSamples().
+     * @since 0.9
+     */
+    protected ByteBuffer lbytes;
+
+
+    /**
+     * The short view of lbytes.
+     * @since 0.9
      */
-    protected short[] lsamples;
+    protected ShortBuffer lview;
 
 
     /**
-     * The variable set by feed() method and consumed in run().
+     * The queue of chunks - the indexes of the arrays below.
      */
-    protected short[] samples;
+    private SlotRing ring;
 
+    /**
+     * The chunks - allocated when first needed and then reused.
+     */
+    private ByteBuffer[] chunkBytes;
+    private ShortBuffer[] chunkViews;
+    private int[] chunkSizes;
 
     /**
-     * The variable set by feed() method and consumed in run().
+     * The index of the chunk claimed by the producer or -1.
      */
-    protected int samplesCount;
+    private int claimed = -1;
 
+    /**
+     * True if the execution thread holds a chunk.
+     */
+    private volatile boolean holding;
 
     /**
-     * Total samples written to AudioTrack.
+     * The maximum number of chunks waiting in the queue.
+     */
+    private volatile int maxQueueDepth;
+
+
+
+
+    /**
+     * Total samples written to the audio output.
      */
     protected int writtenTotal = 0;
 
 
+    /**
+     * The number of times the execution thread had to wait for the audio output
+     * (other than inside a blocking write) - for profiling.
+     * @since 0.9
+     */
+    protected int wakeups;
+
+
+    /**
+     * The number of times the audio output ran out of data during playback.
+     * @since 0.9
+     */
+    protected int underruns;
+
+
+    /**
+     * The adaptive buffering controller - may be null.
+     * @since 0.9
+     */
+    protected BufferingController bufferingController;
+
+
+    /**
+     * The queue of the metadata released by the playback head - may be null.
+     * @since 0.9
+     */
+    protected TimedMetadataQueue metadataQueue;
+
+
+    /**
+     * The last playback head position reported by the audio output.
+     */
+    private int lastHead;
+
+
+    /**
+     * The playback head position extended to a long across the int wraps.
+     */
+    private long playedHead;
+
+
+    /**
+     * The execution thread - unparked by the periodic notifications.
+     */
+    private volatile Thread feederThread;
+
+
+    /**
+     * Counted down when the end-of-stream marker is reached.
+     */
+    private final CountDownLatch markerLatch = new CountDownLatch( 1 );
+
+
     /**
      * The action which to be executed when the marker position is reached.
      * Actually this is used for very short audio data workaround.
@@ -146,11 +251,46 @@ public class PCMFeed implements Runnable, AudioTrack.OnPlaybackPositionUpdateLis
      * @param playerCallback the callback - may be null
      */
     protected PCMFeed( int sampleRate, int channels, int bufferSizeInBytes, PlayerCallback playerCallback ) {
+        this( sampleRate, channels, bufferSizeInBytes, playerCallback, DEFAULT_QUEUE_DEPTH );
+    }
+
+
+    /**
+     * Creates a new PCMFeed object.
+     * @param sampleRate the sampling rate in Hz (e.g. 44100)
+     * @param channels the number of channels - only allowed values are 1 (mono) and 2 (stereo).
+     * @param bufferSizeInBytes the size of the audio buffer in bytes
+     * @param playerCallback the callback - may be null
+     * @param queueDepth the number of chunks - at least 2
+     * @since 0.9
+     */
+    protected PCMFeed( int sampleRate, int channels, int bufferSizeInBytes, PlayerCallback playerCallback, int queueDepth ) {
+        this( sampleRate, channels, bufferSizeInBytes, playerCallback, queueDepth, new AudioTrackSink( playerCallback ));
+    }
+
+
+    /**
+     * Creates a new PCMFeed object.
+     * @param sampleRate the sampling rate in Hz (e.g. 44100)
+     * @param channels the number of channels - only allowed values are 1 (mono) and 2 (stereo).
+     * @param bufferSizeInBytes the size of the audio buffer in bytes
+     * @param playerCallback the callback - may be null
+     * @param queueDepth the number of chunks - at least 2
+     * @param sink the audio output - it is opened and released by the execution thread
+     * @since 0.9
+     */
+    protected PCMFeed( int sampleRate, int channels, int bufferSizeInBytes, PlayerCallback playerCallback, int queueDepth, AudioSink sink ) {
+        this.sink = sink;
         this.sampleRate = sampleRate;
         this.channels = channels;
         this.bufferSizeInBytes = bufferSizeInBytes;
         this.bufferSizeInMs = bytesToMs( bufferSizeInBytes, sampleRate, channels );
         this.playerCallback = playerCallback;
+
+        ring = new SlotRing( queueDepth );
+        chunkBytes = new ByteBuffer[ queueDepth ];
+        chunkViews = new ShortBuffer[ queueDepth ];
+        chunkSizes = new int[ queueDepth ];
     }
 
 
@@ -190,24 +330,163 @@ public class PCMFeed implements Runnable, AudioTrack.OnPlaybackPositionUpdateLis
     }
 
 
+    /**
+     * Returns the number of chunks of the queue.
+     * @since 0.9
+     */
+    public final int getQueueCapacity() {
+        return ring.getSlots();
+    }
+
+
+    /**
+     * Returns the number of chunks waiting in the queue (not being written to the audio output).
+     * This can be called by any thread - a low value during playback means
+     * that the producer is hardly keeping up.
+     * @since 0.9
+     */
+    public int getQueueDepth() {
+        int n = ring.size();
+
+        return holding && n > 0 ? n - 1 : n;
+    }
+
+
+    /**
+     * Returns the maximum number of chunks which were waiting in the queue.
+     * @since 0.9
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+
+    /**
+     * Returns the number of times the audio output ran out of data during playback.
+     * @since 0.9
+     */
+    public int getUnderruns() {
+        return underruns;
+    }
+
+
+    /**
+     * Sets the adaptive buffering controller.
+     * Then the output starts when the controller's start threshold is buffered
+     * and after an underrun the output is paused until the threshold is buffered again.
+     * Without the controller the output starts when the audio buffer is full.
+     *
+     * NOTE: this must be called BEFORE the execution thread is started.
+     *
+     * @param bufferingController the controller or null
+     * @since 0.9
+     */
+    public void setBufferingController( BufferingController bufferingController ) {
+        this.bufferingController = bufferingController;
+    }
+
+
+    /**
+     * Sets the queue of the metadata which are released when the playback head reaches them.
+     * The positions of the metadata are counted in samples (all channels) passed to this feed.
+     * @param metadataQueue the queue or null
+     * @since 0.9
+     */
+    public void setMetadataQueue( TimedMetadataQueue metadataQueue ) {
+        this.metadataQueue = metadataQueue;
+    }
+
+
+    /**
+     * This is called by the producer thread to obtain a free chunk.
+     * Waits until a chunk is available.
+     * The chunk must be filled from the beginning and then enqueued by publishChunk().
+     *
+     * @param minSamples the minimum capacity of the chunk in samples
+     * @return the chunk (position 0, limit = capacity) or null if the feeder was stopped
+     * @since 0.9
+     */
+    public ShortBuffer acquireChunk( int minSamples ) {
+        if (claimed != -1) return chunkViews[ claimed ];
+
+        int index = ring.claim();
+
+        if (index == -1) return null;
+
+        if (chunkViews[ index ] == null || chunkViews[ index ].capacity() < minSamples) {
+            chunkBytes[ index ] = ByteBuffer.allocateDirect( minSamples * 2 ).order( ByteOrder.nativeOrder());
+            chunkViews[ index ] = chunkBytes[ index ].asShortBuffer();
+        }
+
+        claimed = index;
+
+        ShortBuffer ret = chunkViews[ index ];
+        ret.clear();
+
+        return ret;
+    }
+
+
+    /**
+     * This is called by the producer thread to enqueue the chunk obtained by acquireChunk().
+     *
+     * @param n the number of samples stored in the chunk
+     * @return true if ok, false if the execution thread is not responding
+     * @since 0.9
+     */
+    public boolean publishChunk( int n ) {
+        if (claimed == -1) throw new IllegalStateException( "No chunk acquired" );
+
+        chunkSizes[ claimed ] = n;
+        claimed = -1;
+
+        ring.publish();
+
+        int depth = getQueueDepth();
+        if (depth > maxQueueDepth) maxQueueDepth = depth;
+
+        return !stopped;
+    }
+
+
     /**
      * This is called by main thread when a new data are available.
+     * The data are copied into the queue.
      *
      * @param samples the array containing the PCM data
      * @param n the length of the PCM data
      * @return true if ok, false if the execution thread is not responding
      */
-    public synchronized boolean feed( short[] samples, int n ) {
-        while (this.samples != null && !stopped) {
-            try { wait(); } catch (InterruptedException e) {}
-        }
+    public boolean feed( short[] samples, int n ) {
+        ShortBuffer chunk = acquireChunk( n );
 
-        this.samples = samples;
-        this.samplesCount = n;
+        if (chunk == null) return false;
 
-        notify();
+        chunk.put( samples, 0, n );
 
-        return !stopped;
+        return publishChunk( n );
+    }
+
+
+    /**
+     * This is called by main thread when a new data are available.
+     * The data are copied into the queue - use acquireChunk() to avoid copying.
+     *
+     * @param bytes the buffer (native byte order) containing the PCM data starting at position 0
+     * @param n the length of the PCM data in samples
+     * @return true if ok, false if the execution thread is not responding
+     * @since 0.9
+     */
+    public boolean feed( ByteBuffer bytes, int n ) {
+        ShortBuffer chunk = acquireChunk( n );
+
+        if (chunk == null) return false;
+
+        ShortBuffer src = bytes.duplicate().order( bytes.order()).asShortBuffer();
+        src.limit( n );
+        chunk.put( src );
+
+        return publishChunk( n );
     }
 
 
@@ -235,10 +514,24 @@ public class PCMFeed implements Runnable, AudioTrack.OnPlaybackPositionUpdateLis
         }
         else {
             stopped = true;
-            if (isPlaying) audioTrack.pause();
+            if (isPlaying) sink.pause();
+
+            // do not wait for the last tone:
+            markerLatch.countDown();
         }
 
-        notify();
+        // the queued chunks are still returned to the execution thread:
+        ring.stop();
+    }
+
+
+    /**
+     * Waits until the execution thread finishes - the audio output is released.
+     * This replaces Thread.join() - the feeder can run in a pooled thread.
+     * @since 0.9
+     */
+    public synchronized void join() throws InterruptedException {
+        while (!finished) wait();
     }
 
 
@@ -283,19 +576,21 @@ public class PCMFeed implements Runnable, AudioTrack.OnPlaybackPositionUpdateLis
 
 
     ////////////////////////////////////////////////////////////////////////////
-    // OnPlaybackPositionUpdateListener
+    // AudioSink.Listener
     ////////////////////////////////////////////////////////////////////////////
 
     /**
      * Called on the listener to notify it that the previously set marker
      * has been reached by the playback head.
      */
-    public void onMarkerReached( AudioTrack track ) {
+    public void onMarkerReached( AudioSink sink ) {
         Log.d( LOG, "onMarkerReached()" );
 
         if (markerReachedAction == MARKER_REACHED_ACTION_PAUSE) {
-            track.pause();
+            sink.pause();
         }
+
+        markerLatch.countDown();
     }
 
 
@@ -303,22 +598,32 @@ public class PCMFeed implements Runnable, AudioTrack.OnPlaybackPositionUpdateLis
      * Called on the listener to periodically notify it that the playback head
      * has reached a multiple of the notification period. 
      */
-    public void onPeriodicNotification( AudioTrack track ) {
-        if (playerCallback != null) {
-            int buffered = 0;
+    public void onPeriodicNotification( AudioSink sink ) {
+        // wake up the execution thread if it is waiting for free space:
+        Thread t = feederThread;
+        if (t != null) LockSupport.unpark( t );
+
+        TimedMetadataQueue queue = metadataQueue;
+
+        if (playerCallback != null || queue != null) {
+            int head;
 
             try {
-                buffered = writtenTotal - track.getPlaybackHeadPosition()*channels;
+                head = sink.getPlaybackHeadPosition();
             }
             catch (IllegalStateException e) {
-                Log.e( LOG, "onPeriodicNotification(): illegal state=" + track.getPlayState());
+                Log.e( LOG, "onPeriodicNotification(): illegal state=" + sink );
 
                 return;
             }
 
-            int ms = samplesToMs( buffered, sampleRate, channels );
+            if (queue != null) queue.played( extendHead( head ) * channels );
 
-            playerCallback.playerPCMFeedBuffer( isPlaying, ms, bufferSizeInMs );
+            if (playerCallback != null) {
+                int ms = samplesToMs( writtenTotal - head*channels, sampleRate, channels );
+
+                playerCallback.playerPCMFeedBuffer( isPlaying, ms, bufferSizeInMs );
+            }
         }
     }
 
@@ -331,40 +636,56 @@ public class PCMFeed implements Runnable, AudioTrack.OnPlaybackPositionUpdateLis
      * The main execution loop which should be executed in its own thread.
      */
     public void run() {
+        try {
+            runImpl();
+        }
+        finally {
+            synchronized (this) {
+                stopped = true;
+                finished = true;
+                notifyAll();
+            }
+
+            // wake up the producer:
+            ring.stop();
+        }
+
+        Log.d( LOG, "run() stopped - max queue depth " + maxQueueDepth + ", parked " + ring.getParkCount() + " times." );
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Protected
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * The implementation of the main execution loop.
+     * @since 0.9
+     */
+    protected void runImpl() {
         Log.d( LOG, "run(): sampleRate=" + sampleRate + ", channels=" + channels
             + ", bufferSizeInBytes=" + bufferSizeInBytes
             + " (" + bufferSizeInMs + " ms)");
 
         isPlaying = false;
+        feederThread = Thread.currentThread();
 
-        AudioTrack atrack = null;
+        long tsStart = System.currentTimeMillis();
+
+        boolean opened = false;
 
         try {
-            atrack = new AudioTrack(
-                                AudioManager.STREAM_MUSIC,
-                                sampleRate,
-                                channels == 1 ?
-                                    AudioFormat.CHANNEL_CONFIGURATION_MONO :
-                                    AudioFormat.CHANNEL_CONFIGURATION_STEREO,
-                                AudioFormat.ENCODING_PCM_16BIT,
-                                bufferSizeInBytes,
-                                AudioTrack.MODE_STREAM );
-
-            atrack.setPlaybackPositionUpdateListener( this );
-            atrack.setPositionNotificationPeriod( msToSamples( 200, sampleRate, channels ));
-
-            if (playerCallback != null) playerCallback.playerAudioTrackCreated( atrack );
-
-            this.audioTrack = atrack;
+            sink.open( sampleRate, channels, bufferSizeInBytes, this, msToSamples( 200, sampleRate, channels ));
+            opened = true;
         }
         catch (Throwable t) {
-            Log.e( LOG, "Cannot create AudioTrack: " + t );
+            Log.e( LOG, "Cannot open the audio output: " + t );
             stop();
             if (playerCallback != null) playerCallback.playerException( t );
         }
 
         while (!stopped) {
-            // fetch the samples into our "local" variable lsamples:
+            // fetch the samples into our "local" variable lbytes:
             int ln = acquireSamples();
 
             if (stopped || ln == 0) {
@@ -372,16 +693,15 @@ public class PCMFeed implements Runnable, AudioTrack.OnPlaybackPositionUpdateLis
                 break;
             }
 
-            // samples written to AudioTrack in this round:
+            // samples written to the audio output in this round:
             int writtenNow = 0;
 
-            do {
-                if (writtenNow != 0) {
-                    Log.d( LOG, "too fast for playback, sleeping...");
-                    try { Thread.sleep( 50 ); } catch (InterruptedException e) {}
-                }
+            if (isPlaying && !stopped) checkUnderrun();
 
-                int written = atrack.write( lsamples, writtenNow, ln );
+            do {
+                // the track does not consume data before it is started,
+                // so the writes are non-blocking until then:
+                int written = sink.write( lbytes, lview, writtenNow, ln, isPlaying );
 
                 if (written < 0) {
                     Log.e( LOG, "error in playback feed: " + written );
@@ -390,20 +710,27 @@ public class PCMFeed implements Runnable, AudioTrack.OnPlaybackPositionUpdateLis
                 }
 
                 writtenTotal += written;
-                int buffered = writtenTotal - atrack.getPlaybackHeadPosition()*channels;
+                int buffered = writtenTotal - sink.getPlaybackHeadPosition()*channels;
 
                 // Log.d( LOG, "PCM fed by " + ln + " and written " + written + " samples - buffered " + buffered);
 
                 if (!stopped && !isPlaying) {
-                    if (buffered*2 >= bufferSizeInBytes) {
-                        Log.d( LOG, "start of AudioTrack - buffered " + buffered + " samples");
-                        atrack.play();
+                    // a short write means that the audio buffer is full:
+                    if (buffered >= getStartSamples() || written < ln) {
+                        Log.d( LOG, "start of audio output - buffered " + buffered + " samples");
+                        sink.play();
                         isPlaying = true;
                     }
                     else {
-                        Log.d( LOG, "start buffer not filled enough - AudioTrack not started yet");
+                        Log.d( LOG, "start buffer not filled enough - audio output not started yet");
                     }
                 }
+                else if (written == 0 && !stopped) {
+                    // should not happen with blocking writes - wait for the next periodic notification:
+                    Log.d( LOG, "too fast for playback, waiting...");
+                    wakeups++;
+                    LockSupport.parkNanos( this, TimeUnit.MILLISECONDS.toNanos( 200 ));
+                }
 
                 writtenNow += written;
                 ln -= written;
@@ -413,63 +740,135 @@ public class PCMFeed implements Runnable, AudioTrack.OnPlaybackPositionUpdateLis
         }
 
         // Play the rest of the file:
-        if (!stopped && stoppedByEOF) waitForLastTone();
+        if (!stopped && stoppedByEOF) {
+            waitForLastTone();
 
-        // Stop playing:
-        if (isPlaying) atrack.pause();
-        atrack.flush();
-        atrack.release();
+            // all the audio was played:
+            if (metadataQueue != null) metadataQueue.played( Long.MAX_VALUE );
+        }
 
-        stopped = true;
+        feederThread = null;
 
-        Log.d( LOG, "run() stopped." );
+        long ms = System.currentTimeMillis() - tsStart;
+        if (ms > 0) Log.i( LOG, "run(): wakeups=" + wakeups + " in " + ms + " ms (" + (wakeups * 60000L / ms) + " per minute)" );
+
+        // Stop playing:
+        if (opened) {
+            if (isPlaying) sink.pause();
+            sink.flush();
+            sink.release();
+        }
+        else {
+            // e.g. an AudioTrack created in advance - the number of them is limited:
+            try {
+                sink.release();
+            }
+            catch (Throwable t) {
+                Log.w( LOG, "Cannot release the audio output: " + t );
+            }
+        }
     }
 
 
-    ////////////////////////////////////////////////////////////////////////////
-    // Protected
-    ////////////////////////////////////////////////////////////////////////////
+    /**
+     * Acquires samples into variables lbytes and lview.
+     * Waits until a chunk is available.
+     * @return the actual size (in shorts) of the samples or 0 if stopped
+     */
+    protected int acquireSamples() {
+        int index = ring.acquire();
+
+        if (index == -1) {
+            lbytes = null;
+            lview = null;
+
+            return 0;
+        }
+
+        holding = true;
+        lbytes = chunkBytes[ index ];
+        lview = chunkViews[ index ];
+
+        return chunkSizes[ index ];
+    }
+
 
     /**
-     * Acquires samples into variable lsamples.
-     * @return the actual size (in shorts) of the lsamples
+     * Releases the lbytes variable - returns the chunk to the producer.
+     * This method is called always after processing the acquired samples.
      */
-    protected synchronized int acquireSamples() {
-        while (samplesCount == 0 && !(stopped || stoppedByEOF)) {
-            try { wait(); } catch (InterruptedException e) {}
+    protected void releaseSamples() {
+        if (holding) {
+            holding = false;
+            ring.release();
         }
+    }
 
-        // copy to local vars
-        lsamples = samples;
-        int ln = samplesCount;
 
-        // clear the instance vars
-        samples = null;
-        samplesCount = 0;
+    /**
+     * Returns the number of samples (all channels) which must be buffered before
+     * the audio output is started.
+     * @since 0.9
+     */
+    protected int getStartSamples() {
+        BufferingController bc = bufferingController;
 
-        notify();
+        if (bc == null) return bufferSizeInBytes / 2;
 
-        return ln;
+        return msToSamples( bc.getStartThresholdMs(), sampleRate, channels );
     }
 
 
     /**
-     * Releases the lsamples variable.
-     * This method is called always after processing the acquired lsamples.
+     * Checks if the audio output ran out of data before the current chunk was available.
+     * If the buffering controller is set, then the output is paused and started again
+     * when enough audio is buffered (the start threshold).
+     * @since 0.9
      */
-    protected void releaseSamples() {
-        // nothing to be done
+    protected void checkUnderrun() {
+        int buffered;
+
+        try {
+            buffered = writtenTotal - sink.getPlaybackHeadPosition()*channels;
+        }
+        catch (IllegalStateException e) {
+            return;
+        }
+
+        if (buffered > 0) return;
+
+        underruns++;
+        Log.w( LOG, "underrun #" + underruns );
+
+        BufferingController bc = bufferingController;
+
+        if (bc != null) {
+            bc.onUnderrun();
+
+            synchronized (this) {
+                if (!stopped) {
+                    sink.pause();
+                    isPlaying = false;
+                }
+            }
+        }
     }
 
 
     /**
      * Waits for the last tone.
+     * The end is signalled by the notification marker - no polling is done.
      */
     protected void waitForLastTone() {
+        if (writtenTotal == 0) return;
+
+        // the marker is set at the end of the real data:
+        sink.setNotificationMarkerPosition( writtenTotal / channels );
+
         // very small files are not even started
         // we try to start them now, but Android is waiting
         // in STREAM mode for more data - so we write dummy data to the track
-        // and set the notification marker:
+        // and pause it at the marker:
 
         if (!isPlaying) {
             // we've found that 2 seconds is enough:
@@ -480,47 +879,59 @@ public class PCMFeed implements Runnable, AudioTrack.OnPlaybackPositionUpdateLis
                 short[] dummy = new short[ minSamples - writtenTotal ];
 
                 // once is enough - it means that buffer is probably full:
-                audioTrack.write( dummy, 0, dummy.length );
-                audioTrack.setNotificationMarkerPosition( writtenTotal / channels );
                 markerReachedAction = MARKER_REACHED_ACTION_PAUSE;
+                sink.write( dummy, 0, dummy.length );
             }
 
-            Log.d( LOG, "start of AudioTrack" );
-            audioTrack.play();
+            Log.d( LOG, "start of audio output" );
+            sink.play();
             isPlaying = true;
         }
 
         Log.i( LOG, "Waiting for the end of the music" );
 
-        int lastBuffered = writtenTotal;
-        int lastDiff = writtenTotal;
-        int count = 5;
+        int buffered = 0;
 
-        do {
-            // sleep a while - it is safer than waiting - avoiding deadlock:
-            try { Thread.sleep( 100 ); } catch (InterruptedException e) {}
+        try {
+            buffered = writtenTotal - sink.getPlaybackHeadPosition()*channels;
+        }
+        catch (IllegalStateException e) {
+            Log.e( LOG, "waitForLastTone(): illegal state=" + sink );
 
-            // obtain the current buffer
-            int buffered = 0;
+            return;
+        }
 
-            try {
-                buffered = writtenTotal - audioTrack.getPlaybackHeadPosition()*channels;
-            }
-            catch (IllegalStateException e) {
-                Log.e( LOG, "waitForLastTone(): illegal state=" + audioTrack.getPlayState());
+        // the safety net - the marker is not reported if it was already passed:
+        long timeoutMs = samplesToMs( buffered > 0 ? buffered : 0, sampleRate, channels ) + 1000;
 
-                break;
+        wakeups++;
+
+        try {
+            if (!markerLatch.await( timeoutMs, TimeUnit.MILLISECONDS )) {
+                Log.w( LOG, "waitForLastTone(): marker not reached in " + timeoutMs + " ms" );
             }
+        }
+        catch (InterruptedException e) {
+            Log.w( LOG, "waitForLastTone(): interrupted" );
+        }
+    }
 
-            lastDiff = lastBuffered - buffered;
-            lastBuffered = buffered;
 
-            if (lastDiff == 0) count--;
-            else count = 5;
+    ////////////////////////////////////////////////////////////////////////////
+    // Private
+    ////////////////////////////////////////////////////////////////////////////
 
-            //Log.d( LOG, "WAIT-EOF: " + count + ", " + lastDiff + ", " + lastBuffered );
-        }
-        while ( count > 0 && (lastBuffered > 0 || lastDiff > 0));
+    /**
+     * Extends the playback head position to a long.
+     * The int position turns negative after 2^31 frames (about 13.5 hours at 44.1 kHz)
+     * and wraps, so the unsigned distance from the last position is added.
+     * Called only from the notification thread.
+     */
+    private long extendHead( int head ) {
+        playedHead += (head - lastHead) & 0xffffffffL;
+        lastHead = head;
+
+        return playedHead;
     }
 
 }
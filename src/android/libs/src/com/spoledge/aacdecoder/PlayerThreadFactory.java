@@ -0,0 +1,102 @@
+/*
+** AACDecoder - Freeware Advanced Audio (AAC) Decoder for Android
+** Copyright (C) 2011 Spolecne s.r.o., http://www.spoledge.com
+**
+** This file is a part of AACDecoder.
+**
+** AACDecoder is free software; you can redistribute it and/or modify
+** it under the terms of the GNU Lesser General Public License as published
+** by the Free Software Foundation; either version 3 of the License,
+** or (at your option) any later version.
+**
+** This program is distributed in the hope that it will be useful,
+** but WITHOUT ANY WARRANTY; without even the implied warranty of
+** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+** GNU Lesser General Public License for more details.
+**
+** You should have received a copy of the GNU Lesser General Public License
+** along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.spoledge.aacdecoder;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * This is a thread factory which creates daemon threads running with the given
+ * Android (Linux) priority.
+ * The priority is set by the thread itself - android.os.Process.setThreadPriority()
+ * affects only the calling thread.
+ * <pre>
+ *  // a pool of audio output threads:
+ *  ThreadFactory tf = new PlayerThreadFactory( "pcmfeed", Process.THREAD_PRIORITY_AUDIO );
+ *  Executor executor = Executors.newCachedThreadPool( tf );
+ *
+ *  player.setExecutors( null, null, executor );
+ * </pre>
+ * @since 0.9
+ */
+public class PlayerThreadFactory implements ThreadFactory {
+
+    private static final String LOG = "PlayerThreadFactory";
+
+    private final String name;
+    private final int priority;
+    private final AtomicInteger count = new AtomicInteger();
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a new factory.
+     * @param name the prefix of the thread names
+     * @param priority the Android priority, e.g. Process.THREAD_PRIORITY_AUDIO
+     */
+    public PlayerThreadFactory( String name, int priority ) {
+        this.name = name;
+        this.priority = priority;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Public
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns the Android priority of the created threads.
+     */
+    public final int getPriority() {
+        return priority;
+    }
+
+
+    /**
+     * Creates a new thread.
+     */
+    public Thread newThread( final Runnable r ) {
+        Thread t = new Thread( new Runnable() {
+            public void run() {
+                try {
+                    Process.setThreadPriority( priority );
+                }
+                catch (Throwable t) {
+                    Log.w( LOG, "Cannot set thread priority " + priority + ": " + t );
+                }
+
+                r.run();
+            }
+        }, name + "-" + count.incrementAndGet());
+
+        t.setDaemon( true );
+
+        return t;
+    }
+
+}
+
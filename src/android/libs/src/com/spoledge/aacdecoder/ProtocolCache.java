@@ -0,0 +1,270 @@
+/*
+** AACDecoder - Freeware Advanced Audio (AAC) Decoder for Android
+** Copyright (C) 2011 Spolecne s.r.o., http://www.spoledge.com
+**
+** This file is a part of AACDecoder.
+**
+** AACDecoder is free software; you can redistribute it and/or modify
+** it under the terms of the GNU Lesser General Public License as published
+** by the Free Software Foundation; either version 3 of the License,
+** or (at your option) any later version.
+**
+** This program is distributed in the hope that it will be useful,
+** but WITHOUT ANY WARRANTY; without even the implied warranty of
+** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+** GNU Lesser General Public License for more details.
+**
+** You should have received a copy of the GNU Lesser General Public License
+** along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.spoledge.aacdecoder;
+
+import android.util.Log;
+
+import java.net.URL;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * This remembers which protocol worked for a server (host:port).
+ * E.g. SHOUTCAST servers answer "ICY 200 OK" which is refused by HttpURLConnection since KitKat -
+ * the player then reconnects by IcyURLConnection. With this cache the next
+ * connections to the same server use IcyURLConnection immediately.
+ * The cache is bounded (the least recently used entries are dropped) and the entries expire.
+ * Optionally the entries can be persisted by a Store.
+ * All methods are thread safe.
+ * @since 0.9
+ */
+public class ProtocolCache {
+
+    /**
+     * The persistent storage of the entries.
+     */
+    public interface Store {
+
+        /**
+         * Returns the stored entries.
+         * @return the map of keys (host:port) and values as passed to save()
+         */
+        public Map<String, String> load();
+
+
+        /**
+         * Stores all entries - the previous ones are replaced.
+         * @param entries the map of keys (host:port) and values
+         */
+        public void save( Map<String, String> entries );
+
+    }
+
+
+    private static final class ServerEntry {
+        final String protocol;
+        final long expires;
+
+        ServerEntry( String protocol, long expires ) {
+            this.protocol = protocol;
+            this.expires = expires;
+        }
+    }
+
+
+    /**
+     * The protocol of IcyURLConnection.
+     */
+    public static final String ICY = "icy";
+
+    /**
+     * The default maximum number of entries.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 64;
+
+    /**
+     * The default time to live of an entry - one week.
+     */
+    public static final long DEFAULT_TTL_MS = 7 * 24 * 3600 * 1000L;
+
+    private static final String LOG = "ProtocolCache";
+
+    private static ProtocolCache defaultCache;
+
+    private final int maxEntries;
+    private final long ttlMs;
+
+    /**
+     * The entries in the access order.
+     */
+    private final LinkedHashMap<String, ServerEntry> entries;
+
+    private Store store;
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a new cache.
+     * @param maxEntries the maximum number of servers
+     * @param ttlMs the time to live of an entry in ms
+     */
+    public ProtocolCache( final int maxEntries, long ttlMs ) {
+        this.maxEntries = maxEntries;
+        this.ttlMs = ttlMs;
+
+        entries = new LinkedHashMap<String, ServerEntry>( 16, 0.75f, true ) {
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<String, ServerEntry> eldest ) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Public
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns the process-wide cache.
+     */
+    public static synchronized ProtocolCache getDefault() {
+        if (defaultCache == null) defaultCache = new ProtocolCache( DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MS );
+
+        return defaultCache;
+    }
+
+
+    /**
+     * Sets the persistent storage - the stored entries are loaded immediately.
+     * @param store the storage or null
+     */
+    public synchronized void setStore( Store store ) {
+        this.store = store;
+
+        if (store == null) return;
+
+        Map<String, String> map;
+
+        try {
+            map = store.load();
+        }
+        catch (Exception e) {
+            Log.w( LOG, "setStore() cannot load the entries: " + e );
+            return;
+        }
+
+        if (map == null) return;
+
+        long now = System.currentTimeMillis();
+
+        for (Map.Entry<String, String> me : map.entrySet()) {
+            String val = me.getValue();
+            int n = val != null ? val.indexOf( ' ' ) : -1;
+
+            if (n < 1) continue;
+
+            try {
+                long expires = Long.parseLong( val.substring( n+1 ));
+
+                if (expires > now) entries.put( me.getKey(), new ServerEntry( val.substring( 0, n ), expires ));
+            }
+            catch (NumberFormatException e) {
+                Log.w( LOG, "setStore() invalid entry: " + me.getKey() + "=" + val );
+            }
+        }
+
+        Log.d( LOG, "setStore() loaded " + entries.size() + " entries" );
+    }
+
+
+    /**
+     * Returns the protocol which worked for the server of the URL.
+     * @return the protocol (e.g. ICY) or null if not known
+     */
+    public synchronized String get( URL url ) {
+        String key = key( url );
+        ServerEntry e = entries.get( key );
+
+        if (e == null) return null;
+
+        if (e.expires <= System.currentTimeMillis()) {
+            entries.remove( key );
+            save();
+
+            return null;
+        }
+
+        return e.protocol;
+    }
+
+
+    /**
+     * Remembers the protocol which worked for the server of the URL.
+     */
+    public synchronized void put( URL url, String protocol ) {
+        entries.put( key( url ), new ServerEntry( protocol, System.currentTimeMillis() + ttlMs ));
+        save();
+    }
+
+
+    /**
+     * Forgets the server of the URL - e.g. when the remembered protocol does not work anymore.
+     */
+    public synchronized void remove( URL url ) {
+        if (entries.remove( key( url )) != null) save();
+    }
+
+
+    /**
+     * Removes all entries.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        save();
+    }
+
+
+    /**
+     * Returns the number of entries (including the expired ones).
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Private
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns the key: host:port - the default port of the protocol is used if not specified.
+     */
+    private static String key( URL url ) {
+        int port = url.getPort();
+
+        return url.getHost().toLowerCase() + ':' + (port != -1 ? port : url.getDefaultPort());
+    }
+
+
+    private void save() {
+        if (store == null) return;
+
+        Map<String, String> map = new HashMap<String, String>();
+
+        for (Map.Entry<String, ServerEntry> me : entries.entrySet()) {
+            map.put( me.getKey(), me.getValue().protocol + " " + me.getValue().expires );
+        }
+
+        try {
+            store.save( map );
+        }
+        catch (Exception e) {
+            Log.w( LOG, "save() cannot store the entries: " + e );
+        }
+    }
+
+}
@@ -0,0 +1,472 @@
+/*
+** AACDecoder - Freeware Advanced Audio (AAC) Decoder for Android
+** Copyright (C) 2011 Spolecne s.r.o., http://www.spoledge.com
+**
+** This file is a part of AACDecoder.
+**
+** AACDecoder is free software; you can redistribute it and/or modify
+** it under the terms of the GNU Lesser General Public License as published
+** by the Free Software Foundation; either version 3 of the License,
+** or (at your option) any later version.
+**
+** This program is distributed in the hope that it will be useful,
+** but WITHOUT ANY WARRANTY; without even the implied warranty of
+** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+** GNU Lesser General Public License for more details.
+**
+** You should have received a copy of the GNU Lesser General Public License
+** along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.spoledge.aacdecoder;
+
+import android.util.Log;
+
+
+/**
+ * This is a reader of a live stream which survives network outages.
+ * It passes the buffers of the current reader; when the reader stalls (no bytes
+ * read for the stall timeout while the consumer waits) or fails (e.g. the connection is broken),
+ * a new connection is opened by the Connector and the reading continues
+ * from the new reader - the decoder and the audio output are kept running
+ * and play the buffered audio meanwhile.
+ * The first buffer of the new reader is marked as discontinuity (see Buffer.isDiscontinuity()),
+ * so the decoder drops the partial frame of the old stream and resyncs.
+ * A regular end of the stream (see BufferReader.isEndOfStream()) is passed to the consumer -
+ * e.g. a finite file served without Content-Length is not replayed.
+ * <pre>
+ *  BufferReader reader = new ReconnectingBufferReader( firstReader, connector, playerCallback );
+ *  decoder.start( reader );
+ *  ...
+ *  reader.stop();
+ *  reader.close();
+ * </pre>
+ * @since 0.9
+ */
+public class ReconnectingBufferReader extends BufferReader {
+
+    /**
+     * Opens the connections.
+     */
+    public interface Connector {
+
+        /**
+         * Opens a new connection and returns its reader - already running.
+         * The reader should use the low-latency start (see BufferReader.setStartFill()),
+         * so the playback resumes as soon as possible.
+         * @param attempt the attempt of the current reconnect (starting from 1)
+         * @param capacity the capacity of one buffer in bytes
+         * @return the reader or null if the stream should not be reconnected anymore
+         */
+        public BufferReader connect( int attempt, int capacity ) throws Exception;
+
+
+        /**
+         * Closes the connection of the reader which stalled or failed.
+         * This must unblock the thread of the reader if it is still reading.
+         */
+        public void disconnect( BufferReader reader );
+
+    }
+
+
+    /**
+     * The default time without any progress which is considered as a stall.
+     */
+    public static final int DEFAULT_STALL_TIMEOUT_MS = 5000;
+
+    /**
+     * The default number of connection attempts of one reconnect.
+     */
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+    /**
+     * The delay before the second attempt - it doubles with every next attempt.
+     */
+    private static final int RETRY_DELAY_MS = 250;
+
+    /**
+     * How often the progress is checked while the consumer waits.
+     */
+    private static final int CHECK_INTERVAL_MS = 250;
+
+    private static final String LOG = "ReconnectingBufferReader";
+
+    private final Connector connector;
+    private final PlayerCallback playerCallback;
+
+    private volatile BufferReader reader;
+    private volatile boolean stopped;
+
+    private int stallTimeoutMs = DEFAULT_STALL_TIMEOUT_MS;
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    private volatile BufferingController bufferingController;
+
+    /**
+     * The first buffer of a new reader must be marked - then the mark is removed.
+     */
+    private boolean pendingDiscontinuity;
+    private Buffer marked;
+
+    /**
+     * The number of bytes returned to the consumer by next() - of all readers.
+     */
+    private volatile long bytesReturned;
+
+    private volatile int stalls;
+    private volatile int reconnects;
+    private volatile int failedReconnects;
+    private volatile long lastReconnectMs = -1;
+    private volatile long totalReconnectMs;
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a new reader.
+     * @param reader the reader of the first connection - already running
+     * @param connector the connector used for reconnecting
+     * @param playerCallback the callback - notified about reconnects if it is a BufferingListener; may be null
+     */
+    public ReconnectingBufferReader( BufferReader reader, Connector connector, PlayerCallback playerCallback ) {
+        this.reader = reader;
+        this.connector = connector;
+        this.playerCallback = playerCallback;
+        this.capacity = reader.capacity;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Public
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Sets the time without any progress which is considered as a stall.
+     * @param stallTimeoutMs the timeout in ms; 0 means that stalls are not detected
+     *      (only a failure of the reader causes a reconnect)
+     */
+    public void setStallTimeoutMs( int stallTimeoutMs ) {
+        this.stallTimeoutMs = stallTimeoutMs;
+    }
+
+
+    /**
+     * Returns the time without any progress which is considered as a stall.
+     */
+    public int getStallTimeoutMs() {
+        return stallTimeoutMs;
+    }
+
+
+    /**
+     * Sets the number of connection attempts of one reconnect - then the reader ends.
+     */
+    public void setMaxAttempts( int maxAttempts ) {
+        this.maxAttempts = maxAttempts;
+    }
+
+
+    /**
+     * Returns the number of connection attempts of one reconnect.
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+
+    /**
+     * Returns the number of bytes returned to the consumer by next() from all connections.
+     * Unlike getBytesRead() of the readers it does not include the data
+     * which were read but not passed to the consumer before a reconnect.
+     */
+    public long getBytesReturned() {
+        return bytesReturned;
+    }
+
+
+    /**
+     * Returns how many times the reader stalled.
+     */
+    public int getStallCount() {
+        return stalls;
+    }
+
+
+    /**
+     * Returns the number of successful reconnects.
+     */
+    public int getReconnectCount() {
+        return reconnects;
+    }
+
+
+    /**
+     * Returns the number of reconnects which failed after all attempts.
+     */
+    public int getFailedReconnectCount() {
+        return failedReconnects;
+    }
+
+
+    /**
+     * Returns the time from detecting the outage to the new connection of the last successful reconnect.
+     * @return the time in ms or -1 if no reconnect happened
+     */
+    public long getLastReconnectMs() {
+        return lastReconnectMs;
+    }
+
+
+    /**
+     * Returns the average time of the successful reconnects.
+     * @return the time in ms or -1 if no reconnect happened
+     */
+    public long getAverageReconnectMs() {
+        int n = reconnects;
+
+        return n > 0 ? totalReconnectMs / n : -1;
+    }
+
+
+    /**
+     * Does nothing - the first reader is already running and the next ones are started by the connector.
+     */
+    @Override
+    public void run() {
+    }
+
+
+    /**
+     * Changes the capacity of the buffers - also of the readers created later.
+     */
+    @Override
+    public void setCapacity( int capacity ) {
+        this.capacity = capacity;
+
+        BufferReader r = reader;
+        if (r != null) r.setCapacity( capacity );
+    }
+
+
+    @Override
+    public void setBufferingController( BufferingController bufferingController ) {
+        this.bufferingController = bufferingController;
+
+        BufferReader r = reader;
+        if (r != null) r.setBufferingController( bufferingController );
+    }
+
+
+    @Override
+    public int getBufferedCount() {
+        BufferReader r = reader;
+
+        return r != null ? r.getBufferedCount() : 0;
+    }
+
+
+    /**
+     * Returns the next buffer - reconnects if the current reader stalled or failed.
+     * @return the buffer or null if stopped, at the end of the stream or all reconnect attempts failed
+     */
+    @Override
+    public Buffer next() {
+        if (marked != null) {
+            marked.discontinuity = false;
+            marked = null;
+        }
+
+        while (true) {
+            BufferReader r = reader;
+
+            if (r == null) return null;
+
+            Buffer ret = stallTimeoutMs > 0 ? awaitNext( r ) : r.next();
+
+            if (ret != null) {
+                bytesReturned += ret.getSize();
+
+                if (pendingDiscontinuity) {
+                    pendingDiscontinuity = false;
+                    ret.discontinuity = true;
+                    marked = ret;
+                }
+
+                return ret;
+            }
+
+            if (stopped || r.isEndOfStream() || !reconnect( r )) return null;
+        }
+    }
+
+
+    @Override
+    public boolean await( long timeoutMs ) {
+        BufferReader r = reader;
+
+        return r == null || r.await( timeoutMs );
+    }
+
+
+    /**
+     * Stops the reader - also a running reconnect (it is interrupted between the attempts).
+     */
+    @Override
+    public void stop() {
+        stopped = true;
+
+        BufferReader r = reader;
+        if (r != null) r.stop();
+
+        // wake up the delay between the attempts:
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+
+    @Override
+    public boolean isStopped() {
+        return stopped;
+    }
+
+
+    @Override
+    public boolean isEndOfStream() {
+        BufferReader r = reader;
+
+        return r != null && r.isEndOfStream();
+    }
+
+
+    /**
+     * Closes the current reader - the consumer will not use the buffers anymore.
+     */
+    @Override
+    public void close() {
+        BufferReader r = reader;
+        reader = null;
+
+        if (r != null) r.close();
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Private
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Waits for the next buffer of the reader and watches its progress.
+     * @return the buffer or null if the reader ended or stalled
+     */
+    private Buffer awaitNext( BufferReader r ) {
+        long bytes = r.getBytesRead();
+        long since = System.currentTimeMillis();
+
+        while (!r.await( CHECK_INTERVAL_MS )) {
+            if (stopped) return null;
+
+            long now = System.currentTimeMillis();
+            long b = r.getBytesRead();
+
+            if (b != bytes) {
+                bytes = b;
+                since = now;
+            }
+            else if (now - since >= stallTimeoutMs) {
+                stalls++;
+                Log.w( LOG, "awaitNext() no data for " + (now - since) + " ms - stalled" );
+
+                return null;
+            }
+        }
+
+        return r.next();
+    }
+
+
+    /**
+     * Replaces the stalled or failed reader by the reader of a new connection.
+     * @return true if connected
+     */
+    private boolean reconnect( BufferReader old ) {
+        long ts = System.currentTimeMillis();
+
+        old.stop();
+        connector.disconnect( old );
+        old.close();
+
+        reader = null;
+
+        for (int attempt = 1; attempt <= maxAttempts && !stopped; attempt++) {
+            if (attempt > 1 && !sleep( RETRY_DELAY_MS << (attempt - 2))) break;
+
+            try {
+                BufferReader r = connector.connect( attempt, capacity );
+
+                if (r == null) break;
+
+                r.setBufferingController( bufferingController );
+
+                if (stopped) {
+                    r.stop();
+                    connector.disconnect( r );
+                    r.close();
+                    break;
+                }
+
+                reader = r;
+                pendingDiscontinuity = true;
+
+                long ms = System.currentTimeMillis() - ts;
+                lastReconnectMs = ms;
+                totalReconnectMs += ms;
+                reconnects++;
+
+                Log.i( LOG, "reconnect() connected in " + ms + " ms, attempt " + attempt + ", reconnects " + reconnects );
+
+                if (playerCallback instanceof BufferingListener) {
+                    ((BufferingListener) playerCallback).playerReconnected( reconnects, (int) ms );
+                }
+
+                return true;
+            }
+            catch (Exception e) {
+                Log.w( LOG, "reconnect() attempt " + attempt + " failed: " + e );
+            }
+        }
+
+        if (!stopped) {
+            failedReconnects++;
+            Log.e( LOG, "reconnect() failed after " + (System.currentTimeMillis() - ts) + " ms" );
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Waits between the attempts - stop() wakes it up.
+     * @return false if interrupted or stopped
+     */
+    private boolean sleep( long ms ) {
+        long end = System.currentTimeMillis() + ms;
+
+        synchronized (this) {
+            try {
+                long left;
+
+                while (!stopped && (left = end - System.currentTimeMillis()) > 0) wait( left );
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        return !stopped;
+    }
+
+}
@@ -0,0 +1,253 @@
+/*
+** AACDecoder - Freeware Advanced Audio (AAC) Decoder for Android
+** Copyright (C) 2011 Spolecne s.r.o., http://www.spoledge.com
+**
+** This file is a part of AACDecoder.
+**
+** AACDecoder is free software; you can redistribute it and/or modify
+** it under the terms of the GNU Lesser General Public License as published
+** by the Free Software Foundation; either version 3 of the License,
+** or (at your option) any later version.
+**
+** This program is distributed in the hope that it will be useful,
+** but WITHOUT ANY WARRANTY; without even the implied warranty of
+** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+** GNU Lesser General Public License for more details.
+**
+** You should have received a copy of the GNU Lesser General Public License
+** along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.spoledge.aacdecoder;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * This is a lock-free sequencer of a fixed number of slots shared by exactly
+ * one producer thread and exactly one consumer thread.
+ * The ring does not hold any data - it only tells which slot index
+ * can be filled by the producer or processed by the consumer.
+ * A waiting thread is parked and unparked by the other side; no monitor is used.
+ * <pre>
+ *  SlotRing ring = new SlotRing( 3 );
+ *
+ *  // producer:
+ *  int i = ring.claim();
+ *  if (i == -1) return; // stopped
+ *  fill( slots[i] );
+ *  ring.publish();
+ *
+ *  // consumer:
+ *  int i = ring.acquire();
+ *  if (i == -1) return; // stopped and nothing left
+ *  process( slots[i] );
+ *  ring.release();
+ * </pre>
+ * @since 0.9
+ */
+public class SlotRing {
+
+    private final int slots;
+
+    /**
+     * The number of slots published by the producer.
+     */
+    private final AtomicLong published = new AtomicLong();
+
+    /**
+     * The number of slots released by the consumer.
+     */
+    private final AtomicLong released = new AtomicLong();
+
+    private volatile Thread producerWaiting;
+    private volatile Thread consumerWaiting;
+
+    private volatile boolean stopped;
+
+    /**
+     * How many times any side had to park - useful for profiling.
+     */
+    private volatile int parks;
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a new ring.
+     * @param slots the number of slots - at least 2
+     */
+    public SlotRing( int slots ) {
+        if (slots < 2) throw new IllegalArgumentException( "At least 2 slots needed: " + slots );
+
+        this.slots = slots;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Public
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns the number of slots.
+     */
+    public final int getSlots() {
+        return slots;
+    }
+
+
+    /**
+     * Returns the number of slots published, but not released yet
+     * (including the slot being processed by the consumer).
+     */
+    public final int size() {
+        return (int)(published.get() - released.get());
+    }
+
+
+    /**
+     * Returns how many times the producer or the consumer had to park.
+     */
+    public final int getParkCount() {
+        return parks;
+    }
+
+
+    /**
+     * Producer: waits for a free slot.
+     * @return the index of the slot to be filled or -1 if the ring was stopped
+     */
+    public int claim() {
+        long p = published.get();
+
+        while (p - released.get() >= slots) {
+            if (stopped) return -1;
+
+            producerWaiting = Thread.currentThread();
+
+            if (p - released.get() >= slots && !stopped) {
+                parks++;
+                LockSupport.park( this );
+            }
+
+            producerWaiting = null;
+        }
+
+        return stopped ? -1 : (int)(p % slots);
+    }
+
+
+    /**
+     * Producer: returns the index of a free slot without waiting.
+     * @return the index of the slot to be filled or -1 if no slot is free or the ring was stopped
+     */
+    public int tryClaim() {
+        long p = published.get();
+
+        if (stopped || p - released.get() >= slots) return -1;
+
+        return (int)(p % slots);
+    }
+
+
+    /**
+     * Producer: publishes the slot returned by the last claim() call.
+     */
+    public void publish() {
+        published.incrementAndGet();
+
+        Thread t = consumerWaiting;
+        if (t != null) LockSupport.unpark( t );
+    }
+
+
+    /**
+     * Consumer: waits for a published slot.
+     * Published slots are always returned even if the ring was stopped.
+     * @return the index of the slot to be processed or -1 if the ring was stopped and no slot is available
+     */
+    public int acquire() {
+        long r = released.get();
+
+        while (published.get() == r) {
+            if (stopped) return -1;
+
+            consumerWaiting = Thread.currentThread();
+
+            if (published.get() == r && !stopped) {
+                parks++;
+                LockSupport.park( this );
+            }
+
+            consumerWaiting = null;
+        }
+
+        return (int)(r % slots);
+    }
+
+
+    /**
+     * Consumer: waits for a published slot at most the given time - the slot is not acquired.
+     * @param timeoutNanos the maximum time to wait
+     * @return true if a slot is available or the ring was stopped, false if the time elapsed
+     */
+    public boolean await( long timeoutNanos ) {
+        long r = released.get();
+        long deadline = System.nanoTime() + timeoutNanos;
+
+        while (published.get() == r) {
+            if (stopped) return true;
+
+            long left = deadline - System.nanoTime();
+            if (left <= 0) return false;
+
+            consumerWaiting = Thread.currentThread();
+
+            if (published.get() == r && !stopped) {
+                parks++;
+                LockSupport.parkNanos( this, left );
+            }
+
+            consumerWaiting = null;
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Consumer: returns the slot returned by the last acquire() call back to the producer.
+     */
+    public void release() {
+        released.incrementAndGet();
+
+        Thread t = producerWaiting;
+        if (t != null) LockSupport.unpark( t );
+    }
+
+
+    /**
+     * Stops the ring - wakes up both sides.
+     */
+    public void stop() {
+        stopped = true;
+
+        Thread t = producerWaiting;
+        if (t != null) LockSupport.unpark( t );
+
+        t = consumerWaiting;
+        if (t != null) LockSupport.unpark( t );
+    }
+
+
+    /**
+     * Returns true if this ring was stopped.
+     */
+    public final boolean isStopped() {
+        return stopped;
+    }
+
+}
+
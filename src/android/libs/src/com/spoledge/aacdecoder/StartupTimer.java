@@ -0,0 +1,106 @@
+/*
+** AACDecoder - Freeware Advanced Audio (AAC) Decoder for Android
+** Copyright (C) 2011 Spolecne s.r.o., http://www.spoledge.com
+**
+** This file is a part of AACDecoder.
+**
+** AACDecoder is free software; you can redistribute it and/or modify
+** it under the terms of the GNU Lesser General Public License as published
+** by the Free Software Foundation; either version 3 of the License,
+** or (at your option) any later version.
+**
+** This program is distributed in the hope that it will be useful,
+** but WITHOUT ANY WARRANTY; without even the implied warranty of
+** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+** GNU Lesser General Public License for more details.
+**
+** You should have received a copy of the GNU Lesser General Public License
+** along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.spoledge.aacdecoder;
+
+
+/**
+ * This collects the durations of the startup phases of one playback.
+ * The sequential phases (connect, headers, decoder start,...) are measured
+ * from the end of the previous phase, the parallel ones (e.g. the speculative
+ * creation of the audio output) from their own start.
+ * <pre>
+ *  StartupTimer timer = new StartupTimer();
+ *  ...
+ *  timer.phase( "connect" );
+ *  ...
+ *  timer.phase( "headers" );
+ *
+ *  Log.i( LOG, "startup: " + timer );   // connect=120 ms, headers=40 ms, total=160 ms
+ * </pre>
+ * All methods can be called by any thread.
+ * @since 0.9
+ */
+public class StartupTimer {
+
+    private final long start = System.currentTimeMillis();
+
+    private long last = start;
+
+    private final StringBuilder phases = new StringBuilder();
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Public
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Finishes a sequential phase - it started at the end of the previous one.
+     * @return the duration of the phase in ms
+     */
+    public synchronized long phase( String name ) {
+        long now = System.currentTimeMillis();
+        long ret = now - last;
+
+        last = now;
+        append( name, ret );
+
+        return ret;
+    }
+
+
+    /**
+     * Records a phase running in parallel with the sequential ones.
+     * @param startMs the time when the phase started (System.currentTimeMillis())
+     * @return the duration of the phase in ms
+     */
+    public synchronized long parallel( String name, long startMs ) {
+        long ret = System.currentTimeMillis() - startMs;
+
+        append( name + "(parallel)", ret );
+
+        return ret;
+    }
+
+
+    /**
+     * Returns the time elapsed since the timer was created.
+     */
+    public long getElapsedMs() {
+        return System.currentTimeMillis() - start;
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        return phases + (phases.length() > 0 ? ", " : "") + "total=" + getElapsedMs() + " ms";
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Private
+    ////////////////////////////////////////////////////////////////////////////
+
+    private void append( String name, long ms ) {
+        if (phases.length() > 0) phases.append( ", " );
+
+        phases.append( name ).append( '=' ).append( ms ).append( " ms" );
+    }
+
+}
@@ -0,0 +1,227 @@
+/*
+** AACDecoder - Freeware Advanced Audio (AAC) Decoder for Android
+** Copyright (C) 2011 Spolecne s.r.o., http://www.spoledge.com
+**
+** This file is a part of AACDecoder.
+**
+** AACDecoder is free software; you can redistribute it and/or modify
+** it under the terms of the GNU Lesser General Public License as published
+** by the Free Software Foundation; either version 3 of the License,
+** or (at your option) any later version.
+**
+** This program is distributed in the hope that it will be useful,
+** but WITHOUT ANY WARRANTY; without even the implied warranty of
+** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+** GNU Lesser General Public License for more details.
+**
+** You should have received a copy of the GNU Lesser General Public License
+** along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.spoledge.aacdecoder;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+
+
+/**
+ * This is a queue which delays the metadata until the matching audio is played.
+ * The metadata are stamped with the offset of the compressed audio data (without the metadata)
+ * when they arrive, mapped to the position of the decoded samples by the decoder
+ * and released to PlayerCallback when the playback head reaches the position.
+ * <pre>
+ *  // reader thread(s):
+ *  queue.add( offset, key, value );
+ *
+ *  // decoder thread - after each round:
+ *  queue.decoded( info.getRoundBytesConsumed(), info.getRoundSamples());
+ *
+ *  // output thread - periodically:
+ *  queue.played( sink.getPlaybackHeadPosition() * channels );
+ * </pre>
+ * @since 0.9
+ */
+public class TimedMetadataQueue {
+
+    /**
+     * One metadata event.
+     */
+    private static final class Event {
+        final long offset;
+        final String key;
+        final String value;
+
+        /**
+         * The position in samples (all channels) or -1 if not decoded yet.
+         */
+        long position = -1;
+
+        Event( long offset, String key, String value ) {
+            this.offset = offset;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+
+    /**
+     * The maximum number of events waiting - if exceeded, then the oldest one is released immediately.
+     */
+    public static final int MAX_EVENTS = 64;
+
+    private static final String LOG = "TimedMetadataQueue";
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Attributes
+    ////////////////////////////////////////////////////////////////////////////
+
+    private final PlayerCallback playerCallback;
+
+    /**
+     * The events ordered by the offset; the first ones may be already mapped to the samples.
+     */
+    private final ArrayDeque<Event> events = new ArrayDeque<Event>();
+
+    /**
+     * The offset of the input of the current connection.
+     */
+    private long inputBase;
+
+    /**
+     * The number of compressed bytes consumed and samples produced by the decoder.
+     */
+    private long bytesDecoded;
+    private long samplesDecoded;
+
+    private int released;
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a new queue.
+     * @param playerCallback the callback - may be null
+     */
+    public TimedMetadataQueue( PlayerCallback playerCallback ) {
+        this.playerCallback = playerCallback;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Public
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Sets the offset of the first byte of a new input - e.g. after reconnecting the stream.
+     * The offsets passed to add() are relative to this base.
+     * @param inputBase the number of audio bytes read from the previous inputs
+     */
+    public synchronized void setInputBase( long inputBase ) {
+        this.inputBase = inputBase;
+    }
+
+
+    /**
+     * Adds the metadata which arrived at the offset of the input.
+     * @param offset the number of audio bytes of the input before the metadata
+     */
+    public void add( long offset, String key, String value ) {
+        Event overflow = null;
+
+        synchronized (this) {
+            if (events.size() == MAX_EVENTS) {
+                overflow = events.poll();
+                released++;
+            }
+
+            events.add( new Event( inputBase + offset, key, value ));
+        }
+
+        if (overflow != null) {
+            Log.w( LOG, "add() too many events - releasing " + overflow.key + " immediately" );
+            release( overflow );
+        }
+    }
+
+
+    /**
+     * Maps the events to the decoded samples - called by the decoder after each round.
+     * The position within the round is interpolated.
+     * @param bytes the number of compressed bytes consumed
+     * @param samples the number of samples (all channels) produced
+     */
+    public synchronized void decoded( int bytes, int samples ) {
+        long end = bytesDecoded + bytes;
+
+        for (Event e : events) {
+            if (e.position != -1) continue;
+            if (e.offset >= end) break;
+
+            long n = e.offset - bytesDecoded;
+
+            e.position = samplesDecoded + (n > 0 && bytes > 0 ? n * samples / bytes : 0);
+        }
+
+        bytesDecoded = end;
+        samplesDecoded += samples;
+    }
+
+
+    /**
+     * Releases the events reached by the playback head.
+     * @param position the playback head in samples (all channels)
+     */
+    public void played( long position ) {
+        while (true) {
+            Event e;
+
+            synchronized (this) {
+                e = events.peek();
+
+                if (e == null || e.position == -1 || e.position > position) return;
+
+                events.poll();
+                released++;
+            }
+
+            release( e );
+        }
+    }
+
+
+    /**
+     * Drops all events - e.g. when stopped.
+     */
+    public synchronized void clear() {
+        events.clear();
+    }
+
+
+    /**
+     * Returns the number of events waiting.
+     */
+    public synchronized int size() {
+        return events.size();
+    }
+
+
+    /**
+     * Returns the number of events released.
+     */
+    public synchronized int getReleasedCount() {
+        return released;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Private
+    ////////////////////////////////////////////////////////////////////////////
+
+    private void release( Event e ) {
+        if (playerCallback != null) playerCallback.playerMetadata( e.key, e.value );
+    }
+
+}
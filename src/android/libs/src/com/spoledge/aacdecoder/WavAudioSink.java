@@ -0,0 +1,197 @@
+/*
+** AACDecoder - Freeware Advanced Audio (AAC) Decoder for Android
+** Copyright (C) 2011 Spolecne s.r.o., http://www.spoledge.com
+**
+** This file is a part of AACDecoder.
+**
+** AACDecoder is free software; you can redistribute it and/or modify
+** it under the terms of the GNU Lesser General Public License as published
+** by the Free Software Foundation; either version 3 of the License,
+** or (at your option) any later version.
+**
+** This program is distributed in the hope that it will be useful,
+** but WITHOUT ANY WARRANTY; without even the implied warranty of
+** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+** GNU Lesser General Public License for more details.
+**
+** You should have received a copy of the GNU Lesser General Public License
+** along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.spoledge.aacdecoder;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * This is an audio sink which writes the samples into a WAV file (16-bit PCM).
+ * The data are consumed as fast as possible.
+ * The sizes in the WAV header are set when the sink is released.
+ * @since 0.9
+ */
+public class WavAudioSink extends NullAudioSink {
+
+    private static final String LOG = "WavAudioSink";
+
+    private static final int HEADER_SIZE = 44;
+
+    private File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private ByteBuffer scratch;
+    private long dataBytes;
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a new sink.
+     * @param file the output file - it is overwritten
+     */
+    public WavAudioSink( File file ) {
+        super( false );
+
+        this.file = file;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Public
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns the output file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+
+    @Override
+    public void open( int sampleRate, int channels, int bufferSizeInBytes, Listener listener, int periodInFrames ) throws Exception {
+        super.open( sampleRate, channels, bufferSizeInBytes, listener, periodInFrames );
+
+        raf = new RandomAccessFile( file, "rw" );
+        raf.setLength( 0 );
+        channel = raf.getChannel();
+
+        writeHeader();
+    }
+
+
+    @Override
+    public synchronized void release() {
+        super.release();
+
+        if (raf == null) return;
+
+        try {
+            writeHeader();
+            raf.close();
+        }
+        catch (IOException e) {
+            Log.e( LOG, "Cannot finish the WAV file: " + e );
+        }
+
+        raf = null;
+        channel = null;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Protected
+    ////////////////////////////////////////////////////////////////////////////
+
+    @Override
+    protected synchronized void consume( ByteBuffer bytes, ShortBuffer view, int offset, int n ) {
+        if (bytes.order() == ByteOrder.LITTLE_ENDIAN) {
+            ByteBuffer bb = bytes.duplicate();
+            bb.limit( (offset + n) * 2 );
+            bb.position( offset * 2 );
+
+            writeData( bb );
+        }
+        else {
+            ByteBuffer bb = scratch( n );
+
+            for (int i=0; i < n; i++) bb.putShort( view.get( offset + i ));
+
+            bb.flip();
+            writeData( bb );
+        }
+    }
+
+
+    @Override
+    protected synchronized void consume( short[] samples, int offset, int n ) {
+        ByteBuffer bb = scratch( n );
+        bb.asShortBuffer().put( samples, offset, n );
+        bb.limit( n * 2 );
+
+        writeData( bb );
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Private
+    ////////////////////////////////////////////////////////////////////////////
+
+    private ByteBuffer scratch( int n ) {
+        if (scratch == null || scratch.capacity() < n * 2) {
+            scratch = ByteBuffer.allocate( n * 2 ).order( ByteOrder.LITTLE_ENDIAN );
+        }
+
+        scratch.clear();
+
+        return scratch;
+    }
+
+
+    private void writeData( ByteBuffer bb ) {
+        if (channel == null) return;
+
+        try {
+            dataBytes += bb.remaining();
+
+            while (bb.hasRemaining()) channel.write( bb );
+        }
+        catch (IOException e) {
+            Log.e( LOG, "Cannot write to the WAV file: " + e );
+        }
+    }
+
+
+    private void writeHeader() throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate( HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+
+        bb.put( new byte[] { 'R', 'I', 'F', 'F' });
+        bb.putInt( (int)(36 + dataBytes) );
+        bb.put( new byte[] { 'W', 'A', 'V', 'E', 'f', 'm', 't', ' ' });
+        bb.putInt( 16 );
+        bb.putShort( (short) 1 );
+        bb.putShort( (short) channels );
+        bb.putInt( sampleRate );
+        bb.putInt( sampleRate * channels * 2 );
+        bb.putShort( (short)(channels * 2) );
+        bb.putShort( (short) 16 );
+        bb.put( new byte[] { 'd', 'a', 't', 'a' });
+        bb.putInt( (int) dataBytes );
+        bb.flip();
+
+        channel.write( bb, 0 );
+
+        if (channel.position() < HEADER_SIZE) channel.position( HEADER_SIZE );
+    }
+
+}
+
@@ -29,9 +29,9 @@ declare var Mediaac: {
 interface Mediaac {
     /**
      * Starts or resumes playing an audio file.
-     * @param iosPlayOptions: iOS options quirks
+     * @param options: the mirrors of the stream (Android) and iOS options quirks
      */
-    play(iosPlayOptions?: IosPlayOptions): void;
+    play(options?: PlayOptions): void;
     /** Pauses playing an audio file. */
     pause(): void;
     /**
@@ -50,4 +50,12 @@ interface Mediaac {
 interface IosPlayOptions {
     numberOfLoops?: number;
     playAudioWhenScreenIsLocked?: boolean;
+}
+
+/**
+ *  Optional parameters for media.play
+ */
+interface PlayOptions extends IosPlayOptions {
+    /** Android: the other urls of the same stream - the fastest one is played and the others are used when it fails */
+    mirrors?: string[];
 }
\ No newline at end of file
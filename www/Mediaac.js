@@ -73,6 +73,10 @@ Mediaac.get = function(id) {
 
 /**
  * Start or resume playing audio file.
+ *
+ * @param options               OPTIONAL
+ *                                  mirrors: the other urls of the same stream - the fastest one is played
+ *                                  and the others are used when it fails
  */
 Mediaac.prototype.play = function(options) {
     exec(null, null, "Mediaac", "startPlayingAudio", [this.id, this.src, options]);
@@ -152,7 +156,12 @@ Mediaac.onStatus = function(id, msgType, value) {
 module.exports = Mediaac;
 
 function onMessageFromNative(msg) {
-    if (msg.action == 'status') {
+    if (msg.action == 'batch') {
+        // the messages merged by the native side - in their original order:
+        for (var i = 0; i < msg.batch.length; i++) {
+            onMessageFromNative(msg.batch[i]);
+        }
+    } else if (msg.action == 'status') {
         Mediaac.onStatus(msg.status.id, msg.status.msgType, msg.status.value);
     } else {
         throw new Error('Unknown mediaac action' + msg.action);